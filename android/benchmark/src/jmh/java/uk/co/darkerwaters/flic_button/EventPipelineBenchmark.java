@@ -0,0 +1,138 @@
+package uk.co.darkerwaters.flic_button;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * the cost of each stage of getting a click from a button to the channel, in ns/op with the
+ * bytes allocated per op from the gc profiler (gc.alloc.rate.norm). Run with
+ * ./gradlew :benchmark:jmh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventPipelineBenchmark {
+  // as in the FlicButtonPlugin, which needs android so isn't built here
+  private static final int METHOD_FLIC2_CLICK = 103;
+  private static final String METHOD_NAME_CALLBACK = "callListener";
+
+  private final StubFlic2Button button = new StubFlic2Button(1);
+
+  private final Flic2EventEncoder jsonEncoder = new Flic2EventEncoder(Flic2EventEncoder.ENCODING_JSON);
+  private final Flic2EventEncoder typedEncoder = new Flic2EventEncoder(Flic2EventEncoder.ENCODING_TYPED);
+  // the encoder of a second engine, sharing the controller with the first
+  private final Flic2EventEncoder secondTypedEncoder = new Flic2EventEncoder(Flic2EventEncoder.ENCODING_TYPED);
+
+  private StubMethodChannel channel;
+
+  // the latest snapshot of the button, replaced with every press as the controller does
+  private Flic2ButtonSnapshot snapshot;
+
+  @Setup
+  public void setup(Blackhole blackhole) {
+    channel = new StubMethodChannel(blackhole);
+    snapshot = button.snapshot();
+  }
+
+  /*
+   * one string parameter, cleaned by the four replaceAll calls
+   */
+  @Benchmark
+  public String addParamToJson() {
+    return Flic2EventEncoder.AddParamToJson(new StringBuilder(), "name", () -> snapshot.name).toString();
+  }
+
+  /*
+   * the whole button as JSON, built from nothing every time as it always used to be
+   */
+  @Benchmark
+  public String buttonToJsonUncached() {
+    return Flic2EventEncoder.SnapshotToJson(snapshot);
+  }
+
+  /*
+   * the whole button as JSON, with the snapshot (and so its JSON) the same as the last event
+   */
+  @Benchmark
+  public String buttonToJsonCached() {
+    return Flic2EventEncoder.ButtonToJson(snapshot);
+  }
+
+  /*
+   * the JSON of a click, with the new snapshot each press makes (as onButtonClicked does)
+   */
+  @Benchmark
+  public Object clickJson() {
+    snapshot = button.press(snapshot);
+    return jsonEncoder.encodeClick(snapshot, false, false, 1234567890L, true, false, false);
+  }
+
+  /*
+   * the typed map of a click, with the new snapshot each press makes
+   */
+  @Benchmark
+  public Object clickTyped() {
+    snapshot = button.press(snapshot);
+    return typedEncoder.encodeClick(snapshot, false, false, 1234567890L, true, false, false);
+  }
+
+  /*
+   * the typed map of a click for two engines, the second given what the first encoded
+   */
+  @Benchmark
+  public void clickTypedTwoEngines(Blackhole blackhole) {
+    snapshot = button.press(snapshot);
+    blackhole.consume(typedEncoder.encodeClick(snapshot, false, false, 1234567890L, true, false, false));
+    blackhole.consume(secondTypedEncoder.encodeClick(snapshot, false, false, 1234567890L, true, false, false));
+  }
+
+  /*
+   * a click through to the channel as informListeners sends it, encoded as JSON
+   */
+  @Benchmark
+  public void informListenersJson() {
+    snapshot = button.press(snapshot);
+    final Flic2Event event = new Flic2Event(METHOD_FLIC2_CLICK,
+        jsonEncoder.encodeClick(snapshot, false, false, 1234567890L, true, false, false), snapshot.uuid, false,
+        false);
+    channel.invokeMethod(METHOD_NAME_CALLBACK, event.toArguments());
+  }
+
+  /*
+   * a click through to the channel as informListeners sends it, encoded as a typed map
+   */
+  @Benchmark
+  public void informListenersTyped() {
+    snapshot = button.press(snapshot);
+    final Flic2Event event = new Flic2Event(METHOD_FLIC2_CLICK,
+        typedEncoder.encodeClick(snapshot, false, false, 1234567890L, true, false, false), snapshot.uuid, false,
+        false);
+    channel.invokeMethod(METHOD_NAME_CALLBACK, event.toArguments());
+  }
+
+  /*
+   * the typed map of an up / down with all of the button, the press count changing each time
+   */
+  @Benchmark
+  public Object upOrDownTyped() {
+    snapshot = button.press(snapshot);
+    return typedEncoder.encodeUpOrDown(snapshot, true);
+  }
+
+  /*
+   * the compact up / down, just the press count that changed sent with the UUID
+   */
+  @Benchmark
+  public Object upOrDownCompactTyped() {
+    snapshot = button.press(snapshot);
+    return typedEncoder.encodeCompactUpOrDown(snapshot, true, 1234567890L);
+  }
+}
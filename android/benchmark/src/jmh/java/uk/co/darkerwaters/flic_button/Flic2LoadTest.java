@@ -0,0 +1,167 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * puts the load of a simulated fleet through the event pipeline on a plain JVM, reporting the
+ * events per second delivered and the time (from the click being made to it arriving at the
+ * channel) they took. The events go as they do in the plugin, made on one thread (the Flic 2
+ * thread), encoded and wrapped in a Flic2Event there and then sent from another (the platform
+ * thread). Run with
+ * ./gradlew :benchmark:loadTest --args="<buttons> <clicks per second> <seconds> <json|typed> [trace file]"
+ * to record what the simulator did to the trace file as well, or play a trace (from here or a
+ * phone) back through the pipeline at a speed (zero for as fast as it goes) with
+ * ./gradlew :benchmark:loadTest --args="replay <trace file> <speed> <json|typed>"
+ */
+public class Flic2LoadTest {
+  private static final int METHOD_FLIC2_CLICK = 103;
+  private static final int METHOD_FLIC2_BUTTON_UP_DOWN = 107;
+
+  // only touched on the platform thread
+  private static long[] latenciesNs = new long[1 << 16];
+  private static int latencyCount = 0;
+  private static long delivered = 0;
+  private static long argumentsSize = 0;
+
+  public static void main(String[] args) throws InterruptedException, IOException {
+    final boolean isReplaying = args.length > 0 && "replay".equals(args[0]);
+    final Flic2Simulator.Config config = new Flic2Simulator.Config();
+    config.buttonCount = args.length > 0 && !isReplaying ? Integer.parseInt(args[0]) : 500;
+    config.clicksPerSecond = args.length > 1 && !isReplaying ? Double.parseDouble(args[1]) : 2.0;
+    final int seconds = args.length > 2 && !isReplaying ? Integer.parseInt(args[2]) : 10;
+    final boolean isTyped = args.length <= 3 || !"json".equals(args[3]);
+    final File traceFile = isReplaying ? new File(args[1]) : (args.length > 4 ? new File(args[4]) : null);
+    config.upOrDownsPerSecond = config.clicksPerSecond;
+    config.queuedReplaysPerMinute = 1.0;
+    config.disconnectsPerMinute = 1.0;
+    config.scanResultsPerMinute = 10.0;
+
+    final ExecutorService flicThread = Executors.newSingleThreadExecutor();
+    final ExecutorService platformThread = Executors.newSingleThreadExecutor();
+    final Flic2EventEncoder encoder = new Flic2EventEncoder(
+        isTyped ? Flic2EventEncoder.ENCODING_TYPED : Flic2EventEncoder.ENCODING_JSON);
+
+    final Flic2ButtonCallback callback = new Flic2ButtonCallback() {
+      @Override
+      public void onPairedButtonFound(Flic2ButtonSnapshot button) {
+        send(new Flic2Event(100, encoder.encodeButton(button)), 0);
+      }
+
+      @Override
+      public void onButtonFound(Flic2ButtonSnapshot button) {
+        send(new Flic2Event(106, encoder.encodeButton(button)), 0);
+      }
+
+      @Override
+      public void onButtonConnected() {
+        send(new Flic2Event(102, null), 0);
+      }
+
+      @Override
+      public void onButtonDiscovered(String buttonAddress) {
+        send(new Flic2Event(101, buttonAddress), 0);
+      }
+
+      @Override
+      public void onButtonScanningStarted() {
+        send(new Flic2Event(104, null), 0);
+      }
+
+      @Override
+      public void onButtonScanningStopped() {
+        send(new Flic2Event(105, null), 0);
+      }
+
+      @Override
+      public void onError(String error) {
+        send(new Flic2Event(200, error), 0);
+      }
+
+      @Override
+      public void onButtonClicked(Flic2ButtonSnapshot button, boolean wasQueued, boolean lastQueued, long timestamp,
+          boolean isSingleClick, boolean isDoubleClick, boolean isHold) {
+        final Object clickData = encoder.encodeClick(button, wasQueued, lastQueued, timestamp, isSingleClick,
+            isDoubleClick, isHold);
+        // the simulator stamps the clicks with System.nanoTime(), so we can see how long they took
+        send(new Flic2Event(METHOD_FLIC2_CLICK, clickData, button.uuid, wasQueued, lastQueued), timestamp);
+      }
+
+      @Override
+      public void onButtonUpOrDown(Flic2ButtonSnapshot button, boolean down, long timestamp) {
+        send(new Flic2Event(METHOD_FLIC2_BUTTON_UP_DOWN, encoder.encodeUpOrDown(button, down), button.uuid,
+            false, false), 0);
+      }
+
+      private void send(Flic2Event event, long createdNs) {
+        platformThread.execute(() -> {
+          final Map<String, Object> arguments = event.toArguments();
+          // stands in for the channel, so the arguments are used
+          argumentsSize += arguments.size();
+          delivered++;
+          if (createdNs != 0) {
+            if (latencyCount == latenciesNs.length) {
+              latenciesNs = Arrays.copyOf(latenciesNs, latencyCount * 2);
+            }
+            latenciesNs[latencyCount++] = System.nanoTime() - createdNs;
+          }
+        });
+      }
+    };
+
+    final long startNs = System.nanoTime();
+    Object source;
+    if (isReplaying) {
+      // the trace's clicks are stamped again as they are replayed, so we can see how long they took
+      final Flic2TraceReplayer replayer = new Flic2TraceReplayer(traceFile, Double.parseDouble(args[2]), true,
+          flicThread, callback);
+      source = replayer.replay();
+    } else {
+      final Flic2TraceRecorder recorder = null == traceFile ? null : new Flic2TraceRecorder(traceFile, callback);
+      final Flic2Simulator simulator = new Flic2Simulator(config, flicThread,
+          null == recorder ? callback : recorder);
+      simulator.start();
+      Thread.sleep(seconds * 1000L);
+      simulator.stop();
+      source = simulator.getStats();
+      if (null != recorder) {
+        // the recorder is called on the Flic 2 thread, so close it there after the rest
+        flicThread.submit(() -> System.out.println("recorded: " + recorder.close()));
+      }
+    }
+    // let everything already made get through
+    flicThread.shutdown();
+    flicThread.awaitTermination(10, TimeUnit.SECONDS);
+    platformThread.shutdown();
+    platformThread.awaitTermination(10, TimeUnit.SECONDS);
+    final double elapsedSeconds = (System.nanoTime() - startNs) / 1e9;
+
+    final long[] sorted = Arrays.copyOf(latenciesNs, latencyCount);
+    Arrays.sort(sorted);
+    if (isReplaying) {
+      System.out.println("trace: " + traceFile + ", speed: " + args[2] + ", encoding: " + (isTyped ? "typed" : "json"));
+      System.out.println("replayed: " + source);
+    } else {
+      System.out.println("buttons: " + config.buttonCount + ", clicks/s each: " + config.clicksPerSecond
+          + ", encoding: " + (isTyped ? "typed" : "json"));
+      System.out.println("simulated: " + source);
+    }
+    System.out.println(String.format("delivered: %d events in %.1fs, %.0f events/s", delivered, elapsedSeconds,
+        delivered / elapsedSeconds));
+    System.out.println(String.format("click latency (us): p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f",
+        percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+        sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1000.0));
+  }
+
+  private static double percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) {
+      return 0.0;
+    }
+    return sorted[(int) Math.min(sorted.length - 1, Math.floor(fraction * sorted.length))] / 1000.0;
+  }
+}
@@ -0,0 +1,33 @@
+package uk.co.darkerwaters.flic_button;
+
+/*
+ * stands in for a Flic2Button, with the data a real one reports. The encoders work from
+ * snapshots of the button, so this builds them as the controller does from the real thing
+ */
+public class StubFlic2Button {
+  private final String uuid;
+  private final String bdAddr;
+  private final String name;
+  private int pressCount = 0;
+  private long version = 0;
+
+  public StubFlic2Button(int index) {
+    this.uuid = String.format("%032x", 0x5eedL + index);
+    this.bdAddr = String.format("80:E4:DA:%02X:%02X:%02X", (index >> 16) & 0xFF, (index >> 8) & 0xFF,
+        index & 0xFF);
+    // names are set by the user, so can have anything in them the JSON has to clean up
+    this.name = "Kitchen \"light\" switch\r\n\\" + index;
+  }
+
+  public Flic2ButtonSnapshot snapshot() {
+    return new Flic2ButtonSnapshot(++version, uuid, bdAddr, 1234567890L, name, "BD12-A34567", 2, 10, 87,
+        1700000000000L, 2.95f, pressCount);
+  }
+
+  /*
+   * the button is pressed, the snapshot changes just in the press count
+   */
+  public Flic2ButtonSnapshot press(Flic2ButtonSnapshot last) {
+    return last.withPressCount(++version, ++pressCount);
+  }
+}
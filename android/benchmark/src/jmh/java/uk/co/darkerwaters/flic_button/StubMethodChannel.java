@@ -0,0 +1,20 @@
+package uk.co.darkerwaters.flic_button;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * stands in for the MethodChannel at the end of the pipeline, the arguments go to the
+ * blackhole so the work to build them can't be optimised away
+ */
+public class StubMethodChannel {
+  private final Blackhole blackhole;
+
+  public StubMethodChannel(Blackhole blackhole) {
+    this.blackhole = blackhole;
+  }
+
+  public void invokeMethod(String method, Object arguments) {
+    blackhole.consume(method);
+    blackhole.consume(arguments);
+  }
+}
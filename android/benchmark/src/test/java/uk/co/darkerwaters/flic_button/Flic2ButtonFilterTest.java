@@ -0,0 +1,134 @@
+package uk.co.darkerwaters.flic_button;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * the events the filters of the buttons let through, and the union of the filters of the
+ * engines sharing the controller
+ */
+public class Flic2ButtonFilterTest {
+  private static final Flic2ButtonFilter HOLDS_ONLY =
+      new Flic2ButtonFilter(Flic2ButtonFilter.EVENT_HOLD, true, true, 0);
+  private static final Flic2ButtonFilter LIVE_ONLY =
+      new Flic2ButtonFilter(Flic2ButtonFilter.EVENT_ALL, true, false, 0);
+  private static final Flic2ButtonFilter RECENT_QUEUED =
+      new Flic2ButtonFilter(Flic2ButtonFilter.EVENT_SINGLE_CLICK, false, true, 60000);
+
+  @Test
+  public void typesNotWantedAreFiltered() {
+    assertTrue(HOLDS_ONLY.isClickWanted(false, false, true, false, 0));
+    assertFalse(HOLDS_ONLY.isClickWanted(true, false, false, false, 0));
+    assertFalse(HOLDS_ONLY.isClickWanted(false, true, false, false, 0));
+    assertFalse(HOLDS_ONLY.isUpOrDownWanted());
+  }
+
+  @Test
+  public void liveAndQueuedAreFiltered() {
+    assertTrue(LIVE_ONLY.isClickWanted(true, false, false, false, 0));
+    assertFalse(LIVE_ONLY.isClickWanted(true, false, false, true, 10));
+    assertTrue(LIVE_ONLY.isUpOrDownWanted());
+    assertFalse(RECENT_QUEUED.isClickWanted(true, false, false, false, 0));
+    // up / downs are only ever live
+    assertFalse(RECENT_QUEUED.isUpOrDownWanted());
+  }
+
+  @Test
+  public void oldQueuedClicksAreFiltered() {
+    assertTrue(RECENT_QUEUED.isClickWanted(true, false, false, true, 60000));
+    assertFalse(RECENT_QUEUED.isClickWanted(true, false, false, true, 60001));
+    // no limit on the age
+    assertTrue(HOLDS_ONLY.isClickWanted(false, false, true, true, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void missingFromTheMapIsWanted() {
+    final Flic2ButtonFilter all = Flic2ButtonFilter.fromMap(new HashMap<String, Object>());
+    assertEquals(Flic2ButtonFilter.EVENT_ALL, all.events);
+    assertTrue(all.live);
+    assertTrue(all.queued);
+    assertEquals(0, all.maxQueuedAgeMs);
+    final Map<String, Object> map = new HashMap<>();
+    map.put(Flic2ButtonFilter.KEY_EVENTS, Flic2ButtonFilter.EVENT_DOUBLE_CLICK);
+    map.put(Flic2ButtonFilter.KEY_QUEUED, false);
+    map.put(Flic2ButtonFilter.KEY_MAX_QUEUED_AGE_MS, 5000);
+    final Flic2ButtonFilter doubles = Flic2ButtonFilter.fromMap(map);
+    assertEquals(Flic2ButtonFilter.EVENT_DOUBLE_CLICK, doubles.events);
+    assertTrue(doubles.live);
+    assertFalse(doubles.queued);
+    assertEquals(5000, doubles.maxQueuedAgeMs);
+  }
+
+  @Test
+  public void unionWithEverythingIsEverything() {
+    assertNull(Flic2ButtonFilter.union(null, HOLDS_ONLY));
+    assertNull(Flic2ButtonFilter.union(LIVE_ONLY, null));
+  }
+
+  @Test
+  public void unionWantsWhatEitherWants() {
+    final Flic2ButtonFilter union = Flic2ButtonFilter.union(HOLDS_ONLY, RECENT_QUEUED);
+    assertEquals(Flic2ButtonFilter.EVENT_HOLD | Flic2ButtonFilter.EVENT_SINGLE_CLICK, union.events);
+    assertTrue(union.live);
+    assertTrue(union.queued);
+    // one of them wants queued clicks of any age
+    assertEquals(0, union.maxQueuedAgeMs);
+    assertTrue(union.isClickWanted(true, false, false, true, 120000));
+    assertFalse(union.isClickWanted(false, true, false, false, 0));
+  }
+
+  @Test
+  public void unionTakesTheLongestAge() {
+    final Flic2ButtonFilter older = new Flic2ButtonFilter(Flic2ButtonFilter.EVENT_HOLD, false, true, 120000);
+    final Flic2ButtonFilter union = Flic2ButtonFilter.union(RECENT_QUEUED, older);
+    assertEquals(120000, union.maxQueuedAgeMs);
+    assertFalse(union.live);
+  }
+
+  @Test
+  public void unionIgnoresTheAgeOfOneNotWantingQueued() {
+    // the live only filter has no age (any), but wants no queued clicks, so the age stays
+    final Flic2ButtonFilter union = Flic2ButtonFilter.union(LIVE_ONLY, RECENT_QUEUED);
+    assertTrue(union.queued);
+    assertEquals(60000, union.maxQueuedAgeMs);
+    assertFalse(union.isClickWanted(true, false, false, true, 60001));
+    assertTrue(union.isClickWanted(false, true, false, false, 0));
+  }
+
+  @Test
+  public void unionPassesEverythingEachWants() {
+    // every event, live and queued at every age, either filter wants the union has to want too.
+    // It can want more (a live single click from holds and queued single clicks), the filter of
+    // each engine then drops what it doesn't want
+    final Flic2ButtonFilter[] filters = { HOLDS_ONLY, LIVE_ONLY, RECENT_QUEUED,
+        new Flic2ButtonFilter(Flic2ButtonFilter.EVENT_UP_OR_DOWN, true, false, 0),
+        new Flic2ButtonFilter(0, false, false, 0) };
+    final long[] ages = { 0, 1000, 60000, 60001, 3600000 };
+    for (Flic2ButtonFilter first : filters) {
+      for (Flic2ButtonFilter second : filters) {
+        final Flic2ButtonFilter union = Flic2ButtonFilter.union(first, second);
+        assertTrue(!(first.isUpOrDownWanted() || second.isUpOrDownWanted()) || union.isUpOrDownWanted());
+        for (int type = 0; type < 3; ++type) {
+          for (int queued = 0; queued < 2; ++queued) {
+            for (long age : ages) {
+              final boolean isSingleClick = type == 0;
+              final boolean isDoubleClick = type == 1;
+              final boolean isHold = type == 2;
+              final boolean wasQueued = queued == 1;
+              final boolean isWanted = first.isClickWanted(isSingleClick, isDoubleClick, isHold, wasQueued, age)
+                  || second.isClickWanted(isSingleClick, isDoubleClick, isHold, wasQueued, age);
+              assertTrue(!isWanted || union.isClickWanted(isSingleClick, isDoubleClick, isHold, wasQueued, age));
+            }
+          }
+        }
+      }
+    }
+  }
+}
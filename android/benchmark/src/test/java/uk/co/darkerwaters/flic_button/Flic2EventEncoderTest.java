@@ -0,0 +1,95 @@
+package uk.co.darkerwaters.flic_button;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * the typed encoding is there to make less garbage per event than the JSON, so this counts
+ * the bytes this thread allocates encoding clicks each way. The snapshots are all built before
+ * counting, so only the encoding is counted, and every click is of a new snapshot (a new press)
+ * as it is on a real button
+ */
+public class Flic2EventEncoderTest {
+  private static final int WARMUP_CLICKS = 20000;
+  private static final int CLICKS = 10000;
+
+  private static final com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private static Flic2ButtonSnapshot[] presses(int count) {
+    final Flic2ButtonSnapshot[] snapshots = new Flic2ButtonSnapshot[count];
+    Flic2ButtonSnapshot snapshot = new Flic2ButtonSnapshot(1, "0000000000000000000000000000abcd",
+        "80:E4:DA:00:00:01", 1234567890L, "Kitchen \"light\" switch\r\n\\", "BD12-A34567", 2, 10, 87,
+        1700000000000L, 2.95f, 0);
+    for (int i = 0; i < count; ++i) {
+      snapshot = snapshot.withPressCount(snapshot.version + 1, snapshot.pressCount + 1);
+      snapshots[i] = snapshot;
+    }
+    return snapshots;
+  }
+
+  /*
+   * the bytes allocated (on average) encoding each click
+   */
+  private static long bytesPerClick(Flic2EventEncoder encoder) {
+    // run it enough first for the JIT to have done what it will
+    final Flic2ButtonSnapshot[] warmup = presses(WARMUP_CLICKS);
+    for (int i = 0; i < warmup.length; ++i) {
+      encoder.encodeClick(warmup[i], false, false, i, true, false, false);
+    }
+    final Flic2ButtonSnapshot[] snapshots = presses(CLICKS);
+    final Object[] encoded = new Object[CLICKS];
+    final long threadId = Thread.currentThread().getId();
+    final long startBytes = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < snapshots.length; ++i) {
+      // kept, so none of it can be optimised away
+      encoded[i] = encoder.encodeClick(snapshots[i], false, false, i, true, false, false);
+    }
+    final long bytes = threads.getThreadAllocatedBytes(threadId) - startBytes;
+    assertEquals(CLICKS, encoded.length);
+    return bytes / CLICKS;
+  }
+
+  @Test
+  public void typedClickAllocatesLessThanJson() {
+    final long jsonBytes = bytesPerClick(new Flic2EventEncoder(Flic2EventEncoder.ENCODING_JSON));
+    final long typedBytes = bytesPerClick(new Flic2EventEncoder(Flic2EventEncoder.ENCODING_TYPED));
+    System.out.println("bytes allocated per click, json: " + jsonBytes + ", typed: " + typedBytes);
+    // the JSON cleans each string with regular expressions and builds it all up as strings,
+    // the typed map is a few boxed primitives, so it should be well under half
+    assertTrue("typed " + typedBytes + " bytes per click, json " + jsonBytes, typedBytes * 2 < jsonBytes);
+  }
+
+  @Test
+  public void typedClickHasTheFieldsOfTheJson() {
+    final Flic2ButtonSnapshot snapshot = presses(1)[0];
+    final Object typed = new Flic2EventEncoder(Flic2EventEncoder.ENCODING_TYPED)
+        .encodeClick(snapshot, true, false, 1234567000L, false, false, true);
+    final Object json = new Flic2EventEncoder(Flic2EventEncoder.ENCODING_JSON)
+        .encodeClick(snapshot, true, false, 1234567000L, false, false, true);
+    assertTrue(typed instanceof Map);
+    assertTrue(json instanceof String);
+    final Map<?, ?> click = (Map<?, ?>) typed;
+    assertEquals(true, click.get("wasQueued"));
+    assertEquals(890L, click.get("clickAge"));
+    assertEquals(true, click.get("isHold"));
+    assertEquals(snapshot.pressCount, ((Map<?, ?>) click.get("button")).get("pressCount"));
+    assertTrue(((String) json).contains("\"clickAge\":890"));
+    assertTrue(((String) json).contains("\"isHold\":true"));
+  }
+
+  @Test
+  public void unchangedButtonIsEncodedOnce() {
+    // a click of a button that hasn't changed sends the button map it sent last time
+    final Flic2ButtonSnapshot snapshot = presses(1)[0];
+    final Flic2EventEncoder encoder = new Flic2EventEncoder(Flic2EventEncoder.ENCODING_TYPED);
+    final Map<?, ?> first = (Map<?, ?>) encoder.encodeClick(snapshot, false, false, 1, true, false, false);
+    final Map<?, ?> second = (Map<?, ?>) encoder.encodeClick(snapshot, false, false, 2, false, true, false);
+    assertTrue(first.get("button") == second.get("button"));
+  }
+}
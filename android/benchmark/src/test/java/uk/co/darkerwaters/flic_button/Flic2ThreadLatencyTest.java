@@ -0,0 +1,196 @@
+package uk.co.darkerwaters.flic_button;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * the latency of a simulated fleet's clicks while the UI thread is busy drawing frames, with the
+ * Flic 2 library on the main looper (everything waits for the UI thread) and on a thread of its
+ * own (only the hop to send them does). The time to encode a click is the time till the actions,
+ * the journal and the filters can run, so it is what a thread of its own should take the UI load
+ * out of. The events hop to the UI thread through the plugin's drain, many in one hop.
+ *
+ * the latencies depend on the machine, so they are reported, not asserted. Only what holds
+ * however loaded it is, that every click gets sent and the hop takes them in batches, is tested
+ */
+public class Flic2ThreadLatencyTest {
+  private static final int METHOD_FLIC2_CLICK = 103;
+
+  // each frame keeps the UI thread busy this long (ms) of the 16ms it has
+  private static final long FRAME_MS = 16;
+  private static final long FRAME_BUSY_MS = 12;
+  private static final long RUN_MS = 2000;
+
+  /*
+   * the latencies of one run
+   */
+  private static class Run {
+    final long[] encodedNs;
+    final long[] sentNs;
+    final int clicks;
+    final int hops;
+
+    Run(long[] encodedNs, long[] sentNs, int clicks, int hops) {
+      this.encodedNs = encodedNs;
+      this.sentNs = sentNs;
+      this.clicks = clicks;
+      this.hops = hops;
+    }
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.floor(fraction * sorted.length))];
+  }
+
+  private static void busy(long ms) {
+    final long untilNs = System.nanoTime() + ms * 1000000L;
+    while (System.nanoTime() < untilNs) {
+      Thread.yield();
+    }
+  }
+
+  /*
+   * run the simulated fleet with the UI thread drawing frames, the clicks are called back on
+   * the UI thread itself or on a Flic 2 thread of their own
+   */
+  private static Run run(boolean isFlicThread) throws InterruptedException {
+    final ExecutorService uiThread = Executors.newSingleThreadExecutor();
+    final ExecutorService flicThread = isFlicThread ? Executors.newSingleThreadExecutor() : uiThread;
+    final ScheduledExecutorService vsync = Executors.newSingleThreadScheduledExecutor();
+    final Flic2EventEncoder encoder = new Flic2EventEncoder(Flic2EventEncoder.ENCODING_TYPED);
+    final long[][] latencies = { new long[1 << 12], new long[1 << 12] };
+    final int[] counts = { 0, 0 };
+    final AtomicInteger hops = new AtomicInteger();
+    final AtomicInteger clicks = new AtomicInteger();
+
+    // the hop to the UI thread, as the plugin makes it to the platform thread
+    final Flic2EventDrain drain = new Flic2EventDrain(new Flic2EventLanes(0), new Flic2EventDrain.Poster() {
+      @Override
+      public void post(Runnable runnable) {
+        uiThread.execute(runnable);
+      }
+
+      @Override
+      public void postDelayed(Runnable runnable, long delayMs) {
+        vsync.schedule(() -> uiThread.execute(runnable), delayMs, TimeUnit.MILLISECONDS);
+      }
+
+      @Override
+      public void removeCallbacks(Runnable runnable) {
+        // the clicks are all live, so there is never a paced take to remove
+      }
+    }, events -> {
+      hops.incrementAndGet();
+      final long nowNs = System.nanoTime();
+      for (Flic2Event event : events) {
+        synchronized (latencies) {
+          if (counts[1] < latencies[1].length) {
+            latencies[1][counts[1]++] = nowNs - event.createdNs;
+          }
+        }
+      }
+    });
+    final Flic2ButtonCallback callback = new Flic2ButtonCallback() {
+      @Override
+      public void onPairedButtonFound(Flic2ButtonSnapshot button) {
+      }
+
+      @Override
+      public void onButtonFound(Flic2ButtonSnapshot button) {
+      }
+
+      @Override
+      public void onButtonConnected() {
+      }
+
+      @Override
+      public void onButtonDiscovered(String buttonAddress) {
+      }
+
+      @Override
+      public void onButtonScanningStarted() {
+      }
+
+      @Override
+      public void onButtonScanningStopped() {
+      }
+
+      @Override
+      public void onError(String error) {
+      }
+
+      @Override
+      public void onButtonClicked(Flic2ButtonSnapshot button, boolean wasQueued, boolean lastQueued, long timestamp,
+          boolean isSingleClick, boolean isDoubleClick, boolean isHold) {
+        // the simulator stamps the clicks with System.nanoTime() as it makes them
+        final Object data = encoder.encodeClick(button, wasQueued, lastQueued, timestamp, isSingleClick,
+            isDoubleClick, isHold);
+        final long encodedNs = System.nanoTime();
+        clicks.incrementAndGet();
+        synchronized (latencies) {
+          if (counts[0] < latencies[0].length) {
+            latencies[0][counts[0]++] = encodedNs - timestamp;
+          }
+        }
+        // on the main looper this is already on the UI thread, so it is sent straight away
+        drain.add(new Flic2Event(METHOD_FLIC2_CLICK, data, button.uuid, wasQueued, lastQueued, timestamp,
+            encodedNs), !isFlicThread);
+      }
+
+      @Override
+      public void onButtonUpOrDown(Flic2ButtonSnapshot button, boolean down, long timestamp) {
+      }
+    };
+
+    final Flic2Simulator.Config config = new Flic2Simulator.Config();
+    config.buttonCount = 20;
+    config.clicksPerSecond = 5.0;
+    final Flic2Simulator simulator = new Flic2Simulator(config, flicThread, callback);
+    vsync.scheduleAtFixedRate(() -> uiThread.execute(() -> busy(FRAME_BUSY_MS)), 0, FRAME_MS,
+        TimeUnit.MILLISECONDS);
+    simulator.start();
+    Thread.sleep(RUN_MS);
+    simulator.stop();
+    vsync.shutdown();
+    vsync.awaitTermination(1, TimeUnit.SECONDS);
+    flicThread.shutdown();
+    flicThread.awaitTermination(5, TimeUnit.SECONDS);
+    uiThread.shutdown();
+    uiThread.awaitTermination(5, TimeUnit.SECONDS);
+    synchronized (latencies) {
+      final long[] encodedNs = Arrays.copyOf(latencies[0], counts[0]);
+      final long[] sentNs = Arrays.copyOf(latencies[1], counts[1]);
+      Arrays.sort(encodedNs);
+      Arrays.sort(sentNs);
+      return new Run(encodedNs, sentNs, clicks.get(), hops.get());
+    }
+  }
+
+  @Test
+  public void flicThreadKeepsClicksOutOfTheUiLoad() throws InterruptedException {
+    final Run mainLooper = run(false);
+    final Run flicThread = run(true);
+    System.out.println(String.format("main looper, click to encoded (us): p50 %d, p99 %d, to sent p50 %d, p99 %d",
+        percentile(mainLooper.encodedNs, 0.5) / 1000, percentile(mainLooper.encodedNs, 0.99) / 1000,
+        percentile(mainLooper.sentNs, 0.5) / 1000, percentile(mainLooper.sentNs, 0.99) / 1000));
+    System.out.println(String.format("flic thread, click to encoded (us): p50 %d, p99 %d, to sent p50 %d, p99 %d,"
+            + " %d events in %d hops", percentile(flicThread.encodedNs, 0.5) / 1000,
+        percentile(flicThread.encodedNs, 0.99) / 1000, percentile(flicThread.sentNs, 0.5) / 1000,
+        percentile(flicThread.sentNs, 0.99) / 1000, flicThread.sentNs.length, flicThread.hops));
+    assertTrue("no clicks simulated", mainLooper.clicks > 0 && flicThread.clicks > 0);
+    // every click made it through the drain, however long the frames held it up
+    assertEquals(mainLooper.clicks, mainLooper.sentNs.length);
+    assertEquals(flicThread.clicks, flicThread.sentNs.length);
+    // and the hop to send them takes more than one event at a time when the UI thread is busy
+    assertTrue("the hop to the UI thread wasn't batched", flicThread.hops < flicThread.sentNs.length);
+  }
+}
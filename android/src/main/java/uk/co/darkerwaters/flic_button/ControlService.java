@@ -1,47 +1,134 @@
 package uk.co.darkerwaters.flic_button;
 
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.content.res.AssetManager;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import io.flutter.FlutterInjector;
 import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.embedding.engine.FlutterEngineCache;
 import io.flutter.embedding.engine.dart.DartExecutor;
+import io.flutter.embedding.engine.loader.FlutterLoader;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.view.FlutterCallbackInformation;
 
+/*
+ * runs the dart callback dispatcher in a headless flutter engine so button events can be handled
+ * while there is no UI. Starting an engine is slow, so there is only ever one, started on the
+ * first start command and kept (in the FlutterEngineCache) for every start after. Events can't
+ * be sent till the dispatcher has set its handler and tells us it's ready, so they wait till then
+ * and are sent in batches, the next batch going when dart has handled the last. Everything static
+ * in here is only touched on the main thread (other than the volatile flags).
+ */
 public class ControlService extends Service {
     public static final String CALLBACK_HANDLE_KEY = "FLIC_BACKGROUND_CALLBACK_HANDLE_KEY";
     public static final String CALLBACK_DISPATCHER_HANDLE_KEY = "FLIC_BACKGROUND_DISPATCH_CALLBACK_HANDLE_KEY";
 
-    private MethodChannel mBackgroundChannel;
+    public static final String backgroundChannelName = "flic2_background_channel";
+    public static final String engineCacheKey = "flic2_background_engine";
+    // called by the dispatcher once it is listening
+    public static final String methodNameInitialized = "initialized";
+    // called on the dispatcher with the callback handle and a list of events
+    public static final String methodNameCallbackBatch = "callListenerBatch";
 
-    @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        long callbackDispatcherHandle = intent.getLongExtra(CALLBACK_DISPATCHER_HANDLE_KEY, 0);
+    // the most events to send to dart in one go
+    private static final int MAX_BATCH_SIZE = 64;
 
-        AssetManager assetManager = getApplicationContext().getAssets();
-        String appBundlePath = FlutterInjector.instance().flutterLoader().findAppBundlePath();
-        FlutterCallbackInformation callbackInformation = FlutterCallbackInformation.lookupCallbackInformation(callbackDispatcherHandle);
+    // the most events to hold waiting for dart, the oldest are dropped to make room (as the
+    // event stream does) so a dispatcher that never says it's ready can't use all the memory
+    private static final int MAX_PENDING = 1024;
 
-        FlutterEngine flutterEngine = new FlutterEngine(this.getApplicationContext());
-        flutterEngine.getDartExecutor().executeDartCallback(
-                new DartExecutor.DartCallback(assetManager, appBundlePath, callbackInformation)
-        );
+    /*
+     * an event waiting to go to dart, with when it happened so we know how long it took
+     */
+    private static class PendingEvent {
+        final Map<String, Object> arguments;
+        final long createdMs;
+
+        PendingEvent(Map<String, Object> arguments, long createdMs) {
+            this.arguments = arguments;
+            this.createdMs = createdMs;
+        }
+    }
+
+    /*
+     * the time from events happening to dart having handled them
+     */
+    private static class LatencyStats {
+        long count = 0;
+        long totalMs = 0;
+        long maxMs = 0;
+
+        void add(long latencyMs) {
+            count++;
+            totalMs += latencyMs;
+            maxMs = Math.max(maxMs, latencyMs);
+        }
+
+        Map<String, Object> toMap() {
+            final Map<String, Object> map = new HashMap<>();
+            map.put("count", count);
+            map.put("averageMs", count == 0 ? 0 : totalMs / count);
+            map.put("maxMs", maxMs);
+            return map;
+        }
+    }
 
-        long callbackHandle = intent.getLongExtra(CALLBACK_HANDLE_KEY, 0);
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
 
-        final ArrayList<Object> l = new ArrayList<Object>();
-        l.add(callbackHandle);
-        l.add("Hello, I am transferred from java to dart world");
+    private static MethodChannel sBackgroundChannel = null;
 
-        mBackgroundChannel.invokeMethod("", l);
+    // the dart function to call with the events, zero till a start command tells us
+    private static volatile long sCallbackHandle = 0;
 
+    // is the engine started, so events can be dispatched to it
+    private static volatile boolean sIsEngineRunning = false;
+
+    // has the dispatcher told us it's listening
+    private static boolean sIsReady = false;
+
+    // is a batch with dart now, we send the next when it is done
+    private static boolean sIsSending = false;
+
+    // the events to send, from before dart is ready or while a batch is with it
+    private static final ArrayDeque<PendingEvent> sPending = new ArrayDeque<>();
+
+    // the events dropped because too many were waiting
+    private static long sDropped = 0;
+
+    // when the engine was started, and how long it took dart to be ready
+    private static long sEngineStartedMs = 0;
+    private static long sEngineReadyMs = 0;
+
+    // events that waited for the engine to start, and those sent to an engine already running
+    private static final LatencyStats sColdLatency = new LatencyStats();
+    private static final LatencyStats sWarmLatency = new LatencyStats();
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (null != intent) {
+            final long callbackDispatcherHandle = intent.getLongExtra(CALLBACK_DISPATCHER_HANDLE_KEY, 0);
+            final long callbackHandle = intent.getLongExtra(CALLBACK_HANDLE_KEY, 0);
+            if (callbackHandle != 0) {
+                sCallbackHandle = callbackHandle;
+            }
+            // start the engine if this is the first time, else the one we have is ready to go
+            warmUp(getApplicationContext(), callbackDispatcherHandle);
+        }
         return START_STICKY;
     }
 
@@ -51,4 +138,141 @@ public class ControlService extends Service {
         return null;
     }
 
+    /*
+     * start the headless engine running the dispatcher, if it isn't already
+     */
+    public static void warmUp(Context context, long callbackDispatcherHandle) {
+        if (null != FlutterEngineCache.getInstance().get(engineCacheKey) || callbackDispatcherHandle == 0) {
+            // already running (or we don't have what we need to start it)
+            return;
+        }
+        final FlutterCallbackInformation callbackInformation =
+                FlutterCallbackInformation.lookupCallbackInformation(callbackDispatcherHandle);
+        if (null == callbackInformation) {
+            return;
+        }
+        sEngineStartedMs = SystemClock.elapsedRealtime();
+        sEngineReadyMs = 0;
+        sIsReady = false;
+        sIsSending = false;
+
+        final FlutterEngine flutterEngine = new FlutterEngine(context.getApplicationContext());
+        // listen for the dispatcher saying it is ready before we run it, so we can't miss it
+        sBackgroundChannel = new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(),
+                backgroundChannelName);
+        sBackgroundChannel.setMethodCallHandler((call, result) -> {
+            if (methodNameInitialized.equals(call.method)) {
+                sIsReady = true;
+                sEngineReadyMs = SystemClock.elapsedRealtime() - sEngineStartedMs;
+                result.success(true);
+                // send everything that arrived while it was starting
+                sendNextBatch();
+            } else {
+                result.notImplemented();
+            }
+        });
+
+        final FlutterLoader flutterLoader = FlutterInjector.instance().flutterLoader();
+        if (!flutterLoader.initialized()) {
+            // started with no UI engine, so flutter hasn't been loaded yet
+            flutterLoader.startInitialization(context.getApplicationContext());
+            flutterLoader.ensureInitializationComplete(context.getApplicationContext(), null);
+        }
+        final AssetManager assetManager = context.getApplicationContext().getAssets();
+        final String appBundlePath = flutterLoader.findAppBundlePath();
+        flutterEngine.getDartExecutor().executeDartCallback(
+                new DartExecutor.DartCallback(assetManager, appBundlePath, callbackInformation));
+        FlutterEngineCache.getInstance().put(engineCacheKey, flutterEngine);
+        sIsEngineRunning = true;
+    }
+
+    /*
+     * is there a background callback to send events to
+     */
+    public static boolean isDispatching() {
+        return sCallbackHandle != 0 && sIsEngineRunning;
+    }
+
+    /*
+     * send the event to the background dart callback (from any thread), as soon as it's ready for it
+     */
+    public static void dispatchEvent(int methodId, Object data) {
+        final long createdMs = SystemClock.elapsedRealtime();
+        final Map<String, Object> arguments = new HashMap<>();
+        arguments.put("method", methodId);
+        arguments.put("data", data);
+        mainHandler.post(() -> {
+            if (sPending.size() >= MAX_PENDING) {
+                // no room, the oldest has waited longest and is the least use now
+                sPending.pollFirst();
+                ++sDropped;
+            }
+            sPending.addLast(new PendingEvent(arguments, createdMs));
+            sendNextBatch();
+        });
+    }
+
+    /*
+     * how long the engine took to start, and the time from events to dart handling them
+     */
+    public static Map<String, Object> getStats() {
+        final Map<String, Object> stats = new HashMap<>();
+        stats.put("engineRunning", sIsEngineRunning);
+        stats.put("ready", sIsReady);
+        stats.put("engineStartMs", sEngineReadyMs);
+        stats.put("pending", sPending.size());
+        stats.put("dropped", sDropped);
+        stats.put("cold", sColdLatency.toMap());
+        stats.put("warm", sWarmLatency.toMap());
+        return stats;
+    }
+
+    private static void sendNextBatch() {
+        if (!sIsReady || sIsSending || sPending.isEmpty() || null == sBackgroundChannel || sCallbackHandle == 0) {
+            // not ready, or already sending, we'll be back when that is done
+            return;
+        }
+        final List<PendingEvent> batch = new ArrayList<>(Math.min(MAX_BATCH_SIZE, sPending.size()));
+        while (batch.size() < MAX_BATCH_SIZE && !sPending.isEmpty()) {
+            batch.add(sPending.pollFirst());
+        }
+        final List<Object> events = new ArrayList<>(batch.size());
+        for (PendingEvent event : batch) {
+            events.add(event.arguments);
+        }
+        final List<Object> args = new ArrayList<>();
+        args.add(sCallbackHandle);
+        args.add(events);
+        sIsSending = true;
+        sBackgroundChannel.invokeMethod(methodNameCallbackBatch, args, new MethodChannel.Result() {
+            @Override
+            public void success(@Nullable Object result) {
+                onBatchDone(batch);
+            }
+
+            @Override
+            public void error(@NonNull String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+                onBatchDone(batch);
+            }
+
+            @Override
+            public void notImplemented() {
+                onBatchDone(batch);
+            }
+        });
+    }
+
+    private static void onBatchDone(List<PendingEvent> batch) {
+        final long nowMs = SystemClock.elapsedRealtime();
+        for (PendingEvent event : batch) {
+            // those from before the engine was ready had to wait for it to start
+            if (event.createdMs < sEngineStartedMs + sEngineReadyMs) {
+                sColdLatency.add(nowMs - event.createdMs);
+            } else {
+                sWarmLatency.add(nowMs - event.createdMs);
+            }
+        }
+        sIsSending = false;
+        sendNextBatch();
+    }
 }
@@ -0,0 +1,428 @@
+package uk.co.darkerwaters.flic_button;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * actions run natively, straight from the button listener on the Flic 2 thread, so a click can
+ * do something without waiting for flutter (which may be busy, or not running at all). Flutter
+ * sets the rules, each matching the clicks (or ups and downs) of a button (or of any button) to
+ * one of a few built in actions: broadcast an intent, write a line to a local socket, or count
+ * it. A rule can also stop the event being sent on to flutter.
+ *
+ * the rules are replaced all at once, so the listener reads them with no locking. The counters
+ * can be read from any thread. A line for a socket is formatted on the Flic 2 thread into a record
+ * made up front, and written (connecting first, when it needs to) on a thread of its own, so a
+ * socket that is slow to connect or full can't hold the buttons up. The records that don't fit
+ * in the queue while it can't keep up are dropped.
+ */
+public class Flic2ActionEngine {
+  public static final int ACTION_BROADCAST = 0;
+  public static final int ACTION_SOCKET = 1;
+  public static final int ACTION_COUNTER = 2;
+
+  public static final String KEY_UUID = "uuid";
+  public static final String KEY_EVENTS = "events";
+  public static final String KEY_QUEUED = "queued";
+  public static final String KEY_ACTION = "action";
+  public static final String KEY_TARGET = "target";
+  public static final String KEY_PACKAGE = "package";
+  public static final String KEY_FORWARD = "forward";
+
+  // the extras of the intent broadcast
+  public static final String EXTRA_UUID = "uuid";
+  public static final String EXTRA_BD_ADDR = "bdAddr";
+  public static final String EXTRA_EVENT = "event";
+  public static final String EXTRA_TIMESTAMP = "timestamp";
+  public static final String EXTRA_WAS_QUEUED = "wasQueued";
+
+  /*
+   * a rule, for the events of a button (or any button when the UUID is null)
+   */
+  public static class Rule {
+    public final String uuid;
+    // the Flic2ButtonFilter.EVENT_... types that fire this rule
+    public final int events;
+    // fire for the clicks a button queued while out of range, not just those live
+    public final boolean queued;
+    public final int action;
+    // the intent action, socket name or counter name
+    public final String target;
+    // the package the intent is limited to, null for any
+    public final String targetPackage;
+    // send the event on to flutter after
+    public final boolean forward;
+
+    // how many times this rule fired, and failed (a line for a socket dropped, or not written)
+    final AtomicLong fired = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+
+    public Rule(String uuid, int events, boolean queued, int action, String target, String targetPackage,
+        boolean forward) {
+      this.uuid = uuid;
+      this.events = events;
+      this.queued = queued;
+      this.action = action;
+      this.target = target;
+      this.targetPackage = targetPackage;
+      this.forward = forward;
+    }
+
+    public static Rule fromMap(Map<?, ?> map) {
+      final Object uuid = map.get(KEY_UUID);
+      final Object events = map.get(KEY_EVENTS);
+      final Object queued = map.get(KEY_QUEUED);
+      final Object action = map.get(KEY_ACTION);
+      final Object target = map.get(KEY_TARGET);
+      final Object targetPackage = map.get(KEY_PACKAGE);
+      final Object forward = map.get(KEY_FORWARD);
+      if (!(action instanceof Number) || !(target instanceof String)) {
+        return null;
+      }
+      return new Rule(uuid instanceof String ? (String) uuid : null,
+          events instanceof Number ? ((Number) events).intValue() : Flic2ButtonFilter.EVENT_ALL,
+          queued instanceof Boolean && (Boolean) queued,
+          ((Number) action).intValue(),
+          (String) target,
+          targetPackage instanceof String ? (String) targetPackage : null,
+          !(forward instanceof Boolean) || (Boolean) forward);
+    }
+  }
+
+  // the most socket records waiting to be written, those after are dropped
+  private static final int SOCKET_QUEUE_SIZE = 256;
+  // the longest line written to a socket, the UUID is cut short to fit
+  private static final int SOCKET_RECORD_SIZE = 96;
+  // the most the rest of the line can take, the event, the timestamp, if queued and the commas
+  private static final int SOCKET_RECORD_TAIL = 36;
+
+  /*
+   * the lines for a socket, each formatted on the Flic 2 thread into the next free record and
+   * written in order from the socket thread
+   */
+  private static class SocketWriter implements Runnable {
+    final String name;
+    final Handler handler;
+    final byte[][] records = new byte[SOCKET_QUEUE_SIZE][SOCKET_RECORD_SIZE];
+    final int[] lengths = new int[SOCKET_QUEUE_SIZE];
+    final Rule[] rules = new Rule[SOCKET_QUEUE_SIZE];
+
+    // the first record waiting to be written and how many there are, guarded by this
+    int first = 0;
+    int count = 0;
+
+    // connected when there is something to write. Only used on the socket thread
+    LocalSocket socket = null;
+
+    SocketWriter(String name, Handler handler) {
+      this.name = name;
+      this.handler = handler;
+    }
+
+    /*
+     * format the line into the next record, false if they are all waiting to be written
+     */
+    synchronized boolean offer(Rule rule, String uuid, int event, long timestamp, boolean wasQueued) {
+      if (count == SOCKET_QUEUE_SIZE) {
+        return false;
+      }
+      final int slot = (first + count) % SOCKET_QUEUE_SIZE;
+      lengths[slot] = format(records[slot], uuid, event, timestamp, wasQueued);
+      rules[slot] = rule;
+      if (++count == 1) {
+        // the first waiting, the rest are written by the same run
+        handler.post(this);
+      }
+      return true;
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        final int slot;
+        synchronized (this) {
+          if (count == 0) {
+            return;
+          }
+          slot = first;
+        }
+        // the record is ours till we let it go below, so it is written without the lock
+        write(slot);
+        synchronized (this) {
+          rules[slot] = null;
+          first = (first + 1) % SOCKET_QUEUE_SIZE;
+          --count;
+        }
+      }
+    }
+
+    private void write(int slot) {
+      try {
+        if (null == socket) {
+          socket = new LocalSocket();
+          socket.connect(new LocalSocketAddress(name));
+        }
+        final OutputStream stream = socket.getOutputStream();
+        stream.write(records[slot], 0, lengths[slot]);
+        stream.flush();
+      } catch (IOException e) {
+        // the other end has gone (or isn't there), connect again for the next
+        closeQuietly(socket);
+        socket = null;
+        rules[slot].failed.incrementAndGet();
+      }
+    }
+  }
+
+  private static final Rule[] NO_RULES = new Rule[0];
+
+  private final Context context;
+
+  // the rules for each button, by UUID, and those for any button
+  private volatile Map<String, Rule[]> buttonRules = new HashMap<>();
+  private volatile Rule[] anyButtonRules = NO_RULES;
+  private volatile List<Rule> allRules = new ArrayList<>();
+
+  private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+  // the sockets written to, by name, and the thread they are written on, started for the first.
+  // Only used on the Flic 2 thread
+  private final Map<String, SocketWriter> sockets = new HashMap<>();
+  private HandlerThread socketThread = null;
+  private Handler socketHandler = null;
+
+  public Flic2ActionEngine(Context context) {
+    this.context = context;
+  }
+
+  /*
+   * replace all the rules
+   */
+  public void setRules(List<Rule> rules) {
+    final Map<String, List<Rule>> byUuid = new HashMap<>();
+    final List<Rule> anyButton = new ArrayList<>();
+    for (Rule rule : rules) {
+      if (null == rule.uuid) {
+        anyButton.add(rule);
+      } else {
+        List<Rule> forButton = byUuid.get(rule.uuid);
+        if (null == forButton) {
+          forButton = new ArrayList<>();
+          byUuid.put(rule.uuid, forButton);
+        }
+        forButton.add(rule);
+      }
+    }
+    final Map<String, Rule[]> newButtonRules = new HashMap<>();
+    for (Map.Entry<String, List<Rule>> entry : byUuid.entrySet()) {
+      newButtonRules.put(entry.getKey(), entry.getValue().toArray(NO_RULES));
+    }
+    buttonRules = newButtonRules;
+    anyButtonRules = anyButton.toArray(NO_RULES);
+    allRules = new ArrayList<>(rules);
+  }
+
+  public boolean hasRules() {
+    return !allRules.isEmpty();
+  }
+
+  /*
+   * run the actions of the rules that match the event, returning if it should still be sent
+   * to flutter (it is unless a rule that fired says not). The event is one of the
+   * Flic2ButtonFilter.EVENT_... types. Called on the Flic 2 thread
+   */
+  public boolean onEvent(String uuid, String bdAddr, int event, boolean wasQueued, long timestamp) {
+    boolean isForwarding = true;
+    final Rule[] forButton = buttonRules.get(uuid);
+    if (null != forButton) {
+      isForwarding = runRules(forButton, uuid, bdAddr, event, wasQueued, timestamp);
+    }
+    return runRules(anyButtonRules, uuid, bdAddr, event, wasQueued, timestamp) && isForwarding;
+  }
+
+  /*
+   * the counts of the counter actions, by name
+   */
+  public Map<String, Object> getCounters(boolean isReset) {
+    final Map<String, Object> result = new HashMap<>();
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      result.put(entry.getKey(), isReset ? entry.getValue().getAndSet(0) : entry.getValue().get());
+    }
+    return result;
+  }
+
+  /*
+   * how many times each rule fired, and failed, in the order they were set
+   */
+  public List<Object> getRuleStats() {
+    final List<Object> result = new ArrayList<>();
+    for (Rule rule : allRules) {
+      final Map<String, Object> stats = new HashMap<>();
+      stats.put(KEY_UUID, rule.uuid);
+      stats.put(KEY_ACTION, rule.action);
+      stats.put(KEY_TARGET, rule.target);
+      stats.put("fired", rule.fired.get());
+      stats.put("failed", rule.failed.get());
+      result.add(stats);
+    }
+    return result;
+  }
+
+  /*
+   * close the sockets once what is waiting is written, and stop their thread. Called on the
+   * Flic 2 thread
+   */
+  public void close() {
+    if (null == socketThread) {
+      return;
+    }
+    final List<SocketWriter> writers = new ArrayList<>(sockets.values());
+    sockets.clear();
+    socketHandler.post(() -> {
+      for (SocketWriter writer : writers) {
+        closeQuietly(writer.socket);
+        writer.socket = null;
+      }
+    });
+    socketThread.quitSafely();
+    socketThread = null;
+    socketHandler = null;
+  }
+
+  private boolean runRules(Rule[] rules, String uuid, String bdAddr, int event, boolean wasQueued,
+      long timestamp) {
+    boolean isForwarding = true;
+    for (Rule rule : rules) {
+      if ((rule.events & event) == 0 || (wasQueued && !rule.queued)) {
+        continue;
+      }
+      rule.fired.incrementAndGet();
+      if (!runAction(rule, uuid, bdAddr, event, wasQueued, timestamp)) {
+        rule.failed.incrementAndGet();
+      }
+      isForwarding &= rule.forward;
+    }
+    return isForwarding;
+  }
+
+  private boolean runAction(Rule rule, String uuid, String bdAddr, int event, boolean wasQueued, long timestamp) {
+    switch (rule.action) {
+      case ACTION_BROADCAST:
+        return broadcast(rule, uuid, bdAddr, event, wasQueued, timestamp);
+      case ACTION_SOCKET:
+        return writeToSocket(rule, uuid, event, wasQueued, timestamp);
+      case ACTION_COUNTER:
+        increment(rule.target);
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private boolean broadcast(Rule rule, String uuid, String bdAddr, int event, boolean wasQueued, long timestamp) {
+    try {
+      final Intent intent = new Intent(rule.target);
+      if (null != rule.targetPackage) {
+        intent.setPackage(rule.targetPackage);
+      }
+      intent.putExtra(EXTRA_UUID, uuid);
+      intent.putExtra(EXTRA_BD_ADDR, bdAddr);
+      intent.putExtra(EXTRA_EVENT, event);
+      intent.putExtra(EXTRA_TIMESTAMP, timestamp);
+      intent.putExtra(EXTRA_WAS_QUEUED, wasQueued);
+      context.sendBroadcast(intent);
+      return true;
+    } catch (Throwable e) {
+      return false;
+    }
+  }
+
+  private boolean writeToSocket(Rule rule, String uuid, int event, boolean wasQueued, long timestamp) {
+    SocketWriter writer = sockets.get(rule.target);
+    if (null == writer) {
+      if (null == socketThread) {
+        socketThread = new HandlerThread("Flic2Sockets");
+        socketThread.start();
+        socketHandler = new Handler(socketThread.getLooper());
+      }
+      writer = new SocketWriter(rule.target, socketHandler);
+      sockets.put(rule.target, writer);
+    }
+    // one failing to be written is counted when it is
+    return writer.offer(rule, uuid, event, timestamp, wasQueued);
+  }
+
+  /*
+   * the line of the event, "uuid,event,timestamp,queued" (queued as 1 or 0), put in the record
+   * as ASCII, returning its length
+   */
+  private static int format(byte[] record, String uuid, int event, long timestamp, boolean wasQueued) {
+    final String id = String.valueOf(uuid);
+    final int idLength = Math.min(id.length(), record.length - SOCKET_RECORD_TAIL);
+    int length = 0;
+    for (int i = 0; i < idLength; ++i) {
+      record[length++] = (byte) id.charAt(i);
+    }
+    record[length++] = ',';
+    length = putDecimal(record, length, event);
+    record[length++] = ',';
+    length = putDecimal(record, length, timestamp);
+    record[length++] = ',';
+    record[length++] = (byte) (wasQueued ? '1' : '0');
+    record[length++] = '\n';
+    return length;
+  }
+
+  private static int putDecimal(byte[] record, int offset, long value) {
+    // worked as a negative number, so the smallest long has its digits too
+    if (value < 0) {
+      record[offset++] = '-';
+    } else {
+      value = -value;
+    }
+    int digits = 1;
+    for (long rest = value / 10; rest != 0; rest /= 10) {
+      ++digits;
+    }
+    for (int i = offset + digits - 1; i >= offset; --i) {
+      record[i] = (byte) ('0' - value % 10);
+      value /= 10;
+    }
+    return offset + digits;
+  }
+
+  private void increment(String name) {
+    AtomicLong counter = counters.get(name);
+    if (null == counter) {
+      final AtomicLong added = new AtomicLong();
+      counter = counters.putIfAbsent(name, added);
+      if (null == counter) {
+        counter = added;
+      }
+    }
+    counter.incrementAndGet();
+  }
+
+  private static void closeQuietly(LocalSocket socket) {
+    if (null != socket) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // closing anyway
+      }
+    }
+  }
+}
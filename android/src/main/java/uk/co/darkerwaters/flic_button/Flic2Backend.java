@@ -0,0 +1,31 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.util.List;
+
+import io.flic.flic2libandroid.Flic2Button;
+import io.flic.flic2libandroid.Flic2ScanCallback;
+
+/*
+ * what the controller needs from the Flic 2 library to find, scan for and forget buttons, so
+ * the controller (and the continuous scanner) ask this rather than calling the Flic2Manager
+ * singleton. The buttons are still those of the library, this keeps the manager out of the
+ * controller, it isn't a way to run it without one (the simulator drives the pipeline after
+ * the controller instead). Called on the Flic 2 thread.
+ */
+public interface Flic2Backend {
+  /*
+   * the buttons paired, including those paired before this process started
+   */
+  List<Flic2Button> getButtons();
+
+  /*
+   * the paired button with this bluetooth address, null if there isn't one
+   */
+  Flic2Button getButtonByBdAddr(String bdAddr);
+
+  void startScan(Flic2ScanCallback callback);
+
+  void stopScan();
+
+  void forgetButton(Flic2Button button);
+}
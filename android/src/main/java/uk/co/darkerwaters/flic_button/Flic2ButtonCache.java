@@ -0,0 +1,125 @@
+package uk.co.darkerwaters.flic_button;
+
+import android.os.Handler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * the buttons as they were last known, kept in a file so flutter can be given them the moment
+ * it starts, before the Flic 2 library is ready and without reading every button from it. The
+ * buttons from the file are stale of course, so once the controller is ready they are checked
+ * against the buttons it has, one button each time round the looper so the Flic 2 thread isn't
+ * held up by the whole fleet, and the buttons that were added, changed or removed are passed on.
+ *
+ * the file is the magic, the version and the count then each button's snapshot. It is written
+ * to a temporary file that then replaces the last, so a write cut short leaves the old one.
+ */
+public class Flic2ButtonCache {
+  public static final int MAGIC = 0x46324243; // "F2BC"
+  public static final int VERSION = 1;
+
+  /*
+   * to be told how the buttons of the cache compared to those of the controller
+   */
+  public interface Listener {
+    void onReconciled(List<Flic2ButtonSnapshot> added, List<Flic2ButtonSnapshot> changed, List<String> removed);
+  }
+
+  private final File file;
+
+  public Flic2ButtonCache(File file) {
+    this.file = file;
+  }
+
+  /*
+   * the buttons in the file, none if there isn't one (or it can't be read)
+   */
+  public List<Flic2ButtonSnapshot> load() {
+    final List<Flic2ButtonSnapshot> buttons = new ArrayList<>();
+    if (!file.exists()) {
+      return buttons;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        // not a cache this can read, it will be replaced the next time it is saved
+        return buttons;
+      }
+      final int count = in.readInt();
+      for (int i = 0; i < count; ++i) {
+        buttons.add(Flic2ButtonSnapshot.readFrom(in));
+      }
+    } catch (IOException e) {
+      // a broken cache is no cache
+      buttons.clear();
+    }
+    return buttons;
+  }
+
+  /*
+   * replace the buttons in the file with these, returning if they were written
+   */
+  public boolean save(Collection<Flic2ButtonSnapshot> buttons) {
+    final File temp = new File(file.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(buttons.size());
+      for (Flic2ButtonSnapshot button : buttons) {
+        button.writeTo(out);
+      }
+    } catch (IOException e) {
+      temp.delete();
+      return false;
+    }
+    return temp.renameTo(file);
+  }
+
+  /*
+   * check the cached buttons against those of the controller, on the thread of the handler
+   * (the Flic 2 thread), reading one button from the library each time round. The listener is
+   * told the differences at the end
+   */
+  public static void reconcile(final Flic2Controller controller, final Handler handler,
+      List<Flic2ButtonSnapshot> cached, final Listener listener) {
+    final Map<String, Flic2ButtonSnapshot> remaining = new LinkedHashMap<>();
+    for (Flic2ButtonSnapshot button : cached) {
+      remaining.put(button.uuid, button);
+    }
+    final Iterator<Flic2ButtonRegistry.Entry> entries =
+        new ArrayList<>(controller.getRegistry().entries()).iterator();
+    final List<Flic2ButtonSnapshot> added = new ArrayList<>();
+    final List<Flic2ButtonSnapshot> changed = new ArrayList<>();
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (entries.hasNext()) {
+          final Flic2ButtonRegistry.Entry entry = entries.next();
+          final Flic2ButtonSnapshot live = controller.refreshSnapshot(entry.button);
+          final Flic2ButtonSnapshot was = remaining.remove(entry.uuid);
+          if (null == was) {
+            added.add(live);
+          } else if (!live.isSameData(was)) {
+            changed.add(live);
+          }
+          handler.post(this);
+        } else {
+          // what is left in the cache the controller doesn't have any more
+          listener.onReconciled(added, changed, new ArrayList<>(remaining.keySet()));
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,33 @@
+package uk.co.darkerwaters.flic_button;
+
+/*
+ * the events buttons can cause, as the controller (or the simulator) passes them on
+ */
+public interface Flic2ButtonCallback {
+  void onPairedButtonFound(Flic2ButtonSnapshot button);
+
+  void onButtonFound(Flic2ButtonSnapshot button);
+
+  void onButtonConnected();
+
+  void onButtonDiscovered(String buttonAddress);
+
+  void onButtonScanningStarted();
+
+  void onButtonScanningStopped();
+
+  void onError(String error);
+
+  /*
+   * a button has been clicked, single, double or long (hold) click most
+   * interestingly
+   */
+  void onButtonClicked(Flic2ButtonSnapshot button, boolean wasQueued, boolean lastQueued, long timestamp,
+      boolean isSingleClick, boolean isDoubleClick, boolean isHold);
+
+  /*
+   * a button has been pressed, or released (only when live connected will this
+   * work)
+   */
+  void onButtonUpOrDown(Flic2ButtonSnapshot button, boolean down, long timestamp);
+}
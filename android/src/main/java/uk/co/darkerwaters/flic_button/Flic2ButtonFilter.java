@@ -0,0 +1,96 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.util.Map;
+
+/*
+ * the events of a button that flutter wants to hear about, set as it starts listening to the
+ * button. The controller checks this before it does anything else with an event, so those not
+ * wanted are never encoded or sent.
+ */
+public class Flic2ButtonFilter {
+  public static final int EVENT_SINGLE_CLICK = 1;
+  public static final int EVENT_DOUBLE_CLICK = 1 << 1;
+  public static final int EVENT_HOLD = 1 << 2;
+  public static final int EVENT_UP_OR_DOWN = 1 << 3;
+  public static final int EVENT_ALL = EVENT_SINGLE_CLICK | EVENT_DOUBLE_CLICK | EVENT_HOLD | EVENT_UP_OR_DOWN;
+
+  public static final String KEY_EVENTS = "events";
+  public static final String KEY_LIVE = "live";
+  public static final String KEY_QUEUED = "queued";
+  public static final String KEY_MAX_QUEUED_AGE_MS = "maxQueuedAgeMs";
+
+  // the EVENT_... types wanted
+  public final int events;
+
+  // are the events as they happen wanted, and those the button queued while out of range
+  public final boolean live;
+  public final boolean queued;
+
+  // the oldest (ms) a queued click can be and still be wanted, zero for any age
+  public final long maxQueuedAgeMs;
+
+  public Flic2ButtonFilter(int events, boolean live, boolean queued, long maxQueuedAgeMs) {
+    this.events = events;
+    this.live = live;
+    this.queued = queued;
+    this.maxQueuedAgeMs = maxQueuedAgeMs;
+  }
+
+  /*
+   * the filter from the map passed from flutter, anything missing is wanted
+   */
+  public static Flic2ButtonFilter fromMap(Map<?, ?> map) {
+    final Object events = map.get(KEY_EVENTS);
+    final Object live = map.get(KEY_LIVE);
+    final Object queued = map.get(KEY_QUEUED);
+    final Object maxQueuedAgeMs = map.get(KEY_MAX_QUEUED_AGE_MS);
+    return new Flic2ButtonFilter(
+        events instanceof Number ? ((Number) events).intValue() : EVENT_ALL,
+        !(live instanceof Boolean) || (Boolean) live,
+        !(queued instanceof Boolean) || (Boolean) queued,
+        maxQueuedAgeMs instanceof Number ? ((Number) maxQueuedAgeMs).longValue() : 0);
+  }
+
+  /*
+   * a filter wanting every event either filter wants, null (everything) if either is null
+   */
+  public static Flic2ButtonFilter union(Flic2ButtonFilter first, Flic2ButtonFilter second) {
+    if (null == first || null == second) {
+      return null;
+    }
+    final long maxQueuedAgeMs;
+    if (!first.queued || !second.queued) {
+      // the age of one not wanting queued clicks at all doesn't matter
+      maxQueuedAgeMs = first.queued ? first.maxQueuedAgeMs : second.maxQueuedAgeMs;
+    } else if (first.maxQueuedAgeMs <= 0 || second.maxQueuedAgeMs <= 0) {
+      maxQueuedAgeMs = 0;
+    } else {
+      maxQueuedAgeMs = Math.max(first.maxQueuedAgeMs, second.maxQueuedAgeMs);
+    }
+    return new Flic2ButtonFilter(first.events | second.events, first.live || second.live,
+        first.queued || second.queued, maxQueuedAgeMs);
+  }
+
+  /*
+   * is this click wanted, the age is how long ago (ms) a queued click happened
+   */
+  public boolean isClickWanted(boolean isSingleClick, boolean isDoubleClick, boolean isHold, boolean wasQueued,
+      long clickAgeMs) {
+    final int type = isHold ? EVENT_HOLD
+        : (isDoubleClick ? EVENT_DOUBLE_CLICK : (isSingleClick ? EVENT_SINGLE_CLICK : 0));
+    if ((events & type) == 0) {
+      return false;
+    } else if (wasQueued) {
+      return queued && (maxQueuedAgeMs <= 0 || clickAgeMs <= maxQueuedAgeMs);
+    } else {
+      return live;
+    }
+  }
+
+  /*
+   * is an up / down wanted (these are only ever live)
+   */
+  public boolean isUpOrDownWanted() {
+    return live && (events & EVENT_UP_OR_DOWN) != 0;
+  }
+}
@@ -0,0 +1,133 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.flic.flic2libandroid.Flic2Button;
+
+/*
+ * the buttons the controller knows about, found by UUID or by bluetooth address without
+ * locking. This is changed as buttons are scanned and forgotten (on the Flic 2 thread) and
+ * read from any thread, so lookups never have to go back to the Flic2Manager or look through
+ * all the buttons to find the one wanted.
+ */
+public class Flic2ButtonRegistry {
+  /*
+   * a button we know about, with the latest snapshot of its data
+   */
+  public static class Entry {
+    public final Flic2Button button;
+    public final String uuid;
+    public final String bdAddr;
+
+    // the latest snapshot of the button, null till first built
+    volatile Flic2ButtonSnapshot snapshot;
+
+    // when this button was last clicked (elapsed realtime ms), zero if never
+    volatile long lastClickedMs = 0;
+
+    // the events of this button wanted, null for all of them
+    volatile Flic2ButtonFilter filter = null;
+
+    // the fleet version when this button was added, zero till the controller sets it
+    volatile long addedVersion = 0;
+
+    // the slot of this button in the controller's stats, -1 till it has one
+    volatile int statsSlot = -1;
+
+    Entry(Flic2Button button, String uuid, String bdAddr, Flic2ButtonSnapshot snapshot) {
+      this.button = button;
+      this.uuid = uuid;
+      this.bdAddr = bdAddr;
+      this.snapshot = snapshot;
+    }
+
+    public Flic2ButtonSnapshot getSnapshot() {
+      return snapshot;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Entry> byUuid = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Entry> byAddr = new ConcurrentHashMap<>();
+
+  /*
+   * add (or update) the button, returning the entry that is now stored for it
+   */
+  public Entry put(Flic2Button button) {
+    final String uuid = button.getUuid();
+    final Entry existing = byUuid.get(uuid);
+    if (null != existing && existing.button == button) {
+      // already have this one
+      return existing;
+    }
+    String bdAddr = null;
+    try {
+      bdAddr = button.getBdAddr();
+    } catch (Throwable e) {
+      // can't find this one by address then, but we can still find it by UUID
+    }
+    // keep any snapshot we have, it will be refreshed if the data is different
+    final Entry entry = new Entry(button, uuid, bdAddr, null == existing ? null : existing.snapshot);
+    if (null != existing) {
+      entry.lastClickedMs = existing.lastClickedMs;
+      entry.filter = existing.filter;
+      entry.addedVersion = existing.addedVersion;
+      entry.statsSlot = existing.statsSlot;
+    }
+    byUuid.put(uuid, entry);
+    if (null != existing && null != existing.bdAddr && !existing.bdAddr.equals(bdAddr)) {
+      byAddr.remove(existing.bdAddr, existing);
+    }
+    if (null != bdAddr) {
+      byAddr.put(bdAddr, entry);
+    }
+    return entry;
+  }
+
+  /*
+   * remove the button from both the indexes, returning the entry removed (null if not there)
+   */
+  public Entry remove(String uuid) {
+    final Entry entry = byUuid.remove(uuid);
+    if (null != entry && null != entry.bdAddr) {
+      byAddr.remove(entry.bdAddr, entry);
+    }
+    return entry;
+  }
+
+  public void clear() {
+    byUuid.clear();
+    byAddr.clear();
+  }
+
+  public Entry getByUuid(String uuid) {
+    return null == uuid ? null : byUuid.get(uuid);
+  }
+
+  public Entry getByAddr(String bdAddr) {
+    return null == bdAddr ? null : byAddr.get(bdAddr);
+  }
+
+  public Flic2Button getButton(String uuid) {
+    final Entry entry = getByUuid(uuid);
+    return null == entry ? null : entry.button;
+  }
+
+  public int size() {
+    return byUuid.size();
+  }
+
+  public Collection<Entry> entries() {
+    return byUuid.values();
+  }
+
+  public List<Flic2Button> getButtons() {
+    final List<Flic2Button> buttons = new ArrayList<>(byUuid.size());
+    for (Entry entry : byUuid.values()) {
+      buttons.add(entry.button);
+    }
+    return buttons;
+  }
+}
@@ -0,0 +1,138 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/*
+ * an immutable copy of the data of a button at a point in time. The controller builds a new
+ * one only when something about the button changes, so each event can just use the latest
+ * snapshot rather than asking the button for everything again. The encoded forms of the
+ * snapshot are cached on it by the encoder the first time they are needed.
+ */
+public class Flic2ButtonSnapshot {
+  // increases every time any snapshot is rebuilt, so a newer snapshot always has a higher version
+  public final long version;
+
+  public final String uuid;
+  public final String bdAddr;
+  public final long readyTimestamp;
+  public final String name;
+  public final String serialNo;
+  public final int connectionState;
+  public final int firmwareVersion;
+
+  // the battery data can be null when the button has never reported it
+  public final Integer battPercentage;
+  public final Long battTimestamp;
+  public final Float battVoltage;
+
+  public final int pressCount;
+
+  // the encoded forms of this snapshot, set by the encoder when first used
+  volatile String encodedJson = null;
+  volatile Map<String, Object> encodedMap = null;
+
+  public Flic2ButtonSnapshot(long version, String uuid, String bdAddr, long readyTimestamp, String name,
+      String serialNo, int connectionState, int firmwareVersion, Integer battPercentage, Long battTimestamp,
+      Float battVoltage, int pressCount) {
+    this.version = version;
+    this.uuid = uuid;
+    this.bdAddr = bdAddr;
+    this.readyTimestamp = readyTimestamp;
+    this.name = name;
+    this.serialNo = serialNo;
+    this.connectionState = connectionState;
+    this.firmwareVersion = firmwareVersion;
+    this.battPercentage = battPercentage;
+    this.battTimestamp = battTimestamp;
+    this.battVoltage = battVoltage;
+    this.pressCount = pressCount;
+  }
+
+  /*
+   * a copy of this snapshot with just the press count changed, this changes with every press
+   * so saves going back to the button for everything else
+   */
+  public Flic2ButtonSnapshot withPressCount(long version, int pressCount) {
+    return new Flic2ButtonSnapshot(version, uuid, bdAddr, readyTimestamp, name, serialNo, connectionState,
+        firmwareVersion, battPercentage, battTimestamp, battVoltage, pressCount);
+  }
+
+  /*
+   * is the data in this snapshot the same as that in the other (ignoring the version)
+   */
+  public boolean isSameData(Flic2ButtonSnapshot other) {
+    return null != other
+        && readyTimestamp == other.readyTimestamp
+        && connectionState == other.connectionState
+        && firmwareVersion == other.firmwareVersion
+        && pressCount == other.pressCount
+        && equals(uuid, other.uuid)
+        && equals(bdAddr, other.bdAddr)
+        && equals(name, other.name)
+        && equals(serialNo, other.serialNo)
+        && equals(battPercentage, other.battPercentage)
+        && equals(battTimestamp, other.battTimestamp)
+        && equals(battVoltage, other.battVoltage);
+  }
+
+  /*
+   * write all the data of the snapshot (with the version) to the stream, as read back by
+   * readFrom. Used for the trace files and the cache of the buttons
+   */
+  public void writeTo(DataOutputStream out) throws IOException {
+    out.writeLong(version);
+    writeString(out, uuid);
+    writeString(out, bdAddr);
+    out.writeLong(readyTimestamp);
+    writeString(out, name);
+    writeString(out, serialNo);
+    out.writeInt(connectionState);
+    out.writeInt(firmwareVersion);
+    out.writeBoolean(null != battPercentage);
+    out.writeInt(null == battPercentage ? 0 : battPercentage);
+    out.writeBoolean(null != battTimestamp);
+    out.writeLong(null == battTimestamp ? 0 : battTimestamp);
+    out.writeBoolean(null != battVoltage);
+    out.writeFloat(null == battVoltage ? 0f : battVoltage);
+    out.writeInt(pressCount);
+  }
+
+  public static Flic2ButtonSnapshot readFrom(DataInputStream in) throws IOException {
+    final long version = in.readLong();
+    final String uuid = readString(in);
+    final String bdAddr = readString(in);
+    final long readyTimestamp = in.readLong();
+    final String name = readString(in);
+    final String serialNo = readString(in);
+    final int connectionState = in.readInt();
+    final int firmwareVersion = in.readInt();
+    final boolean hasBattPercentage = in.readBoolean();
+    final int battPercentage = in.readInt();
+    final boolean hasBattTimestamp = in.readBoolean();
+    final long battTimestamp = in.readLong();
+    final boolean hasBattVoltage = in.readBoolean();
+    final float battVoltage = in.readFloat();
+    final int pressCount = in.readInt();
+    return new Flic2ButtonSnapshot(version, uuid, bdAddr, readyTimestamp, name, serialNo, connectionState,
+        firmwareVersion, hasBattPercentage ? battPercentage : null, hasBattTimestamp ? battTimestamp : null,
+        hasBattVoltage ? battVoltage : null, pressCount);
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(null != value);
+    if (null != value) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static boolean equals(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+}
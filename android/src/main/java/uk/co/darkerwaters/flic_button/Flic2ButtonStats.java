@@ -0,0 +1,228 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * rolling counts of what each button has done, kept as the events come in so flutter can ask
+ * for them at any time without having every event sent over to count there. Each button is
+ * given a slot, and everything is in arrays of primitives by slot, so an event is a few array
+ * writes with nothing boxed or allocated. The counts are the clicks of each type, those live
+ * and those queued, the live clicks in sliding windows of the last 1, 5 and 15 minutes (to
+ * within a bucket of ten seconds), how long the button was held down between each down and up
+ * and how far the press count of the button has moved. Everything in here is called on the
+ * Flic 2 thread.
+ */
+public class Flic2ButtonStats {
+  // the clicks are counted in buckets of this long (ms), 15 minutes of them
+  private static final long BUCKET_MS = 10000;
+  private static final int BUCKETS = 90;
+
+  // the upper limits (ms) of each bucket of the time held down, the last is everything longer
+  private static final long[] HELD_LIMITS_MS = { 100, 250, 500, 1000, 2000, 5000 };
+  private static final int HELD_BUCKETS = HELD_LIMITS_MS.length + 1;
+
+  // anything held longer than this (ms) is a down we missed the up of, not a hold
+  private static final long MAX_HELD_MS = 60000;
+
+  private int capacity = 0;
+  private int nextSlot = 0;
+
+  // the slots of the buttons forgotten, to be used again
+  private int[] freeSlots = new int[0];
+  private int freeCount = 0;
+
+  // the counts of each button, by slot
+  private long[] singleClicks = new long[0];
+  private long[] doubleClicks = new long[0];
+  private long[] holds = new long[0];
+  private long[] liveClicks = new long[0];
+  private long[] queuedClicks = new long[0];
+  private long[] downs = new long[0];
+  private long[] ups = new long[0];
+  private long[] lastEventMs = new long[0];
+
+  // the press count last seen (-1 for none), and how far it has gone up since
+  private int[] pressCounts = new int[0];
+  private long[] pressCountDeltas = new long[0];
+
+  // the timestamp of the last down (-1 for none), and the times held between downs and ups
+  private long[] downTimestamps = new long[0];
+  private long[] heldCounts = new long[0];
+  private long[] heldTotalMs = new long[0];
+  private long[] heldMaxMs = new long[0];
+  private long[] heldHistogram = new long[0];
+
+  // the live clicks in each bucket of time, with the number of the bucket each count is for
+  private int[] windowCounts = new int[0];
+  private long[] windowBuckets = new long[0];
+
+  /*
+   * a slot for a new button
+   */
+  public int allocate() {
+    final int slot = freeCount > 0 ? freeSlots[--freeCount] : nextSlot++;
+    if (slot >= capacity) {
+      grow(Math.max(16, capacity * 2));
+    }
+    clear(slot);
+    return slot;
+  }
+
+  /*
+   * the button in this slot is gone, the slot can be given to another
+   */
+  public void release(int slot) {
+    if (slot < 0 || slot >= nextSlot) {
+      return;
+    }
+    if (freeCount == freeSlots.length) {
+      freeSlots = Arrays.copyOf(freeSlots, Math.max(16, freeSlots.length * 2));
+    }
+    freeSlots[freeCount++] = slot;
+  }
+
+  public void onClick(int slot, boolean wasQueued, boolean isSingleClick, boolean isDoubleClick, boolean isHold,
+      int pressCount, long nowMs) {
+    if (isHold) {
+      ++holds[slot];
+    } else if (isDoubleClick) {
+      ++doubleClicks[slot];
+    } else if (isSingleClick) {
+      ++singleClicks[slot];
+    }
+    if (wasQueued) {
+      ++queuedClicks[slot];
+    } else {
+      ++liveClicks[slot];
+      // only the live clicks go in the windows, the queued ones happened some time ago
+      final long bucket = nowMs / BUCKET_MS;
+      final int index = slot * BUCKETS + (int) (bucket % BUCKETS);
+      if (windowBuckets[index] != bucket) {
+        windowBuckets[index] = bucket;
+        windowCounts[index] = 0;
+      }
+      ++windowCounts[index];
+    }
+    onPressCount(slot, pressCount);
+    lastEventMs[slot] = nowMs;
+  }
+
+  public void onUpOrDown(int slot, boolean down, long timestamp, int pressCount, long nowMs) {
+    if (down) {
+      ++downs[slot];
+      downTimestamps[slot] = timestamp;
+    } else {
+      ++ups[slot];
+      final long downTimestamp = downTimestamps[slot];
+      final long heldMs = timestamp - downTimestamp;
+      if (downTimestamp >= 0 && heldMs >= 0 && heldMs <= MAX_HELD_MS) {
+        ++heldCounts[slot];
+        heldTotalMs[slot] += heldMs;
+        heldMaxMs[slot] = Math.max(heldMaxMs[slot], heldMs);
+        int bucket = 0;
+        while (bucket < HELD_LIMITS_MS.length && heldMs > HELD_LIMITS_MS[bucket]) {
+          ++bucket;
+        }
+        ++heldHistogram[slot * HELD_BUCKETS + bucket];
+      }
+      downTimestamps[slot] = -1;
+    }
+    onPressCount(slot, pressCount);
+    lastEventMs[slot] = nowMs;
+  }
+
+  /*
+   * the counts of the button in the slot
+   */
+  public Map<String, Object> toMap(int slot, long nowMs) {
+    final Map<String, Object> stats = new HashMap<>();
+    stats.put("singleClicks", singleClicks[slot]);
+    stats.put("doubleClicks", doubleClicks[slot]);
+    stats.put("holds", holds[slot]);
+    stats.put("liveClicks", liveClicks[slot]);
+    stats.put("queuedClicks", queuedClicks[slot]);
+    stats.put("downs", downs[slot]);
+    stats.put("ups", ups[slot]);
+    stats.put("lastEventMs", lastEventMs[slot]);
+    stats.put("pressCount", pressCounts[slot]);
+    stats.put("pressCountDelta", pressCountDeltas[slot]);
+    stats.put("clicksLastMinute", countWindow(slot, nowMs, 6));
+    stats.put("clicksLast5Minutes", countWindow(slot, nowMs, 30));
+    stats.put("clicksLast15Minutes", countWindow(slot, nowMs, BUCKETS));
+    stats.put("heldCount", heldCounts[slot]);
+    stats.put("heldMeanMs", heldCounts[slot] == 0 ? 0 : heldTotalMs[slot] / heldCounts[slot]);
+    stats.put("heldMaxMs", heldMaxMs[slot]);
+    final Map<String, Object> histogram = new HashMap<>();
+    for (int i = 0; i < HELD_BUCKETS; ++i) {
+      // by the upper limit of the bucket, "max" for the rest
+      histogram.put(i < HELD_LIMITS_MS.length ? Long.toString(HELD_LIMITS_MS[i]) : "max",
+          heldHistogram[slot * HELD_BUCKETS + i]);
+    }
+    stats.put("heldHistogram", histogram);
+    return stats;
+  }
+
+  private void onPressCount(int slot, int pressCount) {
+    final int last = pressCounts[slot];
+    if (last >= 0 && pressCount > last) {
+      pressCountDeltas[slot] += pressCount - last;
+    }
+    pressCounts[slot] = pressCount;
+  }
+
+  private int countWindow(int slot, long nowMs, int buckets) {
+    final long current = nowMs / BUCKET_MS;
+    int count = 0;
+    for (int i = 0; i < buckets; ++i) {
+      final long bucket = current - i;
+      final int index = slot * BUCKETS + (int) (bucket % BUCKETS);
+      if (windowBuckets[index] == bucket) {
+        count += windowCounts[index];
+      }
+    }
+    return count;
+  }
+
+  private void clear(int slot) {
+    singleClicks[slot] = 0;
+    doubleClicks[slot] = 0;
+    holds[slot] = 0;
+    liveClicks[slot] = 0;
+    queuedClicks[slot] = 0;
+    downs[slot] = 0;
+    ups[slot] = 0;
+    lastEventMs[slot] = 0;
+    pressCounts[slot] = -1;
+    pressCountDeltas[slot] = 0;
+    downTimestamps[slot] = -1;
+    heldCounts[slot] = 0;
+    heldTotalMs[slot] = 0;
+    heldMaxMs[slot] = 0;
+    Arrays.fill(heldHistogram, slot * HELD_BUCKETS, (slot + 1) * HELD_BUCKETS, 0);
+    Arrays.fill(windowCounts, slot * BUCKETS, (slot + 1) * BUCKETS, 0);
+    Arrays.fill(windowBuckets, slot * BUCKETS, (slot + 1) * BUCKETS, -1);
+  }
+
+  private void grow(int newCapacity) {
+    singleClicks = Arrays.copyOf(singleClicks, newCapacity);
+    doubleClicks = Arrays.copyOf(doubleClicks, newCapacity);
+    holds = Arrays.copyOf(holds, newCapacity);
+    liveClicks = Arrays.copyOf(liveClicks, newCapacity);
+    queuedClicks = Arrays.copyOf(queuedClicks, newCapacity);
+    downs = Arrays.copyOf(downs, newCapacity);
+    ups = Arrays.copyOf(ups, newCapacity);
+    lastEventMs = Arrays.copyOf(lastEventMs, newCapacity);
+    pressCounts = Arrays.copyOf(pressCounts, newCapacity);
+    pressCountDeltas = Arrays.copyOf(pressCountDeltas, newCapacity);
+    downTimestamps = Arrays.copyOf(downTimestamps, newCapacity);
+    heldCounts = Arrays.copyOf(heldCounts, newCapacity);
+    heldTotalMs = Arrays.copyOf(heldTotalMs, newCapacity);
+    heldMaxMs = Arrays.copyOf(heldMaxMs, newCapacity);
+    heldHistogram = Arrays.copyOf(heldHistogram, newCapacity * HELD_BUCKETS);
+    windowCounts = Arrays.copyOf(windowCounts, newCapacity * BUCKETS);
+    windowBuckets = Arrays.copyOf(windowBuckets, newCapacity * BUCKETS);
+    capacity = newCapacity;
+  }
+}
@@ -0,0 +1,299 @@
+package uk.co.darkerwaters.flic_button;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import io.flic.flic2libandroid.Flic2Button;
+import io.flic.flic2libandroid.Flic2ButtonListener;
+
+/*
+ * connecting a whole fleet of buttons at once saturates the bluetooth stack so connections
+ * fail. This limits how many buttons are connecting at a time, taking the buttons waiting in
+ * order of priority, and tries a failed (or timed out) connection again after a backoff that
+ * doubles each time (with some jitter so the fleet doesn't retry all together). Everything in
+ * here is called on the Flic 2 thread.
+ */
+public class Flic2ConnectionScheduler {
+  // buttons that want connecting first, like those clicked recently
+  public static final int PRIORITY_HIGH = 0;
+  // everything else
+  public static final int PRIORITY_NORMAL = 1;
+
+  private static final int PRIORITY_COUNT = 2;
+
+  /*
+   * the interface to be told when we give up connecting a button
+   */
+  public interface Listener {
+    void onConnectionAbandoned(String buttonUuid, int attempts);
+  }
+
+  /*
+   * a button we are connecting, or waiting to connect
+   */
+  private class Request {
+    final Flic2Button button;
+    final String uuid;
+    int priority;
+    int attempts = 0;
+    // when it was asked for, and when this attempt started (ms)
+    final long requestedMs;
+    long attemptStartedMs = 0;
+    final Runnable timeout = new Runnable() {
+      @Override
+      public void run() {
+        onAttemptFailed(Request.this);
+      }
+    };
+    final Runnable retry = new Runnable() {
+      @Override
+      public void run() {
+        lanes[priority].addLast(Request.this);
+        pump();
+      }
+    };
+
+    Request(Flic2Button button, String uuid, int priority) {
+      this.button = button;
+      this.uuid = uuid;
+      this.priority = priority;
+      this.requestedMs = SystemClock.elapsedRealtime();
+    }
+  }
+
+  /*
+   * the timing of the connections of a button
+   */
+  private static class ConnectionStats {
+    int attempts = 0;
+    int connects = 0;
+    int failures = 0;
+    // from asking for the connection to ready, the queueing and backoff included
+    long lastConnectMs = 0;
+    long totalConnectMs = 0;
+    // from the attempt that worked starting to ready, just the time bluetooth took
+    long lastAttemptMs = 0;
+    long totalAttemptMs = 0;
+  }
+
+  private final Handler handler;
+  private final Listener listener;
+
+  // the most buttons we will have connecting at once
+  private final int maxConnecting;
+  // how long (ms) an attempt has to get to ready before we try again
+  private final long connectTimeoutMs;
+  // the first backoff (ms), doubling with each failed attempt up to the max
+  private final long backoffBaseMs;
+  private final long backoffMaxMs;
+  // the most attempts before giving up, zero to keep trying
+  private final int maxAttempts;
+
+  @SuppressWarnings("unchecked")
+  private final ArrayDeque<Request>[] lanes = new ArrayDeque[PRIORITY_COUNT];
+
+  // every button we are dealing with, by UUID, and those actually connecting now
+  private final Map<String, Request> requests = new HashMap<>();
+  private final Map<String, Request> connecting = new HashMap<>();
+
+  private final Map<String, ConnectionStats> stats = new HashMap<>();
+
+  private final Random random = new Random();
+
+  public Flic2ConnectionScheduler(Handler handler, Listener listener, int maxConnecting, long connectTimeoutMs,
+      long backoffBaseMs, long backoffMaxMs, int maxAttempts) {
+    this.handler = handler;
+    this.listener = listener;
+    this.maxConnecting = Math.max(1, maxConnecting);
+    this.connectTimeoutMs = connectTimeoutMs;
+    this.backoffBaseMs = Math.max(1, backoffBaseMs);
+    this.backoffMaxMs = Math.max(this.backoffBaseMs, backoffMaxMs);
+    this.maxAttempts = maxAttempts;
+    for (int i = 0; i < PRIORITY_COUNT; ++i) {
+      lanes[i] = new ArrayDeque<>();
+    }
+  }
+
+  /*
+   * connect the button when there is space to, sooner if the priority is higher
+   */
+  public void schedule(Flic2Button button, int priority) {
+    final String uuid = button.getUuid();
+    final int lane = Math.max(PRIORITY_HIGH, Math.min(PRIORITY_NORMAL, priority));
+    final Request existing = requests.get(uuid);
+    if (null != existing) {
+      if (lane < existing.priority && lanes[existing.priority].remove(existing)) {
+        // waiting, but this is more important now so move it up
+        existing.priority = lane;
+        lanes[lane].addLast(existing);
+        pump();
+      }
+      // else already connecting (or backing off), nothing more to do
+      return;
+    }
+    if (button.getConnectionState() == Flic2Button.CONNECTION_STATE_CONNECTED_READY) {
+      // nothing to do
+      return;
+    }
+    final Request request = new Request(button, uuid, lane);
+    requests.put(uuid, request);
+    lanes[lane].addLast(request);
+    pump();
+  }
+
+  /*
+   * stop trying to connect the button (it's being disconnected or forgotten)
+   */
+  public void cancel(String buttonUuid) {
+    final Request request = requests.remove(buttonUuid);
+    if (null != request) {
+      lanes[request.priority].remove(request);
+      handler.removeCallbacks(request.retry);
+      handler.removeCallbacks(request.timeout);
+      if (null != connecting.remove(buttonUuid)) {
+        request.button.removeListener(connectionListener);
+        // there's space for another now
+        pump();
+      }
+    }
+  }
+
+  /*
+   * stop trying to connect anything
+   */
+  public void clear() {
+    for (Request request : requests.values()) {
+      handler.removeCallbacks(request.retry);
+      handler.removeCallbacks(request.timeout);
+      if (connecting.containsKey(request.uuid)) {
+        request.button.removeListener(connectionListener);
+      }
+    }
+    requests.clear();
+    connecting.clear();
+    for (ArrayDeque<Request> lane : lanes) {
+      lane.clear();
+    }
+  }
+
+  /*
+   * the state and timing of the connections of each button (by UUID)
+   */
+  public Map<String, Object> getStats() {
+    final Map<String, Object> result = new HashMap<>();
+    for (Map.Entry<String, ConnectionStats> entry : stats.entrySet()) {
+      final ConnectionStats buttonStats = entry.getValue();
+      final Map<String, Object> button = new HashMap<>();
+      button.put("attempts", buttonStats.attempts);
+      button.put("connects", buttonStats.connects);
+      button.put("failures", buttonStats.failures);
+      button.put("lastConnectMs", buttonStats.lastConnectMs);
+      button.put("averageConnectMs",
+          buttonStats.connects == 0 ? 0 : buttonStats.totalConnectMs / buttonStats.connects);
+      button.put("lastAttemptMs", buttonStats.lastAttemptMs);
+      button.put("averageAttemptMs",
+          buttonStats.connects == 0 ? 0 : buttonStats.totalAttemptMs / buttonStats.connects);
+      button.put("connecting", connecting.containsKey(entry.getKey()));
+      button.put("waiting", requests.containsKey(entry.getKey()) && !connecting.containsKey(entry.getKey()));
+      result.put(entry.getKey(), button);
+    }
+    return result;
+  }
+
+  private ConnectionStats getButtonStats(String buttonUuid) {
+    ConnectionStats buttonStats = stats.get(buttonUuid);
+    if (null == buttonStats) {
+      buttonStats = new ConnectionStats();
+      stats.put(buttonUuid, buttonStats);
+    }
+    return buttonStats;
+  }
+
+  private void pump() {
+    for (int lane = 0; lane < PRIORITY_COUNT && connecting.size() < maxConnecting; ++lane) {
+      while (!lanes[lane].isEmpty() && connecting.size() < maxConnecting) {
+        startAttempt(lanes[lane].pollFirst());
+      }
+    }
+  }
+
+  private void startAttempt(Request request) {
+    request.attempts++;
+    request.attemptStartedMs = SystemClock.elapsedRealtime();
+    getButtonStats(request.uuid).attempts++;
+    connecting.put(request.uuid, request);
+    // listen for it to be ready (or fail) then connect
+    request.button.removeListener(connectionListener);
+    request.button.addListener(connectionListener);
+    request.button.connect();
+    if (connectTimeoutMs > 0) {
+      handler.postDelayed(request.timeout, connectTimeoutMs);
+    }
+  }
+
+  private void onAttemptFailed(Request request) {
+    if (connecting.remove(request.uuid) != request) {
+      // not one we are connecting
+      return;
+    }
+    handler.removeCallbacks(request.timeout);
+    request.button.removeListener(connectionListener);
+    // stop this attempt (timed out or failed), else the library keeps trying on its own while we
+    // start another, and more than the most we want are connecting
+    request.button.disconnectOrAbortPendingConnection();
+    getButtonStats(request.uuid).failures++;
+    if (maxAttempts > 0 && request.attempts >= maxAttempts) {
+      // that's enough
+      requests.remove(request.uuid);
+      listener.onConnectionAbandoned(request.uuid, request.attempts);
+    } else {
+      // back off, doubling each time, with up to half of that as jitter
+      final long backoff = Math.min(backoffMaxMs, backoffBaseMs << Math.min(20, request.attempts - 1));
+      final long delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+      handler.postDelayed(request.retry, delay);
+    }
+    // there's space for another now
+    pump();
+  }
+
+  private void onConnected(Flic2Button button) {
+    final Request request = connecting.remove(button.getUuid());
+    if (null == request) {
+      return;
+    }
+    handler.removeCallbacks(request.timeout);
+    button.removeListener(connectionListener);
+    requests.remove(request.uuid);
+    // and remember how long this took, from asking and from the attempt starting to ready
+    final long nowMs = SystemClock.elapsedRealtime();
+    final ConnectionStats buttonStats = getButtonStats(request.uuid);
+    buttonStats.connects++;
+    buttonStats.lastConnectMs = nowMs - request.requestedMs;
+    buttonStats.totalConnectMs += buttonStats.lastConnectMs;
+    buttonStats.lastAttemptMs = nowMs - request.attemptStartedMs;
+    buttonStats.totalAttemptMs += buttonStats.lastAttemptMs;
+    pump();
+  }
+
+  private final Flic2ButtonListener connectionListener = new Flic2ButtonListener() {
+    @Override
+    public void onReady(Flic2Button button, long timestamp) {
+      super.onReady(button, timestamp);
+      onConnected(button);
+    }
+
+    @Override
+    public void onFailure(Flic2Button button, int errorCode, int subCode) {
+      super.onFailure(button, errorCode, subCode);
+      final Request request = connecting.get(button.getUuid());
+      if (null != request) {
+        onAttemptFailed(request);
+      }
+    }
+  };
+}
@@ -0,0 +1,297 @@
+package uk.co.darkerwaters.flic_button;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import io.flic.flic2libandroid.Flic2Button;
+import io.flic.flic2libandroid.Flic2ScanCallback;
+
+/*
+ * a scan that keeps going, for provisioning a lot of buttons. A scan of the Flic 2 library
+ * stops as soon as it has paired one button, or has found nothing new for a while, so this
+ * starts it again after a short delay. Only the scans that fail (bluetooth off, or the scanner
+ * refusing us, as it does without the permission) are reported, and back off doubling while
+ * they keep failing. The same button is discovered over and over as it advertises, so an
+ * address seen within the window is dropped, and the discoveries that are left are limited to a
+ * rate so they can't flood the listener. The buttons paired are handed on through a queue, one
+ * each time round the looper, so a burst of them doesn't hold up the Flic 2 thread. Everything
+ * in here is called on the Flic 2 thread.
+ */
+public class Flic2ContinuousScanner {
+  /*
+   * the interface to be told what the scan finds
+   */
+  public interface Listener {
+    void onDiscovered(String bdAddr);
+
+    void onAlreadyPaired(Flic2Button button);
+
+    void onPaired(Flic2Button button);
+
+    void onScanFailed(int result, int subCode);
+  }
+
+  /*
+   * how the scan behaves, from the map flutter passes
+   */
+  public static class Config {
+    public static final String KEY_DEDUPE_WINDOW_MS = "dedupeWindowMs";
+    public static final String KEY_MAX_DISCOVERIES_PER_SECOND = "maxDiscoveriesPerSecond";
+    public static final String KEY_REARM_DELAY_MS = "rearmDelayMs";
+    public static final String KEY_BACKOFF_MAX_MS = "backoffMaxMs";
+
+    // an address seen again within this (ms) is not passed on again
+    public final long dedupeWindowMs;
+    // the most discoveries passed on each second, zero for no limit
+    public final int maxDiscoveriesPerSecond;
+    // the wait (ms) before scanning again, doubling while the scans fail up to the max
+    public final long rearmDelayMs;
+    public final long backoffMaxMs;
+
+    public Config(long dedupeWindowMs, int maxDiscoveriesPerSecond, long rearmDelayMs, long backoffMaxMs) {
+      this.dedupeWindowMs = dedupeWindowMs;
+      this.maxDiscoveriesPerSecond = maxDiscoveriesPerSecond;
+      this.rearmDelayMs = Math.max(0, rearmDelayMs);
+      this.backoffMaxMs = Math.max(this.rearmDelayMs, backoffMaxMs);
+    }
+
+    public static Config fromMap(Map<?, ?> map) {
+      return new Config(getLong(map, KEY_DEDUPE_WINDOW_MS, 30000), (int) getLong(map, KEY_MAX_DISCOVERIES_PER_SECOND, 10),
+          getLong(map, KEY_REARM_DELAY_MS, 250), getLong(map, KEY_BACKOFF_MAX_MS, 30000));
+    }
+
+    private static long getLong(Map<?, ?> map, String key, long defaultValue) {
+      final Object value = null == map ? null : map.get(key);
+      return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+  }
+
+  // the window (ms) the rate of pairing is worked out over
+  private static final long THROUGHPUT_WINDOW_MS = 60000;
+
+  private final Flic2Backend backend;
+  private final Handler handler;
+  private final Listener listener;
+  private final Config config;
+
+  private boolean isRunning = false;
+  private int consecutiveFailures = 0;
+
+  // when each address was last passed on (elapsed realtime ms)
+  private final Map<String, Long> lastSeenMs = new HashMap<>();
+
+  // the discoveries allowed this second, and when the second started
+  private long rateWindowStartMs = 0;
+  private int rateWindowCount = 0;
+
+  // the buttons paired, waiting to be passed on
+  private final ArrayDeque<Flic2Button> paired = new ArrayDeque<>();
+
+  // when the buttons were paired in the last minute
+  private final ArrayDeque<Long> pairedTimesMs = new ArrayDeque<>();
+
+  private long startedMs = 0;
+  private long scans = 0;
+  private long failures = 0;
+  private long noResults = 0;
+  private long discovered = 0;
+  private long duplicates = 0;
+  private long rateLimited = 0;
+  private long alreadyPaired = 0;
+  private long pairedCount = 0;
+
+  private final Runnable rearm = this::startScan;
+
+  private final Runnable drainPaired = new Runnable() {
+    @Override
+    public void run() {
+      final Flic2Button button = paired.pollFirst();
+      if (null != button) {
+        listener.onPaired(button);
+      }
+      if (!paired.isEmpty()) {
+        // the rest go one at a time so others can have the thread
+        handler.post(this);
+      }
+    }
+  };
+
+  public Flic2ContinuousScanner(Flic2Backend backend, Handler handler, Listener listener, Config config) {
+    this.backend = backend;
+    this.handler = handler;
+    this.listener = listener;
+    this.config = config;
+  }
+
+  public boolean isRunning() {
+    return isRunning;
+  }
+
+  public void start() {
+    if (isRunning) {
+      return;
+    }
+    isRunning = true;
+    startedMs = SystemClock.elapsedRealtime();
+    consecutiveFailures = 0;
+    startScan();
+  }
+
+  public void stop() {
+    if (!isRunning) {
+      return;
+    }
+    isRunning = false;
+    handler.removeCallbacks(rearm);
+    backend.stopScan();
+  }
+
+  /*
+   * the counts of what the scan found, and how fast it is pairing buttons
+   */
+  public Map<String, Object> getStats() {
+    final long nowMs = SystemClock.elapsedRealtime();
+    trimPairedTimes(nowMs);
+    final long runningMs = startedMs == 0 ? 0 : nowMs - startedMs;
+    final Map<String, Object> stats = new HashMap<>();
+    stats.put("running", isRunning);
+    stats.put("runningMs", runningMs);
+    stats.put("scans", scans);
+    stats.put("failures", failures);
+    stats.put("noResults", noResults);
+    stats.put("discovered", discovered);
+    stats.put("duplicates", duplicates);
+    stats.put("rateLimited", rateLimited);
+    stats.put("alreadyPaired", alreadyPaired);
+    stats.put("paired", pairedCount);
+    stats.put("waitingToPair", paired.size());
+    // the rate over the last minute, and over the whole scan
+    stats.put("pairedLastMinute", pairedTimesMs.size());
+    stats.put("pairedPerMinute", runningMs == 0 ? 0.0 : pairedCount * 60000.0 / runningMs);
+    return stats;
+  }
+
+  private void startScan() {
+    if (!isRunning) {
+      return;
+    }
+    ++scans;
+    backend.startScan(new Flic2ScanCallback() {
+      @Override
+      public void onDiscoveredAlreadyPairedButton(Flic2Button button) {
+        if (isNew(button.getBdAddr())) {
+          ++alreadyPaired;
+          listener.onAlreadyPaired(button);
+        }
+      }
+
+      @Override
+      public void onDiscovered(String bdAddr) {
+        ++discovered;
+        if (isNew(bdAddr) && isWithinRate()) {
+          listener.onDiscovered(bdAddr);
+        }
+      }
+
+      @Override
+      public void onConnected() {
+        // connecting to pair it, we hear about it when it's done
+      }
+
+      @Override
+      public void onComplete(int result, int subCode, Flic2Button button) {
+        if (!isRunning) {
+          // stopped while this scan was finishing
+          return;
+        }
+        long delayMs = config.rearmDelayMs;
+        if (result == Flic2ScanCallback.RESULT_SUCCESS && null != button) {
+          consecutiveFailures = 0;
+          ++pairedCount;
+          final long nowMs = SystemClock.elapsedRealtime();
+          pairedTimesMs.addLast(nowMs);
+          trimPairedTimes(nowMs);
+          paired.addLast(button);
+          if (paired.size() == 1) {
+            handler.post(drainPaired);
+          }
+        } else if (isFailure(result)) {
+          ++failures;
+          // back off while the scans fail, bluetooth is off or we can't scan
+          delayMs = Math.min(config.backoffMaxMs, Math.max(1, config.rearmDelayMs) << Math.min(16, consecutiveFailures));
+          ++consecutiveFailures;
+          listener.onScanFailed(result, subCode);
+        } else {
+          // nothing new to pair this time round (or the pairing timed out), which is what a scan
+          // left running mostly finds, so it just goes again
+          consecutiveFailures = 0;
+          ++noResults;
+        }
+        handler.postDelayed(rearm, delayMs);
+      }
+    });
+  }
+
+  /*
+   * is the result one the scan can't get past by scanning again, rather than a scan that simply
+   * ended with nothing to pair
+   */
+  private static boolean isFailure(int result) {
+    return result == Flic2ScanCallback.RESULT_FAILED_BLUETOOTH_OFF
+        || result == Flic2ScanCallback.RESULT_FAILED_SCAN_ERROR;
+  }
+
+  /*
+   * is this address one we haven't passed on within the window
+   */
+  private boolean isNew(String bdAddr) {
+    if (null == bdAddr) {
+      return true;
+    }
+    final long nowMs = SystemClock.elapsedRealtime();
+    final Long seenMs = lastSeenMs.get(bdAddr);
+    if (null != seenMs && nowMs - seenMs < config.dedupeWindowMs) {
+      ++duplicates;
+      return false;
+    }
+    lastSeenMs.put(bdAddr, nowMs);
+    if (lastSeenMs.size() > 1024) {
+      // forget the addresses outside the window so this doesn't grow forever
+      final Iterator<Long> times = lastSeenMs.values().iterator();
+      while (times.hasNext()) {
+        if (nowMs - times.next() >= config.dedupeWindowMs) {
+          times.remove();
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean isWithinRate() {
+    if (config.maxDiscoveriesPerSecond <= 0) {
+      return true;
+    }
+    final long nowMs = SystemClock.elapsedRealtime();
+    if (nowMs - rateWindowStartMs >= 1000) {
+      rateWindowStartMs = nowMs;
+      rateWindowCount = 0;
+    }
+    if (rateWindowCount < config.maxDiscoveriesPerSecond) {
+      ++rateWindowCount;
+      return true;
+    }
+    ++rateLimited;
+    return false;
+  }
+
+  private void trimPairedTimes(long nowMs) {
+    while (!pairedTimesMs.isEmpty() && nowMs - pairedTimesMs.peekFirst() > THROUGHPUT_WINDOW_MS) {
+      pairedTimesMs.removeFirst();
+    }
+  }
+}
@@ -2,14 +2,21 @@ package uk.co.darkerwaters.flic_button;
 
 import android.content.Context;
 import android.os.Handler;
+import android.os.SystemClock;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
+import io.flic.flic2libandroid.BatteryLevel;
 import io.flic.flic2libandroid.Flic2Button;
 import io.flic.flic2libandroid.Flic2ButtonListener;
-import io.flic.flic2libandroid.Flic2Manager;
 import io.flic.flic2libandroid.Flic2ScanCallback;
 
 /*
@@ -18,64 +25,206 @@ import io.flic.flic2libandroid.Flic2ScanCallback;
 public class Flic2Controller {
     /*
      * keep the buttons so we can call functions on them later from flutter (via
-     * UUID)
+     * UUID or address), with the latest snapshot of each. Changed on the Flic 2
+     * thread as buttons are scanned and forgotten, read from any thread
      */
-    private final Map<String, Flic2Button> buttonsDiscovered = new HashMap<>();
+    private final Flic2ButtonRegistry registry = new Flic2ButtonRegistry();
 
     /*
-     * the callback from iOS / Android that we process privately to send to
-     * listeners nicely
+     * the version to give the next snapshot built, so newer always has a higher
+     * version. This is also the version of the fleet, as it goes up every time a
+     * button is added, changed or removed. It starts from the clock so a new
+     * controller doesn't give out versions an old one already gave
      */
-    private final ButtonCallback callback;
+    private final AtomicLong nextSnapshotVersion = new AtomicLong(System.currentTimeMillis() * 1000L);
 
     /*
-     * flag to signal we are currently scanning, so we don't wrongly send finished
-     * before started
+     * the first version this controller gave out, a version before this is from
+     * another controller (that we can't know the removals of)
      */
-    private boolean isCurrentlyScanning = false;
+    private final long firstVersion = nextSnapshotVersion.get();
 
     /*
-     * this is an interface to implement if you want a callback on events the button
-     * can cause
+     * the most removed buttons to remember, the oldest are forgotten after this
      */
-    public interface ButtonCallback {
-        void onPairedButtonFound(Flic2Button button);
+    private static final int MAX_REMOVED = 256;
 
-        void onButtonFound(Flic2Button button);
+    /*
+     * the fleet version at which each button was removed, by UUID and oldest first,
+     * so those asking for the changes since a version can be told. Only the latest
+     * are kept, and the version of the last forgotten is kept as the low water mark,
+     * those asking since a version before that have to start again with the whole
+     * fleet. Only used on the Flic 2 thread
+     */
+    private final LinkedHashMap<String, Long> removedVersions = new LinkedHashMap<>();
+    private long removedLowWater = 0;
 
-        void onButtonConnected();
+    /*
+     * the UUID of each button by the version it last changed at (added, a new
+     * snapshot or removed), so the changes since a version are just the tail of
+     * this and asking costs the number of changes rather than the size of the
+     * fleet. Each button is in here once, at its latest version, with the version
+     * it is in at by UUID. Only used on the Flic 2 thread
+     */
+    private final TreeMap<Long, String> changeLog = new TreeMap<>();
+    private final Map<String, Long> changeLogVersions = new HashMap<>();
 
-        void onButtonDiscovered(String buttonAddress);
+    /*
+     * the rolling counts of the clicks and up / downs of each button, counted as
+     * they come in so they can be asked for without flutter counting every event.
+     * Only used on the Flic 2 thread
+     */
+    private final Flic2ButtonStats buttonStats = new Flic2ButtonStats();
 
-        void onButtonScanningStarted();
+    /*
+     * the buttons added, changed and removed since a fleet version
+     */
+    public static class FleetChanges {
+        // the version of the fleet these changes bring the caller up to
+        public final long version;
+        // the version asked from was too old (or not from this controller) to know
+        // what was removed since, so every button is added and the caller should
+        // drop any button it has that isn't
+        public final boolean isFullResync;
+        public final List<Flic2ButtonSnapshot> added = new ArrayList<>();
+        public final List<Flic2ButtonSnapshot> changed = new ArrayList<>();
+        public final List<String> removed = new ArrayList<>();
+
+        FleetChanges(long version, boolean isFullResync) {
+            this.version = version;
+            this.isFullResync = isFullResync;
+        }
+    }
 
-        void onButtonScanningStopped();
+    /*
+     * the callback from iOS / Android that we process privately to send to
+     * listeners nicely
+     */
+    private final ButtonCallback callback;
 
-        void onError(String error);
+    /*
+     * the handler the Flic 2 library runs on, the main looper unless we were given
+     * a thread of its own
+     */
+    private final Handler handler;
 
-        /*
-         * a button has been clicked, single, double or long (hold) click most
-         * interestingly
-         */
-        void onButtonClicked(Flic2Button button, boolean wasQueued, boolean lastQueued, long timestamp,
-                boolean isSingleClick, boolean isDoubleClick, boolean isHold);
+    /*
+     * flag to signal we are currently scanning, so we don't wrongly send finished
+     * before started
+     */
+    private volatile boolean isCurrentlyScanning = false;
 
+    /*
+     * buttons clicked this recently (ms) are connected before the rest
+     */
+    private static final long RECENTLY_CLICKED_MS = 5 * 60 * 1000;
+
+    /*
+     * limits how many buttons connect at once, null to connect them all straight
+     * away
+     */
+    private Flic2ConnectionScheduler scheduler = null;
+
+    /*
+     * the scan that keeps going till it's cancelled, null if there hasn't been one
+     * (kept after it's stopped so the stats can still be read)
+     */
+    private Flic2ContinuousScanner continuousScanner = null;
+
+    /*
+     * this is an interface to implement if you want a callback on events the button
+     * can cause, the events are in the Flic2ButtonCallback so they can be sent from
+     * things other than the controller (like the simulator)
+     */
+    public interface ButtonCallback extends Flic2ButtonCallback {
         /*
-         * a button has been pressed, or released (only when live connected will this
-         * work)
+         * the button (by UUID) is no longer paired, it was forgotten or unpaired, so
+         * anything kept about it can go
          */
-        void onButtonUpOrDown(Flic2Button button, boolean down);
+        void onButtonRemoved(String buttonUuid);
     }
 
+    /*
+     * the Flic 2 library, to find and scan for buttons
+     */
+    private final Flic2Backend backend;
+
     /*
      * create the controller with a callback to be informed of changes / events
      * caused buy buttons
      */
     public Flic2Controller(Context context, ButtonCallback callback) {
+        this(context, new Handler(), callback);
+    }
+
+    /*
+     * create the controller with the handler of the thread the Flic 2 library is to
+     * run on, all the callbacks will come in on this thread and all calls into the
+     * controller should be made on it too
+     */
+    public Flic2Controller(Context context, Handler handler, ButtonCallback callback) {
+        // initialise the manager of the real buttons
+        this(new Flic2ManagerBackend(context, handler), handler, callback);
+    }
+
+    /*
+     * create the controller to work with the buttons of the backend, on the thread of
+     * the handler
+     */
+    public Flic2Controller(Flic2Backend backend, Handler handler, ButtonCallback callback) {
         // one callback to inform per manager
         this.callback = callback;
-        // initialise the manager, don't need to remember it as we can just get it later
-        Flic2Manager.initAndGetInstance(context, new Handler());
+        this.handler = handler;
+        this.backend = backend;
+        // the manager remembers the buttons paired before, so start with these and keep
+        // up to date as they are scanned and forgotten from here
+        for (Flic2Button button : backend.getButtons()) {
+            storeButtonData(button);
+        }
+    }
+
+    /*
+     * have the buttons connected through a scheduler, limiting how many connect at
+     * once and trying again (with backoff) when they fail
+     */
+    public void enableConnectionScheduling(int maxConnecting, long connectTimeoutMs, long backoffBaseMs,
+            long backoffMaxMs, int maxAttempts) {
+        if (null != scheduler) {
+            scheduler.clear();
+        }
+        scheduler = new Flic2ConnectionScheduler(handler,
+                (buttonUuid, attempts) -> callback
+                        .onError("Gave up connecting button " + buttonUuid + " after " + attempts + " attempts"),
+                maxConnecting, connectTimeoutMs, backoffBaseMs, backoffMaxMs, maxAttempts);
+    }
+
+    /*
+     * the state and timing of the connections made by the scheduler (by button
+     * UUID), null if not scheduling connections
+     */
+    public Map<String, Object> getConnectionStats() {
+        return null == scheduler ? null : scheduler.getStats();
+    }
+
+    private void connect(Flic2Button button) {
+        if (null == scheduler) {
+            // just connect it now
+            button.connect();
+        } else {
+            // buttons people have been clicking recently are wanted first
+            final Flic2ButtonRegistry.Entry entry = registry.getByUuid(button.getUuid());
+            final boolean isRecent = null != entry && entry.lastClickedMs > 0
+                    && SystemClock.elapsedRealtime() - entry.lastClickedMs < RECENTLY_CLICKED_MS;
+            scheduler.schedule(button, isRecent ? Flic2ConnectionScheduler.PRIORITY_HIGH
+                    : Flic2ConnectionScheduler.PRIORITY_NORMAL);
+        }
+    }
+
+    /*
+     * the handler of the thread the Flic 2 library is running on
+     */
+    public Handler getHandler() {
+        return handler;
     }
 
     /*
@@ -88,13 +237,13 @@ public class Flic2Controller {
         callback.onButtonScanningStarted();
         // and remember that we are
         isCurrentlyScanning = true;
-        Flic2Manager.getInstance().startScan(new Flic2ScanCallback() {
+        backend.startScan(new Flic2ScanCallback() {
             @Override
             public void onDiscoveredAlreadyPairedButton(Flic2Button button) {
                 // Found an already paired button
                 storeButtonData(button);
                 // and inform the caller of this state
-                callback.onPairedButtonFound(button);
+                callback.onPairedButtonFound(refreshSnapshot(button));
             }
 
             @Override
@@ -117,7 +266,7 @@ public class Flic2Controller {
                     // The button object can now be used, store this
                     storeButtonData(button);
                     // and inform the caller of this state
-                    callback.onButtonFound(button);
+                    callback.onButtonFound(refreshSnapshot(button));
                 } else {
                     callback.onError(
                             String.format("Internal FLic2 Scan Error with result %d, subCode: %d", result, subCode));
@@ -127,71 +276,406 @@ public class Flic2Controller {
         return true;
     }
 
+    /*
+     * keep scanning, pairing every button found, till the scan is cancelled
+     */
+    public boolean startContinuousScanning(Flic2ContinuousScanner.Config config) {
+        // cancel any previous scan
+        cancelButtonScan();
+        callback.onButtonScanningStarted();
+        isCurrentlyScanning = true;
+        continuousScanner = new Flic2ContinuousScanner(backend, handler, new Flic2ContinuousScanner.Listener() {
+            @Override
+            public void onDiscovered(String bdAddr) {
+                callback.onButtonDiscovered(bdAddr);
+            }
+
+            @Override
+            public void onAlreadyPaired(Flic2Button button) {
+                storeButtonData(button);
+                callback.onPairedButtonFound(refreshSnapshot(button));
+            }
+
+            @Override
+            public void onPaired(Flic2Button button) {
+                storeButtonData(button);
+                callback.onButtonFound(refreshSnapshot(button));
+            }
+
+            @Override
+            public void onScanFailed(int result, int subCode) {
+                callback.onError(
+                        String.format("Internal FLic2 Scan Error with result %d, subCode: %d", result, subCode));
+            }
+        }, config);
+        continuousScanner.start();
+        return true;
+    }
+
+    /*
+     * what the continuous scan found and how fast it is pairing, null if there
+     * hasn't been one
+     */
+    public Map<String, Object> getScanStats() {
+        return null == continuousScanner ? null : continuousScanner.getStats();
+    }
+
     public boolean cancelButtonScan() {
+        if (null != continuousScanner) {
+            // stop this re-starting the scan
+            continuousScanner.stop();
+        }
         // cancel any scanning in progress
         if (isCurrentlyScanning) {
             // inform the listeners that we stopped something previously scanning
             callback.onButtonScanningStopped();
         }
         try {
-            Flic2Manager manager = Flic2Manager.getInstance();
-            if (null != manager) {
-                manager.stopScan();
-                return true;
-            }
+            backend.stopScan();
+            return true;
         } catch (Exception e) {
             callback.onError("Failed to stop scan while releasing flick " + e.getMessage());
         }
         return false;
     }
 
-    private void storeButtonData(Flic2Button button) {
+    private Flic2ButtonRegistry.Entry storeButtonData(Flic2Button button) {
         // store this data for later
-        synchronized (buttonsDiscovered) {
-            buttonsDiscovered.put(button.getUuid(), button);
+        final Flic2ButtonRegistry.Entry entry = registry.put(button);
+        if (entry.addedVersion == 0) {
+            // this is new to the fleet
+            entry.addedVersion = nextSnapshotVersion.getAndIncrement();
+            removedVersions.remove(entry.uuid);
+            logChange(entry.uuid, entry.addedVersion);
         }
+        if (null == entry.snapshot) {
+            // built now, so the changes can always be answered from the snapshots we have
+            refreshSnapshot(entry);
+        }
+        return entry;
     }
 
-    public List<Flic2Button> getButtonsDiscovered() {
-        List<Flic2Button> buttons = Flic2Manager.getInstance().getButtons();
-        for (Flic2Button button : buttons) {
-            // while we are here, remember the data in case they want to listen to it
-            storeButtonData(button);
+    /*
+     * the button has changed at the version, replacing where it was in the log
+     */
+    private void logChange(String buttonUuid, long version) {
+        final Long previous = changeLogVersions.put(buttonUuid, version);
+        if (null != previous) {
+            changeLog.remove(previous);
+        }
+        changeLog.put(version, buttonUuid);
+    }
+
+    private void forgetChange(String buttonUuid) {
+        final Long previous = changeLogVersions.remove(buttonUuid);
+        if (null != previous) {
+            changeLog.remove(previous);
+        }
+    }
+
+    private void removeButtonData(String buttonUuid) {
+        final Flic2ButtonRegistry.Entry entry = registry.remove(buttonUuid);
+        if (null != entry) {
+            // a button removed again goes to the end, as the latest
+            final long removedVersion = nextSnapshotVersion.getAndIncrement();
+            removedVersions.remove(buttonUuid);
+            removedVersions.put(buttonUuid, removedVersion);
+            logChange(buttonUuid, removedVersion);
+            if (removedVersions.size() > MAX_REMOVED) {
+                // forget the oldest, those from before it will have to get everything
+                final Iterator<Map.Entry<String, Long>> oldest = removedVersions.entrySet().iterator();
+                final Map.Entry<String, Long> forgotten = oldest.next();
+                removedLowWater = forgotten.getValue();
+                forgetChange(forgotten.getKey());
+                oldest.remove();
+            }
+            if (entry.statsSlot >= 0) {
+                buttonStats.release(entry.statsSlot);
+            }
+            callback.onButtonRemoved(buttonUuid);
+        }
+    }
+
+    private int getStatsSlot(Flic2ButtonRegistry.Entry entry) {
+        if (entry.statsSlot < 0) {
+            entry.statsSlot = buttonStats.allocate();
+        }
+        return entry.statsSlot;
+    }
+
+    /*
+     * the rolling counts of the button (by UUID), null if we don't know it
+     */
+    public Map<String, Object> getButtonStats(String buttonUuid) {
+        final Flic2ButtonRegistry.Entry entry = registry.getByUuid(buttonUuid);
+        return null == entry ? null : buttonStats.toMap(getStatsSlot(entry), SystemClock.elapsedRealtime());
+    }
+
+    /*
+     * the rolling counts of all the buttons we know, by UUID
+     */
+    public Map<String, Object> getAllButtonStats() {
+        final long nowMs = SystemClock.elapsedRealtime();
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        for (Flic2ButtonRegistry.Entry entry : registry.entries()) {
+            stats.put(entry.uuid, buttonStats.toMap(getStatsSlot(entry), nowMs));
         }
-        return buttons;
+        return stats;
+    }
+
+    /*
+     * the latest snapshot of each of the buttons we know
+     */
+    public List<Flic2ButtonSnapshot> getSnapshots() {
+        final List<Flic2ButtonSnapshot> snapshots = new ArrayList<>(registry.size());
+        for (Flic2ButtonRegistry.Entry entry : registry.entries()) {
+            snapshots.add(getSnapshot(entry.button));
+        }
+        return snapshots;
+    }
+
+    /*
+     * the current version of the fleet of buttons
+     */
+    public long getFleetVersion() {
+        return nextSnapshotVersion.get() - 1;
+    }
+
+    /*
+     * the buttons added, changed and removed since the fleet version passed (zero
+     * for them all). Answered from the tail of the change log and the snapshots we
+     * have, these are kept up to date as the buttons tell us they change so nothing
+     * is read from the buttons (or built) here
+     */
+    public FleetChanges getButtonsSince(long version) {
+        final boolean isFullResync = version != 0 && (version > getFleetVersion() || version < firstVersion - 1
+                || version < removedLowWater);
+        if (isFullResync) {
+            // not a version of this fleet (or from before the removals we remember), so
+            // they need everything
+            version = 0;
+        }
+        final List<Flic2ButtonSnapshot> added = new ArrayList<>();
+        final List<Flic2ButtonSnapshot> changed = new ArrayList<>();
+        final List<String> removed = new ArrayList<>();
+        for (String buttonUuid : changeLog.tailMap(version, false).values()) {
+            final Flic2ButtonRegistry.Entry entry = registry.getByUuid(buttonUuid);
+            if (null == entry) {
+                if (version > 0) {
+                    // those starting from nothing don't need telling what has gone
+                    removed.add(buttonUuid);
+                }
+            } else if (entry.addedVersion > version) {
+                added.add(entry.snapshot);
+            } else {
+                changed.add(entry.snapshot);
+            }
+        }
+        // the version they are up to, after everything in them was given its version
+        final FleetChanges changes = new FleetChanges(getFleetVersion(), isFullResync);
+        changes.added.addAll(added);
+        changes.changed.addAll(changed);
+        changes.removed.addAll(removed);
+        return changes;
+    }
+
+    /*
+     * the buttons we know about, to find any by UUID or address without locking
+     */
+    public Flic2ButtonRegistry getRegistry() {
+        return registry;
+    }
+
+    /*
+     * get the latest snapshot of the button, this is built from the button the first
+     * time and then only changes as the button tells us it changed (or it is pressed)
+     */
+    public Flic2ButtonSnapshot getSnapshot(Flic2Button button) {
+        final Flic2ButtonRegistry.Entry entry = getEntry(button);
+        return getSnapshot(entry, readPressCount(button, entry));
+    }
+
+    /*
+     * the entry of the button, remembering it if we haven't seen it before
+     */
+    private Flic2ButtonRegistry.Entry getEntry(Flic2Button button) {
+        final Flic2ButtonRegistry.Entry entry = registry.getByUuid(button.getUuid());
+        return null == entry ? storeButtonData(button) : entry;
+    }
+
+    /*
+     * the press count of the button, read once for an event so the stats and the
+     * snapshot can both have it
+     */
+    private static int readPressCount(Flic2Button button, Flic2ButtonRegistry.Entry entry) {
+        try {
+            return button.getPressCount();
+        } catch (Throwable e) {
+            // can't tell, so keep what we have
+            final Flic2ButtonSnapshot snapshot = entry.snapshot;
+            return null == snapshot ? 0 : snapshot.pressCount;
+        }
+    }
+
+    /*
+     * the latest snapshot of the button, with the press count just read from it
+     */
+    private Flic2ButtonSnapshot getSnapshot(Flic2ButtonRegistry.Entry entry, int pressCount) {
+        Flic2ButtonSnapshot snapshot = entry.snapshot;
+        if (null == snapshot) {
+            // never built this one, build it from scratch
+            return refreshSnapshot(entry);
+        }
+        if (pressCount != snapshot.pressCount) {
+            // every press changes this, but nothing else so we can just copy the rest
+            snapshot = snapshot.withPressCount(nextSnapshotVersion.getAndIncrement(), pressCount);
+            entry.snapshot = snapshot;
+            logChange(entry.uuid, snapshot.version);
+        }
+        return snapshot;
+    }
+
+    /*
+     * read everything from the button again, only replacing the snapshot we have if
+     * something is actually different
+     */
+    public Flic2ButtonSnapshot refreshSnapshot(Flic2Button button) {
+        Flic2ButtonRegistry.Entry entry = registry.getByUuid(button.getUuid());
+        if (null == entry || entry.button != button) {
+            entry = storeButtonData(button);
+        }
+        return refreshSnapshot(entry);
+    }
+
+    private Flic2ButtonSnapshot refreshSnapshot(Flic2ButtonRegistry.Entry entry) {
+        final Flic2ButtonSnapshot latest = buildSnapshot(entry.button);
+        final Flic2ButtonSnapshot existing = entry.snapshot;
+        if (latest.isSameData(existing)) {
+            // nothing changed, keep the one we have (with the encoding cached)
+            return existing;
+        }
+        // this is new data, give it the next version to store
+        final Flic2ButtonSnapshot snapshot = new Flic2ButtonSnapshot(nextSnapshotVersion.getAndIncrement(),
+                latest.uuid, latest.bdAddr, latest.readyTimestamp, latest.name, latest.serialNo,
+                latest.connectionState, latest.firmwareVersion, latest.battPercentage, latest.battTimestamp,
+                latest.battVoltage, latest.pressCount);
+        entry.snapshot = snapshot;
+        logChange(entry.uuid, snapshot.version);
+        return snapshot;
+    }
+
+    private static Flic2ButtonSnapshot buildSnapshot(Flic2Button button) {
+        // let's be super careful reading the button here as these functions have been
+        // known to fail and return strange '����', one failing shouldn't lose the rest
+        final String uuid = button.getUuid();
+        String bdAddr = null;
+        long readyTimestamp = 0;
+        String name = null;
+        String serialNo = null;
+        int connectionState = Flic2Button.CONNECTION_STATE_DISCONNECTED;
+        int firmwareVersion = 0;
+        Integer battPercentage = null;
+        Long battTimestamp = null;
+        Float battVoltage = null;
+        int pressCount = 0;
+        try {
+            bdAddr = button.getBdAddr();
+        } catch (Throwable e) {
+            logSnapshotError("bdAddr", e);
+        }
+        try {
+            readyTimestamp = button.getReadyTimestamp();
+        } catch (Throwable e) {
+            logSnapshotError("readyTime", e);
+        }
+        try {
+            name = button.getName();
+        } catch (Throwable e) {
+            logSnapshotError("name", e);
+        }
+        try {
+            serialNo = button.getSerialNumber();
+        } catch (Throwable e) {
+            logSnapshotError("serialNo", e);
+        }
+        try {
+            connectionState = button.getConnectionState();
+        } catch (Throwable e) {
+            logSnapshotError("connection", e);
+        }
+        try {
+            firmwareVersion = button.getFirmwareVersion();
+        } catch (Throwable e) {
+            logSnapshotError("firmwareVer", e);
+        }
+        try {
+            final BatteryLevel batteryLevel = button.getLastKnownBatteryLevel();
+            if (null != batteryLevel) {
+                battPercentage = batteryLevel.getEstimatedPercentage();
+                battTimestamp = batteryLevel.getTimestampUtcMs();
+                battVoltage = batteryLevel.getVoltage();
+            }
+        } catch (Throwable e) {
+            logSnapshotError("battery", e);
+        }
+        try {
+            pressCount = button.getPressCount();
+        } catch (Throwable e) {
+            logSnapshotError("pressCount", e);
+        }
+        return new Flic2ButtonSnapshot(0, uuid, bdAddr, readyTimestamp, name, serialNo, connectionState,
+                firmwareVersion, battPercentage, battTimestamp, battVoltage, pressCount);
+    }
+
+    private static void logSnapshotError(String dataTitle, Throwable e) {
+        Logger logger = Logger.getGlobal();
+        if (logger != null) {
+            logger.warning("Something in flic failed when reading the " + dataTitle + " of a button: " + e.getMessage());
+        }
+    }
+
+    public List<Flic2Button> getButtonsDiscovered() {
+        // the registry is kept up to date as buttons are scanned and forgotten
+        return registry.getButtons();
     }
 
     public Flic2Button getButtonForAddress(String buttonAddress) {
-        return Flic2Manager.getInstance().getButtonByBdAddr(buttonAddress);
+        final Flic2ButtonRegistry.Entry entry = registry.getByAddr(buttonAddress);
+        if (null != entry) {
+            return entry.button;
+        }
+        // not one we know, but the manager might
+        final Flic2Button button = backend.getButtonByBdAddr(buttonAddress);
+        if (null != button) {
+            storeButtonData(button);
+        }
+        return button;
     }
 
     public boolean connectButton(String buttonUuid) {
         // get the button to listen to from our map and then listen to it
-        Flic2Button button;
-        synchronized (buttonsDiscovered) {
-            button = buttonsDiscovered.get(buttonUuid);
-        }
+        final Flic2Button button = registry.getButton(buttonUuid);
         if (null == button) {
             callback.onError("Cannot connect a button as don't recognise the UUID " + buttonUuid);
             return false;
         } else {
             // and connect to the button
-            button.connect();
+            connect(button);
             return true;
         }
     }
 
     public boolean disconnectButton(String buttonUuid) {
         // get the button to listen to from our map and then listen to it
-        Flic2Button button;
-        synchronized (buttonsDiscovered) {
-            button = buttonsDiscovered.get(buttonUuid);
-        }
+        final Flic2Button button = registry.getButton(buttonUuid);
         if (null == button) {
             callback.onError("Cannot disconnect a button as don't recognise the UUID " + buttonUuid);
             return false;
         } else {
             // and disconnect from the button
+            if (null != scheduler) {
+                scheduler.cancel(buttonUuid);
+            }
             button.disconnectOrAbortPendingConnection();
             return true;
         }
@@ -199,34 +683,42 @@ public class Flic2Controller {
 
     public boolean forgetButton(String buttonUuid) {
         // get the button to forget
-        Flic2Button button;
-        synchronized (buttonsDiscovered) {
-            button = buttonsDiscovered.get(buttonUuid);
-        }
+        final Flic2Button button = registry.getButton(buttonUuid);
         if (null == button) {
             callback.onError("Cannot forget a button as don't recognise the UUID " + buttonUuid);
             return false;
         } else {
             // and forget this button
-            Flic2Manager.getInstance().forgetButton(button);
+            if (null != scheduler) {
+                scheduler.cancel(buttonUuid);
+            }
+            backend.forgetButton(button);
+            removeButtonData(buttonUuid);
             return true;
         }
     }
 
     public boolean listenToButton(String buttonUuid) {
+        return listenToButton(buttonUuid, null);
+    }
+
+    /*
+     * listen to the button, passing on just the events the filter wants (all of them
+     * if the filter is null)
+     */
+    public boolean listenToButton(String buttonUuid, Flic2ButtonFilter filter) {
         // get the button to listen to from our map and then listen to it
-        Flic2Button button;
-        synchronized (buttonsDiscovered) {
-            button = buttonsDiscovered.get(buttonUuid);
-        }
+        final Flic2ButtonRegistry.Entry entry = registry.getByUuid(buttonUuid);
+        final Flic2Button button = null == entry ? null : entry.button;
         if (null == button) {
             callback.onError("Cannot to listen to a button as don't recognise the UUID " + buttonUuid);
             return false;
         } else {
+            entry.filter = filter;
             if (button.getConnectionState() == Flic2Button.CONNECTION_STATE_DISCONNECTED) {
                 // to listen to a button we need it connected first, let's assume the caller
                 // wants this done
-                button.connect();
+                connect(button);
                 // there's a function to inform the listeners of this while we are doing this
                 // ourselves
                 callback.onButtonConnected();
@@ -241,19 +733,48 @@ public class Flic2Controller {
 
     public boolean stopListeningToButton(String buttonUuid) {
         // get the button to stop listening to from our map and then listen to it
-        Flic2Button button;
-        synchronized (buttonsDiscovered) {
-            button = buttonsDiscovered.get(buttonUuid);
-        }
+        final Flic2ButtonRegistry.Entry entry = registry.getByUuid(buttonUuid);
+        final Flic2Button button = null == entry ? null : entry.button;
         if (null == button) {
             callback.onError("Cannot stop listening to a button as don't recognise the UUID " + buttonUuid);
             return false;
         } else {
             button.removeListener(buttonListener);
+            entry.filter = null;
             return true;
         }
     }
 
+    /*
+     * an operation to perform on a single button, by UUID, returning if it worked
+     */
+    public interface ButtonOperation {
+        boolean run(String buttonUuid);
+    }
+
+    /*
+     * the UUIDs of all the buttons we know about
+     */
+    public List<String> getButtonUuids() {
+        final List<String> uuids = new ArrayList<>(registry.size());
+        for (Flic2ButtonRegistry.Entry entry : registry.entries()) {
+            uuids.add(entry.uuid);
+        }
+        return uuids;
+    }
+
+    /*
+     * perform the operation on each of the buttons, returning the result for each
+     * (by UUID) in the order given
+     */
+    public Map<String, Boolean> forButtons(List<String> buttonUuids, ButtonOperation operation) {
+        final Map<String, Boolean> results = new LinkedHashMap<>();
+        for (String buttonUuid : buttonUuids) {
+            results.put(buttonUuid, operation.run(buttonUuid));
+        }
+        return results;
+    }
+
     private final Flic2ButtonListener buttonListener = new Flic2ButtonListener() {
         @Override
         public void onButtonSingleOrDoubleClickOrHold(Flic2Button button, boolean wasQueued, boolean lastQueued,
@@ -261,8 +782,26 @@ public class Flic2Controller {
             // let the base deal
             super.onButtonSingleOrDoubleClickOrHold(button, wasQueued, lastQueued, timestamp, isSingleClick,
                     isDoubleClick, isHold);
+            final Flic2ButtonRegistry.Entry entry = getEntry(button);
+            // read once, for the stats and the snapshot
+            final int pressCount = readPressCount(button, entry);
+            final long nowMs = SystemClock.elapsedRealtime();
+            if (!wasQueued) {
+                // remember this is being used so it gets connected first next time
+                entry.lastClickedMs = nowMs;
+            }
+            // counted whether it is passed on or not
+            buttonStats.onClick(getStatsSlot(entry), wasQueued, isSingleClick, isDoubleClick, isHold, pressCount,
+                    nowMs);
+            final Flic2ButtonFilter filter = entry.filter;
+            if (null != filter && !filter.isClickWanted(isSingleClick, isDoubleClick, isHold, wasQueued,
+                    wasQueued ? entry.snapshot.readyTimestamp - timestamp : 0)) {
+                // not wanted, so don't do anything more with it
+                return;
+            }
             // and pass this button press from Flic2 on to our application
-            callback.onButtonClicked(button, wasQueued, lastQueued, timestamp, isSingleClick, isDoubleClick, isHold);
+            callback.onButtonClicked(getSnapshot(entry, pressCount), wasQueued, lastQueued, timestamp, isSingleClick,
+                    isDoubleClick, isHold);
         }
 
         @Override
@@ -270,31 +809,81 @@ public class Flic2Controller {
                 boolean isUp, boolean isDown) {
             super.onButtonUpOrDown(button, wasQueued, lastQueued, timestamp, isUp, isDown);
 
-            if (!wasQueued) { // only emitted for "live" events.
+            final Flic2ButtonRegistry.Entry entry = getEntry(button);
+            // read once, for the stats and the snapshot
+            final int pressCount = readPressCount(button, entry);
+            buttonStats.onUpOrDown(getStatsSlot(entry), isDown, timestamp, pressCount, SystemClock.elapsedRealtime());
+            final Flic2ButtonFilter filter = entry.filter;
+            if (!wasQueued && (null == filter || filter.isUpOrDownWanted())) { // only emitted for "live" events.
                 // Omitting `isUp`: Guaranteed by the SDK to be !isDown. No value gained by
                 // keeping it.
-                callback.onButtonUpOrDown(button, isDown);
+                callback.onButtonUpOrDown(getSnapshot(entry, pressCount), isDown, timestamp);
             }
         }
+
+        @Override
+        public void onConnect(Flic2Button button) {
+            super.onConnect(button);
+            // the connection state has changed, so has the snapshot
+            refreshSnapshot(button);
+        }
+
+        @Override
+        public void onReady(Flic2Button button, long timestamp) {
+            super.onReady(button, timestamp);
+            refreshSnapshot(button);
+        }
+
+        @Override
+        public void onDisconnect(Flic2Button button) {
+            super.onDisconnect(button);
+            refreshSnapshot(button);
+        }
+
+        @Override
+        public void onUnpaired(Flic2Button button) {
+            super.onUnpaired(button);
+            // this button is no longer ours to use
+            removeButtonData(button.getUuid());
+        }
+
+        @Override
+        public void onNameUpdated(Flic2Button button, String newName) {
+            super.onNameUpdated(button, newName);
+            refreshSnapshot(button);
+        }
+
+        @Override
+        public void onFirmwareVersionUpdated(Flic2Button button, int newVersion) {
+            super.onFirmwareVersionUpdated(button, newVersion);
+            refreshSnapshot(button);
+        }
+
+        @Override
+        public void onBatteryLevelUpdated(Flic2Button button, BatteryLevel level) {
+            super.onBatteryLevelUpdated(button, level);
+            refreshSnapshot(button);
+        }
     };
 
     public boolean releaseFlic() {
         // cancel any scanning
         cancelButtonScan();
+        // and any connecting
+        if (null != scheduler) {
+            scheduler.clear();
+        }
         // release all the flic 2 listeners on the managers
         try {
-            Flic2Manager manager = Flic2Manager.getInstance();
-            if (null != manager) {
-                // we are probably listening to buttons, stop this
-                for (Flic2Button button : manager.getButtons()) {
-                    try {
-                        button.removeListener(buttonListener);
-                    } catch (Exception e) {
-                        callback.onError("Failed to remove listener on releasing flic " + e.getMessage());
-                    }
+            // we are probably listening to buttons, stop this
+            for (Flic2Button button : backend.getButtons()) {
+                try {
+                    button.removeListener(buttonListener);
+                } catch (Exception e) {
+                    callback.onError("Failed to remove listener on releasing flic " + e.getMessage());
                 }
-                return true;
             }
+            return true;
         } catch (Exception e) {
             callback.onError("Failed to destroy the flic two instance as it was not initialised " + e.getMessage());
         }
@@ -0,0 +1,60 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * a single event on its way back to flutter, the data is already encoded but we keep
+ * the details of the button and queue with it so the event can be batched (or held
+ * back) without having to look into the data again
+ */
+public class Flic2Event {
+  // the METHOD_FLIC2_... ID that tells flutter which callback to call
+  public final int methodId;
+
+  // the encoded data to pass to the callback (can be null)
+  public final Object data;
+
+  // the UUID of the button this is from (null if not from a button)
+  public final String buttonUuid;
+
+  // was this event sent from the queue on the button as it came back into range
+  public final boolean wasQueued;
+
+  // is this event the last in that queue
+  public final boolean lastQueued;
+
+  // when (System.nanoTime()) the listener was called with this event and when it was encoded,
+  // zero when the event isn't being timed
+  public final long createdNs;
+  public final long encodedNs;
+
+  public Flic2Event(int methodId, Object data) {
+    this(methodId, data, null, false, false);
+  }
+
+  public Flic2Event(int methodId, Object data, String buttonUuid, boolean wasQueued, boolean lastQueued) {
+    this(methodId, data, buttonUuid, wasQueued, lastQueued, 0, 0);
+  }
+
+  public Flic2Event(int methodId, Object data, String buttonUuid, boolean wasQueued, boolean lastQueued,
+      long createdNs, long encodedNs) {
+    this.methodId = methodId;
+    this.data = data;
+    this.buttonUuid = buttonUuid;
+    this.wasQueued = wasQueued;
+    this.lastQueued = lastQueued;
+    this.createdNs = createdNs;
+    this.encodedNs = encodedNs;
+  }
+
+  /*
+   * the arguments to send this over the channel as flutter expects to receive them
+   */
+  public Map<String, Object> toArguments() {
+    final Map<String, Object> args = new HashMap<>();
+    args.put("method", methodId);
+    args.put("data", data);
+    return args;
+  }
+}
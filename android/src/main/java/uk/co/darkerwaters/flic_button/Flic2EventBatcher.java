@@ -0,0 +1,77 @@
+package uk.co.darkerwaters.flic_button;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * gathers events together to send to flutter in one channel message. A button coming back
+ * into range will replay all its queued clicks at once, so rather than a channel round trip
+ * for each we hold queued events until the batch is full, the window has passed or the button
+ * tells us that was the last one in its queue. Live events are never held back, they flush
+ * anything pending and go straight away.
+ */
+public class Flic2EventBatcher {
+  /*
+   * the interface to implement to actually send the events gathered
+   */
+  public interface BatchSender {
+    void sendBatch(List<Flic2Event> events);
+  }
+
+  // the most events to put in a single message
+  private final int maxBatchSize;
+
+  // the longest (ms) we will hold on to a queued event before sending
+  private final long batchWindowMs;
+
+  // the handler for the thread we are called on, to flush when the window passes
+  private final Handler handler;
+
+  private final BatchSender sender;
+
+  private List<Flic2Event> pending;
+
+  private final Runnable flushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  public Flic2EventBatcher(int maxBatchSize, long batchWindowMs, Handler handler, BatchSender sender) {
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+    this.batchWindowMs = Math.max(0, batchWindowMs);
+    this.handler = handler;
+    this.sender = sender;
+    this.pending = new ArrayList<>(this.maxBatchSize);
+  }
+
+  /*
+   * add the event to the batch, must be called on the thread of the handler passed in
+   */
+  public void add(Flic2Event event) {
+    pending.add(event);
+    if (!event.wasQueued || event.lastQueued || pending.size() >= maxBatchSize) {
+      // live, the end of a queue or we are full, send it all now
+      flush();
+    } else if (pending.size() == 1) {
+      // the first one held, start the window for sending it
+      handler.postDelayed(flushRunnable, batchWindowMs);
+    }
+  }
+
+  /*
+   * send anything that is waiting to be sent
+   */
+  public void flush() {
+    handler.removeCallbacks(flushRunnable);
+    if (!pending.isEmpty()) {
+      // swap the list out before sending so the sender can keep the one we give it
+      final List<Flic2Event> toSend = pending;
+      pending = new ArrayList<>(maxBatchSize);
+      sender.sendBatch(toSend);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.util.List;
+
+/*
+ * the hop from the thread the events are made on to the platform thread that sends them. The
+ * first event waiting in the lanes posts a take, and the rest waiting by the time it runs go in
+ * the same hop. A take sends the live events then the queued ones the rate allows, and posts
+ * itself again for when more of those can go. That paced take is kept apart from the take posted
+ * for new events, and replaced each time, so there is only ever one of them waiting.
+ */
+public class Flic2EventDrain {
+  /*
+   * runs things on the platform thread, the handler of its looper
+   */
+  public interface Poster {
+    void post(Runnable runnable);
+
+    void postDelayed(Runnable runnable, long delayMs);
+
+    void removeCallbacks(Runnable runnable);
+  }
+
+  /*
+   * the interface to implement to actually send the events taken
+   */
+  public interface Sender {
+    void sendEvents(List<Flic2Event> events);
+  }
+
+  private final Flic2EventLanes lanes;
+  private final Poster poster;
+  private final Sender sender;
+
+  private final Runnable take = this::run;
+  private final Runnable pacedTake = this::run;
+
+  public Flic2EventDrain(Flic2EventLanes lanes, Poster poster, Sender sender) {
+    this.lanes = lanes;
+    this.poster = poster;
+    this.sender = sender;
+  }
+
+  public Flic2EventLanes getLanes() {
+    return lanes;
+  }
+
+  /*
+   * add the event, posting a take to send it if there isn't one waiting already
+   */
+  public void add(Flic2Event event, boolean isOnPlatformThread) {
+    if (lanes.add(event)) {
+      request(isOnPlatformThread);
+    }
+  }
+
+  public void addAll(List<Flic2Event> events, boolean isOnPlatformThread) {
+    if (lanes.addAll(events)) {
+      request(isOnPlatformThread);
+    }
+  }
+
+  private void request(boolean isOnPlatformThread) {
+    if (isOnPlatformThread) {
+      run();
+    } else {
+      poster.post(take);
+    }
+  }
+
+  /*
+   * take and send the events, on the platform thread
+   */
+  public void run() {
+    // send the live events that arrived since we were posted, then the queued ones the
+    // rate allows, coming back for the rest when more of them can go
+    final List<Flic2Event> events = lanes.take();
+    if (!events.isEmpty()) {
+      sender.sendEvents(events);
+    }
+    final long delayMs = lanes.schedulePacedTake();
+    // a live event's take can run while the paced one waits, there is only ever one of those
+    poster.removeCallbacks(pacedTake);
+    if (delayMs >= 0) {
+      poster.postDelayed(pacedTake, delayMs);
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+/*
+ * this converts the buttons and the button events into the data we send over the
+ * channel to flutter. The original encoding is a hand-built JSON string, which old
+ * clients still expect, the typed encoding is a map of primitives that the
+ * StandardMessageCodec can write straight to the channel with no JSON to build or parse
+ */
+public class Flic2EventEncoder {
+  public static final int ENCODING_JSON = 0;
+  public static final int ENCODING_TYPED = 1;
+  // the number of encodings, to keep something for each
+  public static final int ENCODING_COUNT = 2;
+
+  // a compact up / down carries all of the button this often, in case flutter missed one
+  public static final int COMPACT_FULL_EVERY = 64;
+
+  // the encoding the flutter side asked for when it initialised Flic 2
+  private final int encoding;
+
+  // the button last sent with a compact up / down, by UUID, so the next need only send what
+  // changed. Only used on the Flic 2 thread
+  private final Map<String, Flic2ButtonSnapshot> compactSent = new HashMap<>();
+  private final Map<String, Integer> compactSinceFull = new HashMap<>();
+
+  public Flic2EventEncoder(int encoding) {
+    this.encoding = encoding;
+  }
+
+  public int getEncoding() {
+    return encoding;
+  }
+
+  public boolean isTyped() {
+    return encoding == ENCODING_TYPED;
+  }
+
+  public Object encodeButton(Flic2ButtonSnapshot button) {
+    if (isTyped()) {
+      return ButtonToMap(button);
+    } else {
+      return ButtonToJson(button);
+    }
+  }
+
+  /*
+   * the button as it was last known, from the cache, marked as stale so flutter knows the
+   * real data is still to come
+   */
+  public Object encodeStaleButton(Flic2ButtonSnapshot button) {
+    if (isTyped()) {
+      final Map<String, Object> map = new HashMap<>(ButtonToMap(button));
+      map.put("stale", true);
+      return map;
+    } else {
+      final String json = ButtonToJson(button);
+      return json.substring(0, json.length() - 1) + ",\"stale\":true}";
+    }
+  }
+
+  public Object encodeClick(Flic2ButtonSnapshot button, boolean wasQueued, boolean lastQueued, long timestamp,
+      boolean isSingleClick, boolean isDoubleClick, boolean isHold) {
+    final long clickAge = wasQueued ? button.readyTimestamp - timestamp : 0;
+    if (isTyped()) {
+      // the same fields as the JSON, but as primitives in a map
+      final Map<String, Object> click = new HashMap<>();
+      click.put("wasQueued", wasQueued);
+      click.put("clickAge", clickAge);
+      click.put("lastQueued", lastQueued);
+      click.put("timestamp", timestamp);
+      click.put("isSingleClick", isSingleClick);
+      click.put("isDoubleClick", isDoubleClick);
+      click.put("isHold", isHold);
+      click.put("button", ButtonToMap(button));
+      return click;
+    } else {
+      // convert all this complex and bulky data to a single object to pass back
+      return "{" + "\"wasQueued\":" + wasQueued + "," + "\"clickAge\":"
+          + clickAge + "," + "\"lastQueued\":" + lastQueued + ","
+          + "\"timestamp\":" + timestamp + "," + "\"isSingleClick\":" + isSingleClick + "," + "\"isDoubleClick\":"
+          + isDoubleClick + "," + "\"isHold\":" + isHold + "," + "\"button\":" + ButtonToJson(button) + "}";
+    }
+  }
+
+  public Object encodeUpOrDown(Flic2ButtonSnapshot button, boolean down) {
+    if (isTyped()) {
+      final Map<String, Object> upOrDown = new HashMap<>();
+      upOrDown.put("down", down);
+      upOrDown.put("button", ButtonToMap(button));
+      return upOrDown;
+    } else {
+      return "{ \"down\": " + down + ",  \"button\": " + ButtonToJson(button) + "}";
+    }
+  }
+
+  /*
+   * the up / down as just the UUID of the button, the direction and the time with only the
+   * data of the button that changed since the last compact up / down (all of it for the first).
+   * The version of the button the changes are from is sent as the base so flutter can tell if it
+   * missed one. Called on the Flic 2 thread
+   */
+  public Object encodeCompactUpOrDown(Flic2ButtonSnapshot button, boolean down, long timestamp) {
+    final Flic2ButtonSnapshot previous = compactSent.get(button.uuid);
+    final Integer sinceFull = compactSinceFull.get(button.uuid);
+    final boolean isFull = null == previous || null == sinceFull || sinceFull >= COMPACT_FULL_EVERY;
+    final Map<String, Object> changed;
+    if (isFull) {
+      changed = ButtonToMap(button);
+      compactSinceFull.put(button.uuid, 1);
+    } else {
+      changed = previous.version == button.version ? Collections.<String, Object>emptyMap()
+          : ChangedFields(ButtonToMap(previous), ButtonToMap(button));
+      compactSinceFull.put(button.uuid, sinceFull + 1);
+    }
+    compactSent.put(button.uuid, button);
+    final long base = isFull ? 0 : previous.version;
+    if (isTyped()) {
+      final Map<String, Object> upOrDown = new HashMap<>();
+      upOrDown.put("uuid", button.uuid);
+      upOrDown.put("down", down);
+      upOrDown.put("timestamp", timestamp);
+      upOrDown.put("base", base);
+      upOrDown.put("version", button.version);
+      upOrDown.put("changed", changed);
+      return upOrDown;
+    } else {
+      final StringBuilder sb = new StringBuilder("{");
+      AddParamToJson(sb, "uuid", () -> button.uuid).append(",");
+      sb.append("\"down\":").append(down).append(",");
+      sb.append("\"timestamp\":").append(timestamp).append(",");
+      sb.append("\"base\":").append(base).append(",");
+      sb.append("\"version\":").append(button.version).append(",");
+      if (isFull) {
+        sb.append("\"changed\":").append(ButtonToJson(button));
+      } else {
+        sb.append("\"changed\":{");
+        boolean isFirst = true;
+        for (Map.Entry<String, Object> field : changed.entrySet()) {
+          if (!isFirst) {
+            sb.append(",");
+          }
+          AddParamToJson(sb, field.getKey(), field::getValue);
+          isFirst = false;
+        }
+        sb.append("}");
+      }
+      return sb.append("}").toString();
+    }
+  }
+
+  /*
+   * the button (by UUID) is gone, forget what was last sent of it with a compact up / down so
+   * if it is paired again it starts with all of it. Called on the Flic 2 thread
+   */
+  public void forgetButton(String buttonUuid) {
+    compactSent.remove(buttonUuid);
+    compactSinceFull.remove(buttonUuid);
+  }
+
+  /*
+   * the fields of the button (as the map we send) that are different now to how they were
+   */
+  static Map<String, Object> ChangedFields(Map<String, Object> before, Map<String, Object> now) {
+    final Map<String, Object> changed = new HashMap<>();
+    for (Map.Entry<String, Object> field : now.entrySet()) {
+      final Object value = field.getValue();
+      final Object was = before.get(field.getKey());
+      if (value == null ? was != null : !value.equals(was)) {
+        changed.put(field.getKey(), value);
+      }
+    }
+    return changed;
+  }
+
+  static StringBuilder AddParamToJson(StringBuilder jsonString, String dataTitle,
+      Callable<Object> dataFunction) {
+    // start the title
+    jsonString.append("\"");
+    jsonString.append(dataTitle);
+    jsonString.append("\":");
+    try {
+      // now the data as the function manages
+      final Object result = dataFunction.call();
+      if (result == null) {
+        // just add the null as a string
+        jsonString.append("null");
+      } else if (result instanceof String) {
+        // add the resulting data bounded with quotes, but maybe adding invalid strings
+        // cause the problem?
+        String stringAddResult = "null";
+        try {
+          StringBuilder stringResultBuilder = new StringBuilder();
+          stringResultBuilder.append("\"");
+          // strings can't contain JSON quotes or slashes
+          final String cleanResult = ((String) result)
+              .replaceAll("\"", "'")
+              .replaceAll("\r", "")
+              .replaceAll("\n", "")
+              .replaceAll("\\\\", "");
+          stringResultBuilder.append(cleanResult);
+          stringResultBuilder.append("\"");
+          stringAddResult = stringResultBuilder.toString();
+        } catch (Throwable e) {
+          // yep - failed to add the string
+          stringAddResult = "null";
+          Logger logger = Logger.getGlobal();
+          if (logger != null) {
+            logger.warning(
+                "Something in flic failed when constructing the JSON with string: \"" + result + "\"" + e.getMessage());
+          }
+        }
+        jsonString.append(stringAddResult);
+      } else {
+        // just append as the raw data type
+        jsonString.append(result);
+      }
+    } catch (Throwable e) {
+      // failed, add the data as "null" to something is returned
+      jsonString.append("null");
+      // and log the error to help in the future here
+      Logger logger = Logger.getGlobal();
+      if (logger != null) {
+        logger.warning("Something in flic failed when constructing the JSON return: " + e.getMessage());
+      }
+    }
+    // returning the string build so this can be chained
+    return jsonString;
+  }
+
+  static String ButtonToJson(Flic2ButtonSnapshot button) {
+    // the snapshot doesn't change, so once built we can use the same string each time
+    String json = button.encodedJson;
+    if (null == json) {
+      json = SnapshotToJson(button);
+      button.encodedJson = json;
+    }
+    return json;
+  }
+
+  static String SnapshotToJson(Flic2ButtonSnapshot button) {
+    final StringBuilder sb = new StringBuilder("{");
+    // let's be super careful about constructing our json string here as the
+    // strings have been known to contain strange '����'
+    AddParamToJson(sb, "uuid", () -> button.uuid).append(",");
+    AddParamToJson(sb, "bdAddr", () -> button.bdAddr).append(",");
+    AddParamToJson(sb, "readyTime", () -> button.readyTimestamp).append(",");
+    AddParamToJson(sb, "name", () -> button.name).append(",");
+    AddParamToJson(sb, "serialNo", () -> button.serialNo).append(",");
+    AddParamToJson(sb, "connection", () -> button.connectionState).append(",");
+    AddParamToJson(sb, "firmwareVer", () -> button.firmwareVersion).append(",");
+    AddParamToJson(sb, "battPerc", () -> button.battPercentage).append(",");
+    AddParamToJson(sb, "battTime", () -> button.battTimestamp).append(",");
+    AddParamToJson(sb, "battVolt", () -> button.battVoltage).append(",");
+    // the last one requires no comma at the end
+    AddParamToJson(sb, "pressCount", () -> button.pressCount);
+    // but it does require an ending curly brace
+    sb.append("}");
+    // which we can return
+    return sb.toString();
+  }
+
+  static Map<String, Object> ButtonToMap(Flic2ButtonSnapshot button) {
+    // the snapshot doesn't change, so once built we can send the same (unmodifiable) map each time
+    Map<String, Object> map = button.encodedMap;
+    if (null == map) {
+      map = Collections.unmodifiableMap(SnapshotToMap(button));
+      button.encodedMap = map;
+    }
+    return map;
+  }
+
+  static Map<String, Object> SnapshotToMap(Flic2ButtonSnapshot button) {
+    final Map<String, Object> map = new HashMap<>();
+    map.put("uuid", button.uuid);
+    map.put("bdAddr", button.bdAddr);
+    map.put("readyTime", button.readyTimestamp);
+    map.put("name", button.name);
+    map.put("serialNo", button.serialNo);
+    map.put("connection", button.connectionState);
+    map.put("firmwareVer", button.firmwareVersion);
+    map.put("battPerc", button.battPercentage);
+    map.put("battTime", button.battTimestamp);
+    map.put("battVolt", button.battVoltage);
+    map.put("pressCount", button.pressCount);
+    return map;
+  }
+}
@@ -0,0 +1,204 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * an append-only journal of the clicks and up / downs of the buttons, in a memory mapped file
+ * so the clicks that happen while there is no flutter engine to send them to are still there
+ * for the next engine to read. Each record is a fixed 32 bytes in a ring of a fixed number of
+ * records, the oldest overwritten as it wraps. Writing a record is a handful of puts into the
+ * mapped buffer, with no objects created and nothing forced to disk (the OS writes the pages
+ * back in its own time, even if the process dies).
+ *
+ * header (64 bytes): magic, version, capacity, record size (ints), next sequence (long)
+ * record (32 bytes): sequence, button timestamp, wall clock ms (longs), bdAddr (6 bytes), type, flags
+ */
+public class Flic2EventJournal {
+  public static final byte TYPE_CLICK = 1;
+  public static final byte TYPE_UP_OR_DOWN = 2;
+
+  public static final int FLAG_WAS_QUEUED = 1;
+  public static final int FLAG_LAST_QUEUED = 1 << 1;
+  public static final int FLAG_SINGLE_CLICK = 1 << 2;
+  public static final int FLAG_DOUBLE_CLICK = 1 << 3;
+  public static final int FLAG_HOLD = 1 << 4;
+  public static final int FLAG_DOWN = 1 << 5;
+
+  private static final int MAGIC = 0x464C4A31;
+  private static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 64;
+  private static final int HEADER_MAGIC = 0;
+  private static final int HEADER_VERSION = 4;
+  private static final int HEADER_CAPACITY = 8;
+  private static final int HEADER_RECORD_SIZE = 12;
+  private static final int HEADER_NEXT_SEQUENCE = 16;
+
+  private static final int RECORD_SIZE = 32;
+  private static final int RECORD_SEQUENCE = 0;
+  private static final int RECORD_TIMESTAMP = 8;
+  private static final int RECORD_WALL_MS = 16;
+  private static final int RECORD_BD_ADDR = 24;
+  private static final int RECORD_TYPE = 30;
+  private static final int RECORD_FLAGS = 31;
+
+  private static final int BD_ADDR_LENGTH = 6;
+
+  private final MappedByteBuffer buffer;
+
+  // the number of records in the ring
+  private final int capacity;
+
+  // the sequence number of the next record to write, the first is one
+  private long nextSequence;
+
+  private Flic2EventJournal(MappedByteBuffer buffer, int capacity) {
+    this.buffer = buffer;
+    this.capacity = capacity;
+    if (buffer.getInt(HEADER_MAGIC) == MAGIC && buffer.getInt(HEADER_VERSION) == VERSION
+        && buffer.getInt(HEADER_CAPACITY) == capacity && buffer.getInt(HEADER_RECORD_SIZE) == RECORD_SIZE) {
+      // carry on from where the last process got to
+      this.nextSequence = Math.max(1, buffer.getLong(HEADER_NEXT_SEQUENCE));
+    } else {
+      // new (or not one we can read), start again
+      for (int i = 0; i < HEADER_SIZE + capacity * RECORD_SIZE; i += 8) {
+        buffer.putLong(i, 0);
+      }
+      buffer.putInt(HEADER_MAGIC, MAGIC);
+      buffer.putInt(HEADER_VERSION, VERSION);
+      buffer.putInt(HEADER_CAPACITY, capacity);
+      buffer.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+      this.nextSequence = 1;
+      buffer.putLong(HEADER_NEXT_SEQUENCE, nextSequence);
+    }
+  }
+
+  /*
+   * open the journal in the file, holding this many records before it wraps
+   */
+  public static Flic2EventJournal open(File file, int capacity) throws IOException {
+    final int records = Math.max(16, capacity);
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      // the mapping stays valid after the file is closed
+      final MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+          HEADER_SIZE + (long) records * RECORD_SIZE);
+      return new Flic2EventJournal(buffer, records);
+    }
+  }
+
+  public synchronized long getNextSequence() {
+    return nextSequence;
+  }
+
+  /*
+   * add a record of the event to the journal
+   */
+  public synchronized void append(byte type, int flags, String bdAddr, long timestamp) {
+    final long sequence = nextSequence++;
+    final int offset = HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+    // clear the sequence first, so a half written record is never read as valid
+    buffer.putLong(offset + RECORD_SEQUENCE, 0);
+    buffer.putLong(offset + RECORD_TIMESTAMP, timestamp);
+    buffer.putLong(offset + RECORD_WALL_MS, System.currentTimeMillis());
+    putBdAddr(offset + RECORD_BD_ADDR, bdAddr);
+    buffer.put(offset + RECORD_TYPE, type);
+    buffer.put(offset + RECORD_FLAGS, (byte) flags);
+    buffer.putLong(offset + RECORD_SEQUENCE, sequence);
+    buffer.putLong(HEADER_NEXT_SEQUENCE, nextSequence);
+  }
+
+  /*
+   * read the records after the cursor (the sequence of the last one read, zero for
+   * everything), at most maxRecords of them. The cursor to pass next time is returned
+   * with them, as is the number missed because the ring wrapped past them. A cursor ahead
+   * of the journal (kept from before it was started again, when the capacity or the version
+   * changed) is reset, there are no records and the cursor returned is of the latest
+   */
+  public synchronized Map<String, Object> read(long cursor, int maxRecords) {
+    final Map<String, Object> result = new HashMap<>();
+    if (cursor >= nextSequence) {
+      result.put("records", new ArrayList<Map<String, Object>>());
+      result.put("cursor", nextSequence - 1);
+      result.put("missed", 0L);
+      result.put("reset", true);
+      return result;
+    }
+    final long oldest = Math.max(1, nextSequence - capacity);
+    final long first = Math.max(cursor + 1, oldest);
+    final long last = Math.min(nextSequence, first + Math.max(0, maxRecords));
+    final List<Map<String, Object>> records = new ArrayList<>((int) Math.max(0, last - first));
+    long readTo = cursor;
+    for (long sequence = first; sequence < last; ++sequence) {
+      final int offset = HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+      readTo = sequence;
+      if (buffer.getLong(offset + RECORD_SEQUENCE) != sequence) {
+        // not written properly, skip it
+        continue;
+      }
+      final int flags = buffer.get(offset + RECORD_FLAGS);
+      final Map<String, Object> record = new HashMap<>();
+      record.put("seq", sequence);
+      record.put("timestamp", buffer.getLong(offset + RECORD_TIMESTAMP));
+      record.put("wallMs", buffer.getLong(offset + RECORD_WALL_MS));
+      record.put("bdAddr", getBdAddr(offset + RECORD_BD_ADDR));
+      record.put("type", (int) buffer.get(offset + RECORD_TYPE));
+      record.put("flags", flags & 0xFF);
+      records.add(record);
+    }
+    result.put("records", records);
+    result.put("cursor", Math.max(readTo, cursor));
+    result.put("missed", Math.max(0, oldest - (cursor + 1)));
+    result.put("reset", false);
+    return result;
+  }
+
+  /*
+   * write the journal out to the file now, for when we are shutting down
+   */
+  public synchronized void flush() {
+    buffer.force();
+  }
+
+  private void putBdAddr(int offset, String bdAddr) {
+    // "AA:BB:CC:DD:EE:FF" into six bytes, without creating anything to do it
+    int written = 0;
+    int value = 0;
+    int digits = 0;
+    final int length = null == bdAddr ? 0 : bdAddr.length();
+    for (int i = 0; i < length && written < BD_ADDR_LENGTH; ++i) {
+      final int digit = Character.digit(bdAddr.charAt(i), 16);
+      if (digit >= 0) {
+        value = (value << 4) | digit;
+        if (++digits == 2) {
+          buffer.put(offset + written++, (byte) value);
+          value = 0;
+          digits = 0;
+        }
+      }
+    }
+    while (written < BD_ADDR_LENGTH) {
+      buffer.put(offset + written++, (byte) 0);
+    }
+  }
+
+  private String getBdAddr(int offset) {
+    final StringBuilder sb = new StringBuilder(17);
+    for (int i = 0; i < BD_ADDR_LENGTH; ++i) {
+      if (i > 0) {
+        sb.append(':');
+      }
+      final int value = buffer.get(offset + i) & 0xFF;
+      sb.append(Character.toUpperCase(Character.forDigit(value >> 4, 16)));
+      sb.append(Character.toUpperCase(Character.forDigit(value & 0xF, 16)));
+    }
+    return sb.toString();
+  }
+}
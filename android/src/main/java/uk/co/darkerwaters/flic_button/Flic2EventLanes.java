@@ -0,0 +1,179 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * the events waiting for the platform thread to send them, in two lanes. A button that has
+ * been out of range a long time replays its whole queue of clicks when it comes back, and with
+ * a single queue a click happening now (on that button or any other) waits behind all of them.
+ * So the live events have a lane of their own, always sent first, and the queued events are
+ * sent after them, no faster than the rate set (zero for as fast as they come) so the replay
+ * of a backlog happens in the background and never holds up what is happening now.
+ *
+ * events are added on the Flic 2 thread and taken on the platform thread, so everything is
+ * synchronized. Each lane counts how deep it got and how long events waited in it.
+ */
+public class Flic2EventLanes {
+  /*
+   * an event in a lane, with when it went in
+   */
+  private static final class Waiting {
+    final Flic2Event event;
+    final long addedNs;
+
+    Waiting(Flic2Event event, long addedNs) {
+      this.event = event;
+      this.addedNs = addedNs;
+    }
+  }
+
+  /*
+   * the events in one of the lanes, and the counts of what went through it
+   */
+  private static final class Lane {
+    final ArrayDeque<Waiting> waiting = new ArrayDeque<>();
+    final Flic2Histogram waitNs = new Flic2Histogram();
+    long added = 0;
+    long sent = 0;
+    int maxDepth = 0;
+
+    void add(Flic2Event event, long nowNs) {
+      waiting.addLast(new Waiting(event, nowNs));
+      ++added;
+      maxDepth = Math.max(maxDepth, waiting.size());
+    }
+
+    Flic2Event take(long nowNs) {
+      final Waiting next = waiting.pollFirst();
+      waitNs.record(nowNs - next.addedNs);
+      ++sent;
+      return next.event;
+    }
+
+    Map<String, Object> toMap() {
+      final Map<String, Object> stats = new HashMap<>();
+      stats.put("depth", waiting.size());
+      stats.put("maxDepth", maxDepth);
+      stats.put("added", added);
+      stats.put("sent", sent);
+      stats.put("wait", waitNs.toMap());
+      return stats;
+    }
+  }
+
+  private final Lane live = new Lane();
+  private final Lane queued = new Lane();
+
+  // the most queued events sent each second, zero for no limit, and how many can go now
+  private final int queuedPerSecond;
+  private final double maxTokens;
+  private double tokens;
+  private long refilledNs;
+
+  // is a take posted to run right away, and one posted for when more queued events can go
+  private boolean isTakePosted = false;
+  private boolean isPacedTakePosted = false;
+
+  public Flic2EventLanes(int queuedPerSecond) {
+    this.queuedPerSecond = Math.max(0, queuedPerSecond);
+    // a tenth of a second of them can go together
+    this.maxTokens = Math.max(1, this.queuedPerSecond / 10.0);
+    this.tokens = this.maxTokens;
+    this.refilledNs = System.nanoTime();
+  }
+
+  /*
+   * add the event to its lane, returning if a take needs posting to send it
+   */
+  public synchronized boolean add(Flic2Event event) {
+    final long nowNs = System.nanoTime();
+    if (event.wasQueued) {
+      queued.add(event, nowNs);
+      // a queued event can wait for the paced take if there is one
+      return requestTake(isPacedTakePosted);
+    } else {
+      live.add(event, nowNs);
+      return requestTake(false);
+    }
+  }
+
+  /*
+   * add the events (a batch) to their lanes, returning if a take needs posting to send them
+   */
+  public synchronized boolean addAll(List<Flic2Event> events) {
+    boolean isPosting = false;
+    for (Flic2Event event : events) {
+      isPosting |= add(event);
+    }
+    return isPosting;
+  }
+
+  /*
+   * take all the live events, then as many queued events as the rate allows right now
+   */
+  public synchronized List<Flic2Event> take() {
+    isTakePosted = false;
+    isPacedTakePosted = false;
+    final long nowNs = System.nanoTime();
+    final List<Flic2Event> events = new ArrayList<>(live.waiting.size() + Math.min(queued.waiting.size(), 64));
+    while (!live.waiting.isEmpty()) {
+      events.add(live.take(nowNs));
+    }
+    if (queuedPerSecond == 0) {
+      while (!queued.waiting.isEmpty()) {
+        events.add(queued.take(nowNs));
+      }
+    } else {
+      refill(nowNs);
+      while (!queued.waiting.isEmpty() && tokens >= 1) {
+        tokens -= 1;
+        events.add(queued.take(nowNs));
+      }
+    }
+    return events;
+  }
+
+  /*
+   * the time (ms) till the queued events left can be taken, -1 if there are none. Call after
+   * a take, this counts the take as posted for then
+   */
+  public synchronized long schedulePacedTake() {
+    if (queued.waiting.isEmpty()) {
+      return -1;
+    }
+    isPacedTakePosted = true;
+    if (queuedPerSecond == 0) {
+      return 0;
+    }
+    refill(System.nanoTime());
+    return Math.max(1, (long) Math.ceil((1 - tokens) * 1000.0 / queuedPerSecond));
+  }
+
+  /*
+   * how deep each lane is and how long the events waited in it
+   */
+  public synchronized Map<String, Object> getStats() {
+    final Map<String, Object> stats = new HashMap<>();
+    stats.put("live", live.toMap());
+    stats.put("queued", queued.toMap());
+    stats.put("queuedPerSecond", queuedPerSecond);
+    return stats;
+  }
+
+  private boolean requestTake(boolean isCovered) {
+    if (isTakePosted || isCovered) {
+      return false;
+    }
+    isTakePosted = true;
+    return true;
+  }
+
+  private void refill(long nowNs) {
+    tokens = Math.min(maxTokens, tokens + (nowNs - refilledNs) * queuedPerSecond / 1e9);
+    refilledNs = nowNs;
+  }
+}
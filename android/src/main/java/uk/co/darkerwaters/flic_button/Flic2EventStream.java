@@ -0,0 +1,154 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import io.flutter.plugin.common.EventChannel;
+
+/*
+ * streams the events to flutter over an EventChannel rather than invoking a method for each.
+ * The events wait in a bounded queue here and flutter has to acknowledge the events it has
+ * processed before we send any more than the window allows, so a slow dart isolate holds the
+ * events here (where we can count and limit them) rather than them piling up in the engine.
+ * Everything in here is called on the platform (main) thread.
+ */
+public class Flic2EventStream implements EventChannel.StreamHandler {
+  // when full, drop the oldest event waiting to make room
+  public static final int OVERFLOW_DROP_OLDEST = 0;
+  // when full, replace a waiting up / down from the same button (else drop the oldest)
+  public static final int OVERFLOW_COALESCE_UP_DOWN = 1;
+  // when full, refuse any more replayed (queued) clicks, live events still make room
+  public static final int OVERFLOW_BLOCK_QUEUED = 2;
+
+  // the most events we will hold waiting to send
+  private final int capacity;
+
+  // the most events we will send that flutter has not acknowledged yet
+  private final int window;
+
+  private final int overflowPolicy;
+
+  private final ArrayDeque<Flic2Event> queue;
+
+  private EventChannel.EventSink sink = null;
+
+  private int inFlight = 0;
+
+  private long sentCount = 0;
+  private long droppedCount = 0;
+  private long coalescedCount = 0;
+
+  public Flic2EventStream(int capacity, int window, int overflowPolicy) {
+    this.capacity = Math.max(1, capacity);
+    this.window = Math.max(1, window);
+    this.overflowPolicy = overflowPolicy;
+    this.queue = new ArrayDeque<>(this.capacity);
+  }
+
+  @Override
+  public void onListen(Object arguments, EventChannel.EventSink events) {
+    // flutter is listening, anything sent to an old listener is gone now
+    this.sink = events;
+    this.inFlight = 0;
+    drain();
+  }
+
+  @Override
+  public void onCancel(Object arguments) {
+    // hold on to events till they listen again
+    this.sink = null;
+  }
+
+  /*
+   * add the event to the stream to send as soon as flutter is ready
+   */
+  public void offer(Flic2Event event) {
+    if (queue.size() >= capacity && !makeRoomFor(event)) {
+      // no room for this one
+      ++droppedCount;
+    } else {
+      queue.addLast(event);
+    }
+    drain();
+  }
+
+  /*
+   * flutter has processed this many events, so we can send more
+   */
+  public void acknowledge(int count) {
+    inFlight = Math.max(0, inFlight - count);
+    drain();
+  }
+
+  public Map<String, Object> getStats() {
+    final Map<String, Object> stats = new HashMap<>();
+    stats.put("queued", queue.size());
+    stats.put("inFlight", inFlight);
+    stats.put("sent", sentCount);
+    stats.put("dropped", droppedCount);
+    stats.put("coalesced", coalescedCount);
+    return stats;
+  }
+
+  private boolean makeRoomFor(Flic2Event event) {
+    switch (overflowPolicy) {
+      case OVERFLOW_COALESCE_UP_DOWN:
+        if (event.methodId == FlicButtonPlugin.METHOD_FLIC2_BUTTON_UP_DOWN && removeLastUpOrDown(event.buttonUuid)) {
+          // this newer state of the button replaces the one waiting
+          ++coalescedCount;
+          return true;
+        }
+        break;
+      case OVERFLOW_BLOCK_QUEUED:
+        if (event.wasQueued) {
+          // the replay can't come in till there is space
+          return false;
+        } else if (removeFirstQueued()) {
+          // live events go ahead of old replays
+          ++droppedCount;
+          return true;
+        }
+        break;
+      default:
+        break;
+    }
+    // just make space by dropping the oldest
+    queue.pollFirst();
+    ++droppedCount;
+    return true;
+  }
+
+  private boolean removeLastUpOrDown(String buttonUuid) {
+    final Iterator<Flic2Event> iterator = queue.descendingIterator();
+    while (iterator.hasNext()) {
+      final Flic2Event waiting = iterator.next();
+      if (waiting.methodId == FlicButtonPlugin.METHOD_FLIC2_BUTTON_UP_DOWN && null != buttonUuid
+          && buttonUuid.equals(waiting.buttonUuid)) {
+        iterator.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean removeFirstQueued() {
+    final Iterator<Flic2Event> iterator = queue.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().wasQueued) {
+        iterator.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void drain() {
+    while (null != sink && inFlight < window && !queue.isEmpty()) {
+      sink.success(queue.pollFirst().toArguments());
+      ++inFlight;
+      ++sentCount;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * a histogram of times (ns) that can be recorded to from any thread without locking. Like an
+ * HDR histogram, values below 32 each have a bucket and above that each power of two is split
+ * into 32 buckets, so a value is always within about 3% of the bucket it is counted in and the
+ * whole range (up to minutes) fits in a couple of thousand counters. Recording is finding the
+ * bucket from the bits of the value and an atomic increment, the percentiles are worked out
+ * when they are read.
+ */
+public class Flic2Histogram {
+  private static final int SUB_BITS = 5;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  // 2^40ns is over 18 minutes, anything longer goes in the last bucket
+  private static final int MAX_BITS = 40;
+  private static final int BUCKET_COUNT = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long valueNs) {
+    final long value = Math.max(0, valueNs);
+    counts.incrementAndGet(indexOf(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long currentMax = max.get();
+    while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+      currentMax = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  /*
+   * the value (ns) that the fraction (0.5 for the median) of the values are at or below
+   */
+  public long getPercentile(double fraction) {
+    final long total = count.get();
+    if (total == 0) {
+      return 0;
+    }
+    final long target = Math.max(1, (long) Math.ceil(fraction * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(valueAt(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  public Map<String, Object> toMap() {
+    final Map<String, Object> map = new HashMap<>();
+    final long total = count.get();
+    map.put("count", total);
+    map.put("meanNs", total == 0 ? 0 : sum.get() / total);
+    map.put("maxNs", max.get());
+    map.put("p50Ns", getPercentile(0.5));
+    map.put("p90Ns", getPercentile(0.9));
+    map.put("p99Ns", getPercentile(0.99));
+    map.put("p999Ns", getPercentile(0.999));
+    return map;
+  }
+
+  private static int indexOf(long value) {
+    if (value < SUB_COUNT) {
+      return (int) value;
+    }
+    // the top SUB_BITS + 1 bits of the value, the shift says which power of two it's in
+    final int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+    final int index = (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    return Math.min(BUCKET_COUNT - 1, index);
+  }
+
+  private static long valueAt(int index) {
+    if (index < SUB_COUNT) {
+      return index;
+    }
+    // the middle of the range of values the bucket counts
+    final int shift = index / SUB_COUNT - 1;
+    final long lowest = (long) (index % SUB_COUNT + SUB_COUNT) << shift;
+    return lowest + ((1L << shift) >> 1);
+  }
+}
@@ -0,0 +1,50 @@
+package uk.co.darkerwaters.flic_button;
+
+import android.content.Context;
+import android.os.Handler;
+
+import java.util.List;
+
+import io.flic.flic2libandroid.Flic2Button;
+import io.flic.flic2libandroid.Flic2Manager;
+import io.flic.flic2libandroid.Flic2ScanCallback;
+
+/*
+ * the backend of the real buttons, the Flic2Manager of the Flic 2 library
+ */
+public class Flic2ManagerBackend implements Flic2Backend {
+  private final Flic2Manager manager;
+
+  /*
+   * initialise the manager to run on the thread of the handler, this is a single
+   * instance for the whole process so only the first handler it is given counts
+   */
+  public Flic2ManagerBackend(Context context, Handler handler) {
+    this.manager = Flic2Manager.initAndGetInstance(context, handler);
+  }
+
+  @Override
+  public List<Flic2Button> getButtons() {
+    return manager.getButtons();
+  }
+
+  @Override
+  public Flic2Button getButtonByBdAddr(String bdAddr) {
+    return manager.getButtonByBdAddr(bdAddr);
+  }
+
+  @Override
+  public void startScan(Flic2ScanCallback callback) {
+    manager.startScan(callback);
+  }
+
+  @Override
+  public void stopScan() {
+    manager.stopScan();
+  }
+
+  @Override
+  public void forgetButton(Flic2Button button) {
+    manager.forgetButton(button);
+  }
+}
@@ -0,0 +1,143 @@
+package uk.co.darkerwaters.flic_button;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * where the time goes between a button being pressed and the event being sent to flutter, and
+ * counts of what was sent. The stages are timed as:
+ *  sdkToListener - the timestamp of the press from the Flic 2 library to our listener being called
+ *                  (live events only, a queued event's age is how long it was out of range)
+ *  listenerToEncoded - our listener being called to the event being encoded
+ *  encodedToSent - encoded to invokeMethod (or the stream) on the platform thread, this is
+ *                  the batching and the hop between threads
+ *  listenerToSent - the whole of our part
+ * Everything here is atomic so it can be recorded from the Flic 2 and platform threads (and
+ * read from the task queue) with no locking.
+ */
+public class Flic2Metrics {
+  public final Flic2Histogram sdkToListener = new Flic2Histogram();
+  public final Flic2Histogram listenerToEncoded = new Flic2Histogram();
+  public final Flic2Histogram encodedToSent = new Flic2Histogram();
+  public final Flic2Histogram listenerToSent = new Flic2Histogram();
+
+  private final ConcurrentHashMap<Integer, AtomicLong> byType = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, AtomicLong> byButton = new ConcurrentHashMap<>();
+  private final AtomicLong live = new AtomicLong();
+  private final AtomicLong queued = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  // when the listener was called for the button event being handled now, zero if there
+  // isn't one. Only used on the Flic 2 thread
+  private long currentEventNs = 0;
+
+  /*
+   * the listener has been called with an event from the button, called on the Flic 2 thread
+   */
+  public void beginEvent(long sdkTimestamp, boolean wasQueued) {
+    currentEventNs = System.nanoTime();
+    if (!wasQueued && sdkTimestamp > 0) {
+      // the library stamps events with the uptime clock (ms)
+      sdkToListener.record((SystemClock.uptimeMillis() - sdkTimestamp) * 1000000L);
+    }
+  }
+
+  public void endEvent() {
+    currentEventNs = 0;
+  }
+
+  /*
+   * when the listener was called for the event being handled now (or now if not called from
+   * the listener, as when replaying a trace)
+   */
+  public long getCurrentEventNs() {
+    return currentEventNs == 0 ? System.nanoTime() : currentEventNs;
+  }
+
+  /*
+   * the event has been encoded, returning when (ns)
+   */
+  public long onEncoded(long eventNs) {
+    final long encodedNs = System.nanoTime();
+    listenerToEncoded.record(encodedNs - eventNs);
+    return encodedNs;
+  }
+
+  /*
+   * the event is being sent to flutter, called on the platform thread
+   */
+  public void onSent(Flic2Event event) {
+    final long sentNs = System.nanoTime();
+    if (event.encodedNs != 0) {
+      encodedToSent.record(sentNs - event.encodedNs);
+      listenerToSent.record(sentNs - event.createdNs);
+    }
+    increment(byType, event.methodId);
+    if (null != event.buttonUuid) {
+      increment(byButton, event.buttonUuid);
+      if (event.wasQueued) {
+        queued.incrementAndGet();
+      } else {
+        live.incrementAndGet();
+      }
+    }
+    if (event.methodId == FlicButtonPlugin.METHOD_FLIC2_ERROR) {
+      errors.incrementAndGet();
+    }
+  }
+
+  public void onError() {
+    errors.incrementAndGet();
+  }
+
+  public Map<String, Object> toMap() {
+    final Map<String, Object> map = new HashMap<>();
+    map.put("sdkToListener", sdkToListener.toMap());
+    map.put("listenerToEncoded", listenerToEncoded.toMap());
+    map.put("encodedToSent", encodedToSent.toMap());
+    map.put("listenerToSent", listenerToSent.toMap());
+    final Map<String, Object> types = new HashMap<>();
+    for (Map.Entry<Integer, AtomicLong> entry : byType.entrySet()) {
+      types.put(String.valueOf(entry.getKey()), entry.getValue().get());
+    }
+    map.put("byType", types);
+    final Map<String, Object> buttons = new HashMap<>();
+    for (Map.Entry<String, AtomicLong> entry : byButton.entrySet()) {
+      buttons.put(entry.getKey(), entry.getValue().get());
+    }
+    map.put("byButton", buttons);
+    map.put("live", live.get());
+    map.put("queued", queued.get());
+    map.put("errors", errors.get());
+    return map;
+  }
+
+  public void reset() {
+    sdkToListener.reset();
+    listenerToEncoded.reset();
+    encodedToSent.reset();
+    listenerToSent.reset();
+    byType.clear();
+    byButton.clear();
+    live.set(0);
+    queued.set(0);
+    errors.set(0);
+  }
+
+  private static <K> void increment(ConcurrentHashMap<K, AtomicLong> counts, K key) {
+    AtomicLong counter = counts.get(key);
+    if (null == counter) {
+      // only the first of each key has to add it
+      final AtomicLong added = new AtomicLong();
+      counter = counts.putIfAbsent(key, added);
+      if (null == counter) {
+        counter = added;
+      }
+    }
+    counter.incrementAndGet();
+  }
+}
@@ -0,0 +1,150 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.util.Map;
+
+/*
+ * the options flutter can pass to initializeFlic2, old clients pass nothing at all so
+ * every option has to default to the way things always worked
+ */
+public class Flic2Options {
+  // start the controller before answering initialise, as it always did
+  public static final int INIT_EAGER = 0;
+  // answer initialise straight away and start the controller after, on the Flic 2 thread
+  public static final int INIT_ASYNC = 1;
+  // don't start the controller till the first call that needs it
+  public static final int INIT_LAZY = 2;
+
+  public static final String KEY_ENCODING = "encoding";
+  public static final String KEY_BATCH_SIZE = "batchSize";
+  public static final String KEY_BATCH_WINDOW_MS = "batchWindowMs";
+  public static final String KEY_EVENT_STREAM = "eventStream";
+  public static final String KEY_STREAM_CAPACITY = "streamCapacity";
+  public static final String KEY_STREAM_WINDOW = "streamWindow";
+  public static final String KEY_STREAM_OVERFLOW = "streamOverflow";
+  public static final String KEY_FLIC_THREAD = "flicThread";
+  public static final String KEY_MAX_CONNECTING = "maxConnecting";
+  public static final String KEY_CONNECT_TIMEOUT_MS = "connectTimeoutMs";
+  public static final String KEY_BACKOFF_BASE_MS = "backoffBaseMs";
+  public static final String KEY_BACKOFF_MAX_MS = "backoffMaxMs";
+  public static final String KEY_MAX_CONNECT_ATTEMPTS = "maxConnectAttempts";
+  public static final String KEY_JOURNAL = "journal";
+  public static final String KEY_JOURNAL_CAPACITY = "journalCapacity";
+  public static final String KEY_INIT_MODE = "initMode";
+  public static final String KEY_COMPACT_UP_OR_DOWN = "compactUpOrDown";
+  public static final String KEY_BUTTON_CACHE = "buttonCache";
+  public static final String KEY_QUEUED_PER_SECOND = "queuedPerSecond";
+
+  // how the events and buttons are encoded to send back over the channel
+  public final int encoding;
+
+  // the most events to send in one batch, one (or less) is no batching at all
+  public final int batchSize;
+
+  // how long (ms) queued events can be held waiting for the batch to fill
+  public final int batchWindowMs;
+
+  // send the events over the event channel stream rather than invoking a method for each
+  public final boolean eventStream;
+
+  // the most events the stream will hold waiting to be sent
+  public final int streamCapacity;
+
+  // the most events the stream will send before flutter acknowledges them
+  public final int streamWindow;
+
+  // what the stream does when it is full, one of the Flic2EventStream.OVERFLOW_... values
+  public final int streamOverflow;
+
+  // run the Flic 2 library and the encoding of events on a thread of their own, not the main looper
+  public final boolean flicThread;
+
+  // the most buttons to connect at once, zero (or less) to connect them all straight away
+  public final int maxConnecting;
+
+  // how long (ms) a button has to connect before we try again
+  public final int connectTimeoutMs;
+
+  // the first wait (ms) before trying to connect again, doubling with each failure up to the max
+  public final int backoffBaseMs;
+  public final int backoffMaxMs;
+
+  // the most attempts to connect a button before giving up, zero to keep trying
+  public final int maxConnectAttempts;
+
+  // write the clicks to a journal file, so those while there's no engine can be read later
+  public final boolean journal;
+
+  // the most records the journal holds before it wraps and overwrites the oldest
+  public final int journalCapacity;
+
+  // when the controller (and so the Flic 2 library) is started, one of the INIT_... values
+  public final int initMode;
+
+  // send an up / down as the UUID and only what changed about the button, not all of it
+  public final boolean compactUpOrDown;
+
+  // keep the buttons in a file, to answer for them from that till the controller is ready
+  public final boolean buttonCache;
+
+  // the most queued events (replayed by a button back in range) sent each second, zero for no
+  // limit, live events always go first
+  public final int queuedPerSecond;
+
+  private Flic2Options(Map<?, ?> options) {
+    this.encoding = getInt(options, KEY_ENCODING, Flic2EventEncoder.ENCODING_JSON);
+    this.batchSize = getInt(options, KEY_BATCH_SIZE, 1);
+    this.batchWindowMs = getInt(options, KEY_BATCH_WINDOW_MS, 50);
+    this.eventStream = getBoolean(options, KEY_EVENT_STREAM, false);
+    this.streamCapacity = getInt(options, KEY_STREAM_CAPACITY, 256);
+    this.streamWindow = getInt(options, KEY_STREAM_WINDOW, 32);
+    this.streamOverflow = getInt(options, KEY_STREAM_OVERFLOW, Flic2EventStream.OVERFLOW_DROP_OLDEST);
+    this.flicThread = getBoolean(options, KEY_FLIC_THREAD, false);
+    this.maxConnecting = getInt(options, KEY_MAX_CONNECTING, 0);
+    this.connectTimeoutMs = getInt(options, KEY_CONNECT_TIMEOUT_MS, 15000);
+    this.backoffBaseMs = getInt(options, KEY_BACKOFF_BASE_MS, 1000);
+    this.backoffMaxMs = getInt(options, KEY_BACKOFF_MAX_MS, 60000);
+    this.maxConnectAttempts = getInt(options, KEY_MAX_CONNECT_ATTEMPTS, 0);
+    this.journal = getBoolean(options, KEY_JOURNAL, false);
+    this.journalCapacity = getInt(options, KEY_JOURNAL_CAPACITY, 4096);
+    this.initMode = getInt(options, KEY_INIT_MODE, INIT_EAGER);
+    this.compactUpOrDown = getBoolean(options, KEY_COMPACT_UP_OR_DOWN, false);
+    this.buttonCache = getBoolean(options, KEY_BUTTON_CACHE, false);
+    this.queuedPerSecond = getInt(options, KEY_QUEUED_PER_SECOND, 0);
+  }
+
+  public boolean isBatching() {
+    return batchSize > 1;
+  }
+
+  public boolean isSchedulingConnections() {
+    return maxConnecting > 0;
+  }
+
+  /*
+   * are the connections scheduled the same by these options as by the others
+   */
+  public boolean isSameScheduling(Flic2Options other) {
+    return maxConnecting == other.maxConnecting && connectTimeoutMs == other.connectTimeoutMs
+        && backoffBaseMs == other.backoffBaseMs && backoffMaxMs == other.backoffMaxMs
+        && maxConnectAttempts == other.maxConnectAttempts;
+  }
+
+  public static Flic2Options fromArguments(Object arguments) {
+    if (arguments instanceof Map) {
+      return new Flic2Options((Map<?, ?>) arguments);
+    } else {
+      // nothing passed (or something we don't understand) so use the defaults
+      return new Flic2Options(null);
+    }
+  }
+
+  private static int getInt(Map<?, ?> options, String key, int defaultValue) {
+    final Object value = null == options ? null : options.get(key);
+    return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+  }
+
+  private static boolean getBoolean(Map<?, ?> options, String key, boolean defaultValue) {
+    final Object value = null == options ? null : options.get(key);
+    return value instanceof Boolean ? (Boolean) value : defaultValue;
+  }
+}
@@ -0,0 +1,496 @@
+package uk.co.darkerwaters.flic_button;
+
+import android.content.Context;
+import android.os.Handler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * the one controller for the whole process, shared by every flutter engine that starts Flic 2
+ * (an app with a background engine as well as its UI has two). The Flic 2 library is a single
+ * instance for the process anyway, so an engine each with its own controller just had every
+ * button listened to, and every click sent through the library, once per engine. The first
+ * engine to subscribe creates the controller on its Flic 2 thread, the others use that thread
+ * too, and the last to unsubscribe releases it.
+ *
+ * each engine listens to the buttons it wants with filters of its own. The controller listens
+ * to a button while any engine does, with a filter passing everything any of them want, and
+ * each click (or up / down) is passed to just the engines that want it. Scanning and errors go
+ * to them all. Each engine has its own action rules, run on every click before its filter, and
+ * its own metrics timing the events passed to it. The connections are scheduled as the first
+ * engine asking for it wants, another asking differently is told with an error. Each event is
+ * encoded once for each encoding the engines it is passed to want, and they all send that. The
+ * subscribers are an array replaced whole as engines come and go, so passing an event on takes
+ * no lock. Apart from subscribe, everything is called on the Flic 2 thread.
+ */
+public class Flic2SharedController {
+  /*
+   * an engine subscribed to the shared controller
+   */
+  public static class Subscriber {
+    private final Flic2SharedController shared;
+    private final Flic2Controller.ButtonCallback callback;
+    // the journal this engine wants the clicks written to, null for none
+    private final Flic2EventJournal journal;
+    // the metrics timing the events passed to this engine, null if not measuring
+    private final Flic2Metrics metrics;
+
+    // the buttons this engine listens to, by UUID, with the filter of each (null for every
+    // event). Only used on the Flic 2 thread
+    private final Map<String, Flic2ButtonFilter> buttons = new HashMap<>();
+
+    // the actions this engine runs natively as buttons are clicked, null if there are none
+    private volatile Flic2ActionEngine actionEngine = null;
+
+    private Subscriber(Flic2SharedController shared, Flic2Controller.ButtonCallback callback,
+        Flic2EventJournal journal, Flic2Metrics metrics) {
+      this.shared = shared;
+      this.callback = callback;
+      this.journal = journal;
+      this.metrics = metrics;
+    }
+
+    public Flic2Controller getController() {
+      return shared.controller;
+    }
+
+    public Handler getHandler() {
+      return shared.handler;
+    }
+
+    public boolean listenToButton(String buttonUuid) {
+      return listenToButton(buttonUuid, null);
+    }
+
+    public boolean listenToButton(String buttonUuid, Flic2ButtonFilter filter) {
+      return shared.listenToButton(this, buttonUuid, filter);
+    }
+
+    public boolean stopListeningToButton(String buttonUuid) {
+      return shared.stopListeningToButton(this, buttonUuid);
+    }
+
+    /*
+     * run the actions of the engine's rules on the clicks of every button, before this
+     * engine's filters. Replaces only this engine's rules, the others keep theirs
+     */
+    public void setActionEngine(Flic2ActionEngine actionEngine) {
+      this.actionEngine = actionEngine;
+      // the rules see every event, so the controller has to pass them all while there are any
+      shared.updateFilters();
+    }
+
+    /*
+     * schedule the connections as the options ask, returning false (and leaving them as they
+     * are) if another engine already has them scheduled differently
+     */
+    public boolean enableConnectionScheduling(Flic2Options options) {
+      return shared.enableConnectionScheduling(options);
+    }
+
+    /*
+     * the click being passed on, in the encoder's encoding. Only the first engine wanting it
+     * that way encodes it, the rest are handed that. A click not passed on by the shared
+     * controller (as one replayed from a trace) is just encoded
+     */
+    public Object encodeClick(Flic2EventEncoder encoder, Flic2ButtonSnapshot button, boolean wasQueued,
+        boolean lastQueued, long timestamp, boolean isSingleClick, boolean isDoubleClick, boolean isHold) {
+      if (!shared.isPassingOn) {
+        return encoder.encodeClick(button, wasQueued, lastQueued, timestamp, isSingleClick, isDoubleClick, isHold);
+      }
+      final int encoding = encoder.getEncoding();
+      Object data = shared.encodedEvents[encoding];
+      if (null == data) {
+        data = encoder.encodeClick(button, wasQueued, lastQueued, timestamp, isSingleClick, isDoubleClick, isHold);
+        shared.encodedEvents[encoding] = data;
+      }
+      return data;
+    }
+
+    /*
+     * the up / down being passed on, in the encoder's encoding, encoded once as the clicks are
+     */
+    public Object encodeUpOrDown(Flic2EventEncoder encoder, Flic2ButtonSnapshot button, boolean down) {
+      if (!shared.isPassingOn) {
+        return encoder.encodeUpOrDown(button, down);
+      }
+      final int encoding = encoder.getEncoding();
+      Object data = shared.encodedEvents[encoding];
+      if (null == data) {
+        data = encoder.encodeUpOrDown(button, down);
+        shared.encodedEvents[encoding] = data;
+      }
+      return data;
+    }
+
+    private boolean hasActions() {
+      final Flic2ActionEngine engine = actionEngine;
+      return null != engine && engine.hasRules();
+    }
+
+    /*
+     * run the actions for the event, returning if it should still be passed on to this engine
+     */
+    private boolean runActions(Flic2ButtonSnapshot button, int event, boolean wasQueued, long timestamp) {
+      final Flic2ActionEngine engine = actionEngine;
+      if (null == engine || !engine.hasRules()) {
+        return true;
+      }
+      return engine.onEvent(button.uuid, button.bdAddr, event, wasQueued, timestamp);
+    }
+
+    private void beginEvent(long timestamp, boolean wasQueued) {
+      if (null != metrics) {
+        metrics.beginEvent(timestamp, wasQueued);
+      }
+    }
+
+    private void endEvent() {
+      if (null != metrics) {
+        metrics.endEvent();
+      }
+    }
+
+    private boolean isClickWanted(Flic2ButtonSnapshot button, boolean wasQueued, long timestamp,
+        boolean isSingleClick, boolean isDoubleClick, boolean isHold) {
+      final Flic2ButtonFilter filter = buttons.get(button.uuid);
+      if (null == filter) {
+        return buttons.containsKey(button.uuid);
+      }
+      return filter.isClickWanted(isSingleClick, isDoubleClick, isHold, wasQueued,
+          wasQueued ? button.readyTimestamp - timestamp : 0);
+    }
+
+    private boolean isUpOrDownWanted(Flic2ButtonSnapshot button) {
+      final Flic2ButtonFilter filter = buttons.get(button.uuid);
+      return null == filter ? buttons.containsKey(button.uuid) : filter.isUpOrDownWanted();
+    }
+  }
+
+  private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+
+  // the controller shared by the engines, null when none has started Flic 2
+  private static Flic2SharedController instance = null;
+
+  private final Handler handler;
+  private final Flic2Controller controller;
+
+  // the engines subscribed, replaced whole when one comes or goes
+  private volatile Subscriber[] subscribers = NO_SUBSCRIBERS;
+
+  // the journal the clicks are written to, once whatever the number of engines wanting it
+  private volatile Flic2EventJournal journal = null;
+
+  // the options the connections are scheduled with, null if no engine has asked for that.
+  // Only used on the Flic 2 thread
+  private Flic2Options scheduling = null;
+
+  // the click (or up / down) being passed on, encoded with each encoding (by the encoding) as
+  // the first engine wanting it so encodes it. Only used on the Flic 2 thread
+  private final Object[] encodedEvents = new Object[Flic2EventEncoder.ENCODING_COUNT];
+  private boolean isPassingOn = false;
+
+  private Flic2SharedController(Context context, Handler handler) {
+    this.handler = handler;
+    this.controller = new Flic2Controller(context, handler, fanOut);
+  }
+
+  /*
+   * the handler of the thread the shared controller is running on, null if there isn't one
+   * yet. An engine starting after another uses this thread too
+   */
+  public static synchronized Handler getSharedHandler() {
+    return null == instance ? null : instance.handler;
+  }
+
+  /*
+   * subscribe an engine, creating the controller on the thread of the handler if this is
+   * the first. The callback is given the events of the buttons it listens to, timed by
+   * the metrics (if not null)
+   */
+  public static synchronized Subscriber subscribe(Context context, Handler handler,
+      Flic2Controller.ButtonCallback callback, Flic2EventJournal journal, Flic2Metrics metrics) {
+    if (null == instance) {
+      instance = new Flic2SharedController(context, handler);
+    }
+    final Subscriber subscriber = new Subscriber(instance, callback, journal, metrics);
+    final Subscriber[] current = instance.subscribers;
+    final Subscriber[] replacement = new Subscriber[current.length + 1];
+    System.arraycopy(current, 0, replacement, 0, current.length);
+    replacement[current.length] = subscriber;
+    instance.subscribers = replacement;
+    instance.updateJournal();
+    return subscriber;
+  }
+
+  /*
+   * unsubscribe an engine, it stops listening to its buttons and the controller is released
+   * if it was the last. Returns if the controller was released
+   */
+  public static synchronized boolean unsubscribe(Subscriber subscriber) {
+    final Flic2SharedController shared = subscriber.shared;
+    final Subscriber[] current = shared.subscribers;
+    int index = -1;
+    for (int i = 0; i < current.length; ++i) {
+      if (current[i] == subscriber) {
+        index = i;
+        break;
+      }
+    }
+    if (index < 0) {
+      // already gone
+      return false;
+    }
+    final Subscriber[] replacement = new Subscriber[current.length - 1];
+    System.arraycopy(current, 0, replacement, 0, index);
+    System.arraycopy(current, index + 1, replacement, index, replacement.length - index);
+    shared.subscribers = replacement;
+    shared.updateJournal();
+    if (replacement.length == 0) {
+      // nobody left, stop listening to everything
+      subscriber.buttons.clear();
+      shared.controller.releaseFlic();
+      if (instance == shared) {
+        instance = null;
+      }
+      return true;
+    }
+    // stop listening to the buttons nobody else wants, and take this engine's filters (and
+    // rules) out
+    for (String buttonUuid : subscriber.buttons.keySet()) {
+      if (!shared.isListened(buttonUuid)) {
+        shared.controller.stopListeningToButton(buttonUuid);
+      }
+    }
+    subscriber.buttons.clear();
+    shared.updateFilters();
+    return false;
+  }
+
+  private boolean listenToButton(Subscriber subscriber, String buttonUuid, Flic2ButtonFilter filter) {
+    final boolean isListened = isListened(buttonUuid);
+    subscriber.buttons.put(buttonUuid, filter);
+    if (isListened) {
+      // the controller is already listening for another engine, just widen the filter
+      setFilter(buttonUuid, getFilter(buttonUuid));
+      return true;
+    } else if (controller.listenToButton(buttonUuid, filter)) {
+      return true;
+    } else {
+      subscriber.buttons.remove(buttonUuid);
+      return false;
+    }
+  }
+
+  private boolean stopListeningToButton(Subscriber subscriber, String buttonUuid) {
+    subscriber.buttons.remove(buttonUuid);
+    if (isListened(buttonUuid)) {
+      // another engine still wants it, just narrow the filter to theirs
+      setFilter(buttonUuid, getFilter(buttonUuid));
+      return true;
+    }
+    return controller.stopListeningToButton(buttonUuid);
+  }
+
+  /*
+   * is any engine listening to the button
+   */
+  private boolean isListened(String buttonUuid) {
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.buttons.containsKey(buttonUuid)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * the filter passing every event of the button that any engine wants, everything while any
+   * engine has actions to run
+   */
+  private Flic2ButtonFilter getFilter(String buttonUuid) {
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.hasActions()) {
+        return null;
+      }
+    }
+    boolean isFound = false;
+    Flic2ButtonFilter filter = null;
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.buttons.containsKey(buttonUuid)) {
+        final Flic2ButtonFilter wanted = subscriber.buttons.get(buttonUuid);
+        filter = isFound ? Flic2ButtonFilter.union(filter, wanted) : wanted;
+        isFound = true;
+      }
+    }
+    return filter;
+  }
+
+  private void setFilter(String buttonUuid, Flic2ButtonFilter filter) {
+    final Flic2ButtonRegistry.Entry entry = controller.getRegistry().getByUuid(buttonUuid);
+    if (null != entry) {
+      entry.filter = filter;
+    }
+  }
+
+  /*
+   * the filters of every button listened to, as the engines (or their rules) have changed
+   */
+  private void updateFilters() {
+    for (Subscriber subscriber : subscribers) {
+      for (String buttonUuid : subscriber.buttons.keySet()) {
+        setFilter(buttonUuid, getFilter(buttonUuid));
+      }
+    }
+  }
+
+  private boolean enableConnectionScheduling(Flic2Options options) {
+    if (null == scheduling) {
+      // the first to ask, whether it created the controller or not
+      scheduling = options;
+      controller.enableConnectionScheduling(options.maxConnecting, options.connectTimeoutMs,
+          options.backoffBaseMs, options.backoffMaxMs, options.maxConnectAttempts);
+      return true;
+    }
+    // changing them under the engine that asked first would be as surprising as ignoring these
+    return scheduling.isSameScheduling(options);
+  }
+
+  private void beginPassingOn() {
+    Arrays.fill(encodedEvents, null);
+    isPassingOn = true;
+  }
+
+  private void endPassingOn() {
+    isPassingOn = false;
+    // don't keep the event till the next
+    Arrays.fill(encodedEvents, null);
+  }
+
+  private void updateJournal() {
+    Flic2EventJournal wanted = null;
+    for (Subscriber subscriber : subscribers) {
+      if (null != subscriber.journal) {
+        wanted = subscriber.journal;
+        break;
+      }
+    }
+    journal = wanted;
+  }
+
+  private final Flic2Controller.ButtonCallback fanOut = new Flic2Controller.ButtonCallback() {
+    @Override
+    public void onPairedButtonFound(Flic2ButtonSnapshot button) {
+      for (Subscriber subscriber : subscribers) {
+        subscriber.callback.onPairedButtonFound(button);
+      }
+    }
+
+    @Override
+    public void onButtonFound(Flic2ButtonSnapshot button) {
+      for (Subscriber subscriber : subscribers) {
+        subscriber.callback.onButtonFound(button);
+      }
+    }
+
+    @Override
+    public void onButtonConnected() {
+      for (Subscriber subscriber : subscribers) {
+        subscriber.callback.onButtonConnected();
+      }
+    }
+
+    @Override
+    public void onButtonDiscovered(String buttonAddress) {
+      for (Subscriber subscriber : subscribers) {
+        subscriber.callback.onButtonDiscovered(buttonAddress);
+      }
+    }
+
+    @Override
+    public void onButtonScanningStarted() {
+      for (Subscriber subscriber : subscribers) {
+        subscriber.callback.onButtonScanningStarted();
+      }
+    }
+
+    @Override
+    public void onButtonScanningStopped() {
+      for (Subscriber subscriber : subscribers) {
+        subscriber.callback.onButtonScanningStopped();
+      }
+    }
+
+    @Override
+    public void onError(String error) {
+      for (Subscriber subscriber : subscribers) {
+        subscriber.callback.onError(error);
+      }
+    }
+
+    @Override
+    public void onButtonRemoved(String buttonUuid) {
+      for (Subscriber subscriber : subscribers) {
+        // nobody is listening to it now, if it is paired again they have to listen again
+        subscriber.buttons.remove(buttonUuid);
+        subscriber.callback.onButtonRemoved(buttonUuid);
+      }
+    }
+
+    @Override
+    public void onButtonClicked(Flic2ButtonSnapshot button, boolean wasQueued, boolean lastQueued,
+        long timestamp, boolean isSingleClick, boolean isDoubleClick, boolean isHold) {
+      final Flic2EventJournal eventJournal = journal;
+      if (null != eventJournal) {
+        eventJournal.append(Flic2EventJournal.TYPE_CLICK,
+            (wasQueued ? Flic2EventJournal.FLAG_WAS_QUEUED : 0)
+                | (lastQueued ? Flic2EventJournal.FLAG_LAST_QUEUED : 0)
+                | (isSingleClick ? Flic2EventJournal.FLAG_SINGLE_CLICK : 0)
+                | (isDoubleClick ? Flic2EventJournal.FLAG_DOUBLE_CLICK : 0)
+                | (isHold ? Flic2EventJournal.FLAG_HOLD : 0),
+            button.bdAddr, timestamp);
+      }
+      final int event = isHold ? Flic2ButtonFilter.EVENT_HOLD
+          : (isDoubleClick ? Flic2ButtonFilter.EVENT_DOUBLE_CLICK : Flic2ButtonFilter.EVENT_SINGLE_CLICK);
+      beginPassingOn();
+      try {
+        for (Subscriber subscriber : subscribers) {
+          // the engine's native actions go first, then its filter
+          if (subscriber.runActions(button, event, wasQueued, timestamp)
+              && subscriber.isClickWanted(button, wasQueued, timestamp, isSingleClick, isDoubleClick, isHold)) {
+            subscriber.beginEvent(timestamp, wasQueued);
+            subscriber.callback.onButtonClicked(button, wasQueued, lastQueued, timestamp, isSingleClick,
+                isDoubleClick, isHold);
+            subscriber.endEvent();
+          }
+        }
+      } finally {
+        endPassingOn();
+      }
+    }
+
+    @Override
+    public void onButtonUpOrDown(Flic2ButtonSnapshot button, boolean down, long timestamp) {
+      final Flic2EventJournal eventJournal = journal;
+      if (null != eventJournal) {
+        eventJournal.append(Flic2EventJournal.TYPE_UP_OR_DOWN, down ? Flic2EventJournal.FLAG_DOWN : 0,
+            button.bdAddr, timestamp);
+      }
+      beginPassingOn();
+      try {
+        for (Subscriber subscriber : subscribers) {
+          if (subscriber.runActions(button, Flic2ButtonFilter.EVENT_UP_OR_DOWN, false, timestamp)
+              && subscriber.isUpOrDownWanted(button)) {
+            subscriber.beginEvent(timestamp, false);
+            subscriber.callback.onButtonUpOrDown(button, down, timestamp);
+            subscriber.endEvent();
+          }
+        }
+      } finally {
+        endPassingOn();
+      }
+    }
+  };
+}
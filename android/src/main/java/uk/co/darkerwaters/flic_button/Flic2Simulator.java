@@ -0,0 +1,214 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * a fleet of virtual buttons that click, hold, go up and down, replay queued clicks, disconnect
+ * and turn up in scans at the rates configured, sending it all to a Flic2ButtonCallback as the
+ * controller would. This is plain java (no android, no bluetooth) so the load can be put through
+ * the pipeline on any JVM, as the load test and benchmarks do. The simulator runs on a thread
+ * of its own and passes each event to the executor to deliver, which should be the thread the
+ * pipeline runs on to match the real thing.
+ *
+ * the timestamp of each click, and the time each button was ready, are System.nanoTime() when
+ * they were made (not the uptime ms the Flic 2 library stamps them with) so the time it takes
+ * to get through the pipeline can be measured at the other end. The age of a queued click is in
+ * ns too, so this isn't for sending on to flutter.
+ */
+public class Flic2Simulator {
+  /*
+   * how many buttons, and how often (per button) they do each thing
+   */
+  public static class Config {
+    public int buttonCount = 10;
+    public double clicksPerSecond = 1.0;
+    // the share of the clicks that are double clicks, and holds, the rest are single
+    public double doubleClickRatio = 0.2;
+    public double holdRatio = 0.1;
+    public double upOrDownsPerSecond = 0.0;
+    // a button coming back into range, replaying the clicks it queued
+    public double queuedReplaysPerMinute = 0.0;
+    public int queuedReplaySize = 10;
+    public double disconnectsPerMinute = 0.0;
+    // how long (on average) a disconnected button is out of range
+    public double reconnectSeconds = 5.0;
+    // new buttons found by a scan (across the whole fleet)
+    public double scanResultsPerMinute = 0.0;
+    // how often (ms) the simulator wakes to decide what happens next
+    public int tickMs = 10;
+    public long seed = 42;
+  }
+
+  /*
+   * a virtual button, with the data a real one reports
+   */
+  private static class VirtualButton {
+    final String uuid;
+    final String bdAddr;
+    final String name;
+    long readyTimestamp = System.nanoTime();
+    int connectionState = 2;
+    int pressCount = 0;
+    long version = 0;
+
+    VirtualButton(int index) {
+      this.uuid = String.format("%032x", 0x51A1L << 32 | index);
+      this.bdAddr = String.format("5E:1A:00:%02X:%02X:%02X", (index >> 16) & 0xFF, (index >> 8) & 0xFF,
+          index & 0xFF);
+      this.name = "Simulated " + index;
+    }
+
+    Flic2ButtonSnapshot snapshot() {
+      return new Flic2ButtonSnapshot(++version, uuid, bdAddr, readyTimestamp, name, "SIM-" + bdAddr,
+          connectionState, 10, 100, System.currentTimeMillis(), 3.0f, pressCount);
+    }
+  }
+
+  private final Config config;
+  private final Executor executor;
+  private final Flic2ButtonCallback callback;
+  private final List<VirtualButton> buttons = new ArrayList<>();
+  private final Random random;
+
+  private volatile boolean isRunning = false;
+  private Thread thread = null;
+
+  private final AtomicLong clicks = new AtomicLong();
+  private final AtomicLong upOrDowns = new AtomicLong();
+  private final AtomicLong queuedClicks = new AtomicLong();
+  private final AtomicLong disconnects = new AtomicLong();
+  private final AtomicLong scanResults = new AtomicLong();
+
+  public Flic2Simulator(Config config, Executor executor, Flic2ButtonCallback callback) {
+    this.config = config;
+    this.executor = executor;
+    this.callback = callback;
+    this.random = new Random(config.seed);
+    for (int i = 0; i < config.buttonCount; ++i) {
+      buttons.add(new VirtualButton(i));
+    }
+  }
+
+  public synchronized void start() {
+    if (isRunning) {
+      return;
+    }
+    isRunning = true;
+    thread = new Thread(this::run, "Flic2Simulator");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public synchronized void stop() {
+    isRunning = false;
+    if (null != thread) {
+      thread.interrupt();
+      thread = null;
+    }
+  }
+
+  /*
+   * the counts of everything sent to the callback so far
+   */
+  public Map<String, Object> getStats() {
+    final Map<String, Object> stats = new HashMap<>();
+    stats.put("buttons", buttons.size());
+    stats.put("clicks", clicks.get());
+    stats.put("upOrDowns", upOrDowns.get());
+    stats.put("queuedClicks", queuedClicks.get());
+    stats.put("disconnects", disconnects.get());
+    stats.put("scanResults", scanResults.get());
+    return stats;
+  }
+
+  private void run() {
+    final double tickSeconds = config.tickMs / 1000.0;
+    // the chance of each thing happening to a button in one tick
+    final double clickChance = config.clicksPerSecond * tickSeconds;
+    final double upOrDownChance = config.upOrDownsPerSecond * tickSeconds;
+    final double replayChance = config.queuedReplaysPerMinute * tickSeconds / 60.0;
+    final double disconnectChance = config.disconnectsPerMinute * tickSeconds / 60.0;
+    final double reconnectChance = tickSeconds / Math.max(tickSeconds, config.reconnectSeconds);
+    final double scanChance = config.scanResultsPerMinute * tickSeconds / 60.0;
+    int nextScanIndex = buttons.size();
+    while (isRunning) {
+      for (VirtualButton button : buttons) {
+        if (button.connectionState == 0) {
+          // disconnected, when it comes back it replays what it queued
+          if (random.nextDouble() < reconnectChance) {
+            reconnect(button);
+          }
+          continue;
+        }
+        if (random.nextDouble() < disconnectChance) {
+          button.connectionState = 0;
+          disconnects.incrementAndGet();
+          continue;
+        }
+        if (random.nextDouble() < replayChance) {
+          replayQueued(button);
+        }
+        if (random.nextDouble() < clickChance) {
+          click(button, false, false, System.nanoTime());
+        }
+        if (random.nextDouble() < upOrDownChance) {
+          final boolean down = random.nextBoolean();
+          final Flic2ButtonSnapshot snapshot = button.snapshot();
+          upOrDowns.incrementAndGet();
+          final long timestamp = System.nanoTime();
+          executor.execute(() -> callback.onButtonUpOrDown(snapshot, down, timestamp));
+        }
+      }
+      if (random.nextDouble() < scanChance) {
+        final VirtualButton found = new VirtualButton(nextScanIndex++);
+        final Flic2ButtonSnapshot snapshot = found.snapshot();
+        scanResults.incrementAndGet();
+        executor.execute(() -> {
+          callback.onButtonScanningStarted();
+          callback.onButtonDiscovered(snapshot.bdAddr);
+          callback.onButtonConnected();
+          callback.onButtonScanningStopped();
+          callback.onButtonFound(snapshot);
+        });
+      }
+      try {
+        Thread.sleep(config.tickMs);
+      } catch (InterruptedException e) {
+        // stopped
+        return;
+      }
+    }
+  }
+
+  private void reconnect(VirtualButton button) {
+    button.connectionState = 2;
+    button.readyTimestamp = System.nanoTime();
+    replayQueued(button);
+  }
+
+  private void replayQueued(VirtualButton button) {
+    // the clicks it queued while out of range, oldest first, all arriving at once
+    final long nowNs = System.nanoTime();
+    for (int i = config.queuedReplaySize; i > 0; --i) {
+      queuedClicks.incrementAndGet();
+      click(button, true, i == 1, nowNs);
+    }
+  }
+
+  private void click(VirtualButton button, boolean wasQueued, boolean lastQueued, long timestamp) {
+    final double type = random.nextDouble();
+    final boolean isHold = type < config.holdRatio;
+    final boolean isDoubleClick = !isHold && type < config.holdRatio + config.doubleClickRatio;
+    button.pressCount += isDoubleClick ? 2 : 1;
+    final Flic2ButtonSnapshot snapshot = button.snapshot();
+    clicks.incrementAndGet();
+    executor.execute(() -> callback.onButtonClicked(snapshot, wasQueued, lastQueued, timestamp,
+        !isHold && !isDoubleClick, isDoubleClick, isHold));
+  }
+}
@@ -0,0 +1,210 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * writes every callback the controller makes (every click, up / down, scan result and error)
+ * to a trace file, with its arguments and when it happened (ns), so exactly what happened can
+ * be played back again with the Flic2TraceReplayer. This sits in front of the real callback,
+ * passing everything on after writing it. It is plain java so traces can be recorded (from the
+ * simulator) and replayed on any JVM too.
+ *
+ * the file is a header (the magic, the version and the System.nanoTime() it started) then a
+ * record for each callback: the type, the ns since the start and the arguments. A button is
+ * written whole (with an ID) only the first time each version of its snapshot is seen, after
+ * that the events just refer to the ID.
+ */
+public class Flic2TraceRecorder implements Flic2ButtonCallback {
+  public static final int MAGIC = 0x46325452; // "F2TR"
+  public static final int VERSION = 1;
+
+  public static final byte TYPE_SNAPSHOT = 1;
+  public static final byte TYPE_PAIRED_FOUND = 2;
+  public static final byte TYPE_FOUND = 3;
+  public static final byte TYPE_CONNECTED = 4;
+  public static final byte TYPE_DISCOVERED = 5;
+  public static final byte TYPE_SCAN_STARTED = 6;
+  public static final byte TYPE_SCAN_STOPPED = 7;
+  public static final byte TYPE_ERROR = 8;
+  public static final byte TYPE_CLICK = 9;
+  public static final byte TYPE_UP_OR_DOWN = 10;
+
+  // the flags of a click
+  public static final int FLAG_WAS_QUEUED = 1;
+  public static final int FLAG_LAST_QUEUED = 1 << 1;
+  public static final int FLAG_SINGLE_CLICK = 1 << 2;
+  public static final int FLAG_DOUBLE_CLICK = 1 << 3;
+  public static final int FLAG_HOLD = 1 << 4;
+  public static final int FLAG_DOWN = 1 << 5;
+
+  private final File file;
+  private final Flic2ButtonCallback delegate;
+  private final DataOutputStream out;
+  private final long startNs;
+
+  // the version of the snapshot last written for each button, and the ID it was written with
+  private final Map<String, long[]> written = new HashMap<>();
+  private long nextSnapshotId = 1;
+
+  private long records = 0;
+  private boolean isFailed = false;
+
+  public Flic2TraceRecorder(File file, Flic2ButtonCallback delegate) throws IOException {
+    this.file = file;
+    this.delegate = delegate;
+    this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+    this.startNs = System.nanoTime();
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(startNs);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /*
+   * stop recording, flushing all that is written to the file. Returns the counts of what
+   * was recorded
+   */
+  public synchronized Map<String, Object> close() {
+    try {
+      out.close();
+    } catch (IOException e) {
+      isFailed = true;
+    }
+    final Map<String, Object> stats = new HashMap<>();
+    stats.put("path", file.getAbsolutePath());
+    stats.put("records", records);
+    stats.put("bytes", file.length());
+    stats.put("durationNs", System.nanoTime() - startNs);
+    stats.put("failed", isFailed);
+    return stats;
+  }
+
+  @Override
+  public void onPairedButtonFound(Flic2ButtonSnapshot button) {
+    recordButton(TYPE_PAIRED_FOUND, button);
+    delegate.onPairedButtonFound(button);
+  }
+
+  @Override
+  public void onButtonFound(Flic2ButtonSnapshot button) {
+    recordButton(TYPE_FOUND, button);
+    delegate.onButtonFound(button);
+  }
+
+  @Override
+  public void onButtonConnected() {
+    recordString(TYPE_CONNECTED, null);
+    delegate.onButtonConnected();
+  }
+
+  @Override
+  public void onButtonDiscovered(String buttonAddress) {
+    recordString(TYPE_DISCOVERED, buttonAddress);
+    delegate.onButtonDiscovered(buttonAddress);
+  }
+
+  @Override
+  public void onButtonScanningStarted() {
+    recordString(TYPE_SCAN_STARTED, null);
+    delegate.onButtonScanningStarted();
+  }
+
+  @Override
+  public void onButtonScanningStopped() {
+    recordString(TYPE_SCAN_STOPPED, null);
+    delegate.onButtonScanningStopped();
+  }
+
+  @Override
+  public void onError(String error) {
+    recordString(TYPE_ERROR, error);
+    delegate.onError(error);
+  }
+
+  @Override
+  public void onButtonClicked(Flic2ButtonSnapshot button, boolean wasQueued, boolean lastQueued, long timestamp,
+      boolean isSingleClick, boolean isDoubleClick, boolean isHold) {
+    recordEvent(TYPE_CLICK, button, (wasQueued ? FLAG_WAS_QUEUED : 0) | (lastQueued ? FLAG_LAST_QUEUED : 0)
+        | (isSingleClick ? FLAG_SINGLE_CLICK : 0) | (isDoubleClick ? FLAG_DOUBLE_CLICK : 0)
+        | (isHold ? FLAG_HOLD : 0), timestamp);
+    delegate.onButtonClicked(button, wasQueued, lastQueued, timestamp, isSingleClick, isDoubleClick, isHold);
+  }
+
+  @Override
+  public void onButtonUpOrDown(Flic2ButtonSnapshot button, boolean down, long timestamp) {
+    recordEvent(TYPE_UP_OR_DOWN, button, down ? FLAG_DOWN : 0, timestamp);
+    delegate.onButtonUpOrDown(button, down, timestamp);
+  }
+
+  private synchronized void recordButton(byte type, Flic2ButtonSnapshot button) {
+    final long nowNs = System.nanoTime();
+    try {
+      final long snapshotId = writeSnapshot(button, nowNs);
+      writeHeader(type, nowNs);
+      out.writeLong(snapshotId);
+    } catch (IOException e) {
+      isFailed = true;
+    }
+  }
+
+  private synchronized void recordString(byte type, String value) {
+    final long nowNs = System.nanoTime();
+    try {
+      writeHeader(type, nowNs);
+      writeString(value);
+    } catch (IOException e) {
+      isFailed = true;
+    }
+  }
+
+  private synchronized void recordEvent(byte type, Flic2ButtonSnapshot button, int flags, long timestamp) {
+    final long nowNs = System.nanoTime();
+    try {
+      final long snapshotId = writeSnapshot(button, nowNs);
+      writeHeader(type, nowNs);
+      out.writeLong(snapshotId);
+      out.writeByte(flags);
+      out.writeLong(timestamp);
+    } catch (IOException e) {
+      isFailed = true;
+    }
+  }
+
+  private void writeHeader(byte type, long nowNs) throws IOException {
+    out.writeByte(type);
+    out.writeLong(nowNs - startNs);
+    ++records;
+  }
+
+  /*
+   * write the snapshot if this version of it hasn't been, returning the ID it was written with
+   */
+  private long writeSnapshot(Flic2ButtonSnapshot button, long nowNs) throws IOException {
+    final long[] last = written.get(button.uuid);
+    if (null != last && last[0] == button.version) {
+      return last[1];
+    }
+    final long snapshotId = nextSnapshotId++;
+    written.put(button.uuid, new long[] { button.version, snapshotId });
+    writeHeader(TYPE_SNAPSHOT, nowNs);
+    out.writeLong(snapshotId);
+    button.writeTo(out);
+    return snapshotId;
+  }
+
+  private void writeString(String value) throws IOException {
+    out.writeBoolean(null != value);
+    if (null != value) {
+      out.writeUTF(value);
+    }
+  }
+}
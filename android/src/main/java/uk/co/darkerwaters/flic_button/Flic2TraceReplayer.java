@@ -0,0 +1,218 @@
+package uk.co.darkerwaters.flic_button;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * plays a trace written by the Flic2TraceRecorder back into a Flic2ButtonCallback, with the
+ * same gaps between the callbacks as when it was recorded, or those gaps shortened by a speed
+ * (2 is twice as fast), or as fast as it can go (a speed of zero). Like the simulator, this
+ * reads the trace on a thread of its own and hands each callback to the executor, which should
+ * be the Flic 2 thread. It is plain java so a trace from a phone can be put through the
+ * pipeline on any JVM, to see if a change made it faster or slower on exactly the same load.
+ *
+ * the timestamps of the clicks and up / downs can be replaced with System.nanoTime() as they
+ * are handed over, so the time they take to get through can be measured at the other end.
+ */
+public class Flic2TraceReplayer {
+  /*
+   * to be told when the replay is finished
+   */
+  public interface Listener {
+    void onReplayComplete(Map<String, Object> stats);
+  }
+
+  private final File file;
+  private final double speed;
+  private final boolean isRestamping;
+  private final Executor executor;
+  private final Flic2ButtonCallback callback;
+
+  // the buttons written to the trace, by the ID they were written with
+  private final Map<Long, Flic2ButtonSnapshot> snapshots = new HashMap<>();
+
+  private volatile boolean isRunning = false;
+  private Thread thread = null;
+
+  private long records = 0;
+  // how far behind the trace the replay got (ns), the most and all together
+  private long maxLagNs = 0;
+  private long totalLagNs = 0;
+
+  public Flic2TraceReplayer(File file, double speed, boolean isRestamping, Executor executor,
+      Flic2ButtonCallback callback) {
+    this.file = file;
+    this.speed = speed;
+    this.isRestamping = isRestamping;
+    this.executor = executor;
+    this.callback = callback;
+  }
+
+  public synchronized void start(Listener listener) {
+    if (isRunning) {
+      return;
+    }
+    isRunning = true;
+    thread = new Thread(() -> {
+      final Map<String, Object> stats = replay();
+      if (null != listener) {
+        listener.onReplayComplete(stats);
+      }
+    }, "Flic2TraceReplayer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public synchronized void stop() {
+    isRunning = false;
+    if (null != thread) {
+      thread.interrupt();
+      thread = null;
+    }
+  }
+
+  /*
+   * play the whole trace back on this thread, returning the counts of what was played
+   */
+  public Map<String, Object> replay() {
+    isRunning = true;
+    final long startNs = System.nanoTime();
+    String error = null;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+        64 * 1024))) {
+      if (in.readInt() != Flic2TraceRecorder.MAGIC || in.readInt() != Flic2TraceRecorder.VERSION) {
+        throw new IOException("not a trace this can read");
+      }
+      // the clock the trace was recorded with, not needed to play it back
+      in.readLong();
+      while (isRunning) {
+        final byte type;
+        try {
+          type = in.readByte();
+        } catch (EOFException e) {
+          // the end of the trace
+          break;
+        }
+        final long atNs = in.readLong();
+        if (type != Flic2TraceRecorder.TYPE_SNAPSHOT) {
+          waitUntil(startNs, atNs);
+        }
+        playRecord(type, in);
+        ++records;
+      }
+    } catch (IOException e) {
+      error = e.getMessage();
+    } finally {
+      isRunning = false;
+    }
+    final Map<String, Object> stats = new HashMap<>();
+    stats.put("records", records);
+    stats.put("elapsedNs", System.nanoTime() - startNs);
+    stats.put("maxLagNs", maxLagNs);
+    stats.put("meanLagNs", records == 0 ? 0 : totalLagNs / records);
+    stats.put("error", error);
+    return stats;
+  }
+
+  private void waitUntil(long startNs, long atNs) {
+    if (speed <= 0) {
+      // as fast as it goes
+      return;
+    }
+    final long dueNs = startNs + (long) (atNs / speed);
+    long waitNs = dueNs - System.nanoTime();
+    while (waitNs > 0 && isRunning) {
+      LockSupport.parkNanos(waitNs);
+      waitNs = dueNs - System.nanoTime();
+    }
+    final long lagNs = -waitNs;
+    totalLagNs += lagNs;
+    maxLagNs = Math.max(maxLagNs, lagNs);
+  }
+
+  private void playRecord(byte type, DataInputStream in) throws IOException {
+    switch (type) {
+      case Flic2TraceRecorder.TYPE_SNAPSHOT:
+        final long snapshotId = in.readLong();
+        snapshots.put(snapshotId, Flic2ButtonSnapshot.readFrom(in));
+        break;
+      case Flic2TraceRecorder.TYPE_PAIRED_FOUND: {
+        final Flic2ButtonSnapshot button = readButton(in);
+        executor.execute(() -> callback.onPairedButtonFound(button));
+        break;
+      }
+      case Flic2TraceRecorder.TYPE_FOUND: {
+        final Flic2ButtonSnapshot button = readButton(in);
+        executor.execute(() -> callback.onButtonFound(button));
+        break;
+      }
+      case Flic2TraceRecorder.TYPE_CONNECTED:
+        readString(in);
+        executor.execute(callback::onButtonConnected);
+        break;
+      case Flic2TraceRecorder.TYPE_DISCOVERED: {
+        final String address = readString(in);
+        executor.execute(() -> callback.onButtonDiscovered(address));
+        break;
+      }
+      case Flic2TraceRecorder.TYPE_SCAN_STARTED:
+        readString(in);
+        executor.execute(callback::onButtonScanningStarted);
+        break;
+      case Flic2TraceRecorder.TYPE_SCAN_STOPPED:
+        readString(in);
+        executor.execute(callback::onButtonScanningStopped);
+        break;
+      case Flic2TraceRecorder.TYPE_ERROR: {
+        final String error = readString(in);
+        executor.execute(() -> callback.onError(error));
+        break;
+      }
+      case Flic2TraceRecorder.TYPE_CLICK: {
+        final Flic2ButtonSnapshot button = readButton(in);
+        final int flags = in.readByte();
+        final long recorded = in.readLong();
+        final long timestamp = isRestamping ? System.nanoTime() : recorded;
+        executor.execute(() -> callback.onButtonClicked(button,
+            (flags & Flic2TraceRecorder.FLAG_WAS_QUEUED) != 0,
+            (flags & Flic2TraceRecorder.FLAG_LAST_QUEUED) != 0, timestamp,
+            (flags & Flic2TraceRecorder.FLAG_SINGLE_CLICK) != 0,
+            (flags & Flic2TraceRecorder.FLAG_DOUBLE_CLICK) != 0,
+            (flags & Flic2TraceRecorder.FLAG_HOLD) != 0));
+        break;
+      }
+      case Flic2TraceRecorder.TYPE_UP_OR_DOWN: {
+        final Flic2ButtonSnapshot button = readButton(in);
+        final int flags = in.readByte();
+        final long recorded = in.readLong();
+        final long timestamp = isRestamping ? System.nanoTime() : recorded;
+        executor.execute(() -> callback.onButtonUpOrDown(button,
+            (flags & Flic2TraceRecorder.FLAG_DOWN) != 0, timestamp));
+        break;
+      }
+      default:
+        throw new IOException("unknown record type " + type);
+    }
+  }
+
+  private Flic2ButtonSnapshot readButton(DataInputStream in) throws IOException {
+    final long snapshotId = in.readLong();
+    final Flic2ButtonSnapshot button = snapshots.get(snapshotId);
+    if (null == button) {
+      throw new IOException("no snapshot " + snapshotId + " before it was used");
+    }
+    return button;
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
@@ -1,47 +1,99 @@
 package uk.co.darkerwaters.flic_button;
 
 import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.logging.Logger;
 
-import io.flic.flic2libandroid.BatteryLevel;
 import io.flic.flic2libandroid.Flic2Button;
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
+import io.flutter.plugin.common.StandardMethodCodec;
 
 /** FlicButtonPlugin */
 public class FlicButtonPlugin implements FlutterPlugin, MethodCallHandler {
   public static final String channelName = "flic_button";
+  public static final String eventChannelName = "flic_button_events";
   public static final String methodNameInitialise = "initializeFlic2";
   public static final String methodNameDispose = "disposeFlic2";
   public static final String methodNameCallback = "callListener";
+  public static final String methodNameCallbackBatch = "callListenerBatch";
 
   public static final String methodNameStartFlic2Scan = "startFlic2Scan";
   public static final String methodNameStopFlic2Scan = "stopFlic2Scan";
+  public static final String methodNameStartContinuousScan = "startFlic2ContinuousScan";
+  public static final String methodNameGetScanStats = "getFlic2ScanStats";
+
+  public static final String methodNameSetActionRules = "setFlic2ActionRules";
+  public static final String methodNameGetActionStats = "getFlic2ActionStats";
+
+  public static final String methodNameStartTrace = "startFlic2Trace";
+  public static final String methodNameStopTrace = "stopFlic2Trace";
+  public static final String methodNameReplayTrace = "replayFlic2Trace";
+
+  public static final String traceFileName = "flic2_trace.bin";
   public static final String methodNameStartListenToFlic2 = "startListenToFlic2";
   public static final String methodNameStopListenToFlic2 = "stopListenToFlic2";
 
   public static final String methodNameGetButtons = "getButtons";
   public static final String methodNameGetButtonsByAddr = "getButtonsByAddr";
+  public static final String methodNameGetButtonsSince = "getButtonsSince";
+  public static final String methodNameGetButtonStats = "getFlic2ButtonStats";
 
   public static final String methodNameConnectButton = "connectButton";
   public static final String methodNameDisconnectButton = "disconnectButton";
   public static final String methodNameForgetButton = "forgetButton";
 
+  public static final String methodNameStartListenToFlic2Buttons = "startListenToFlic2Buttons";
+  public static final String methodNameStopListenToFlic2Buttons = "stopListenToFlic2Buttons";
+  public static final String methodNameConnectButtons = "connectButtons";
+  public static final String methodNameDisconnectButtons = "disconnectButtons";
+  public static final String methodNameBatch = "batchFlic2";
+
+  public static final String methodNameGetConnectionStats = "getFlic2ConnectionStats";
+
+  public static final String methodNameAckEvents = "ackFlic2Events";
+  public static final String methodNameGetStreamStats = "getFlic2StreamStats";
+  public static final String methodNameGetLaneStats = "getFlic2LaneStats";
+
+  public static final String methodNameReadJournal = "readFlic2Journal";
+
+  public static final String journalFileName = "flic2_journal.bin";
+  public static final String buttonCacheFileName = "flic2_buttons.bin";
+
+  // how long (ms) after the first change the cache of the buttons is saved, the changes (and
+  // clicks) after it join that save, so the cache is written at most once in this time
+  private static final long BUTTON_CACHE_SAVE_DELAY_MS = 30000;
+
+  public static final String methodNameStartBackground = "startFlic2Background";
+  public static final String methodNameGetBackgroundStats = "getFlic2BackgroundStats";
+
+  public static final String methodNameGetMetrics = "getFlic2Metrics";
+
+  public static final String methodNameWaitReady = "waitFlic2Ready";
+  public static final String methodNameGetStartupStats = "getFlic2StartupStats";
+
   public static final String ERROR_CRITICAL = "CRITICAL";
   public static final String ERROR_NOT_STARTED = "NOT_STARTED";
   public static final String ERROR_ALREADY_STARTED = "ALREADY_STARTED";
   public static final String ERROR_INVALID_ARGUMENTS = "INVALID_ARGUMENTS";
+  public static final String ERROR_NOT_IMPLEMENTED = "NOT_IMPLEMENTED";
 
   public static final int METHOD_FLIC2_DISCOVER_PAIRED = 100;
   public static final int METHOD_FLIC2_DISCOVERED = 101;
@@ -51,6 +103,7 @@ public class FlicButtonPlugin implements FlutterPlugin, MethodCallHandler {
   public static final int METHOD_FLIC2_SCAN_COMPLETE = 105;
   public static final int METHOD_FLIC2_FOUND = 106;
   public static final int METHOD_FLIC2_BUTTON_UP_DOWN = 107;
+  public static final int METHOD_FLIC2_BUTTONS_RECONCILED = 108;
   public static final int METHOD_FLIC2_ERROR = 200;
 
   /// The MethodChannel that will the communication between Flutter and native
@@ -59,17 +112,179 @@ public class FlicButtonPlugin implements FlutterPlugin, MethodCallHandler {
   /// This local reference serves to register the plugin with the Flutter Engine
   /// and unregister it
   /// when the Flutter Engine is detached from the Activity
-  private MethodChannel channel;
+  private volatile MethodChannel channel;
+
+  // the channel to stream events over when asked to, rather than using the method channel
+  private EventChannel eventChannel;
+
+  // we can and want to control a Flic2 then, the controller is shared with any other engines
+  // and we are subscribed to it for the events of the buttons we listen to
+  private volatile Flic2Controller flic2Controller = null;
+  private volatile Flic2SharedController.Subscriber subscriber = null;
+
+  // how we send the buttons and events back to flutter, chosen when initialised
+  private volatile Flic2EventEncoder encoder = new Flic2EventEncoder(Flic2EventEncoder.ENCODING_JSON);
+  private volatile boolean compactUpOrDown = false;
+
+  // the actions run natively on clicks, null till flutter sets some rules
+  private volatile Flic2ActionEngine actionEngine = null;
+
+  // gathers queued events to send together, null when not batching
+  private volatile Flic2EventBatcher batcher = null;
+
+  // the bounded stream of events, null when sending events over the method channel
+  private volatile Flic2EventStream eventStream = null;
+
+  // the Flic 2 library is a single instance for the whole process, tied to the thread it
+  // first starts on, so if we give it a thread of its own that is shared and never stopped
+  private static HandlerThread flicThread = null;
+
+  // the journal of clicks, opened the first time an engine asks for it and shared by them all
+  private static Flic2EventJournal sharedJournal = null;
+
+  // the subscription of an engine that detached while journalling, left listening so the clicks
+  // still go in the journal till the next engine starts Flic 2 again
+  private static Flic2SharedController.Subscriber detachedSubscriber = null;
+
+  // where the time goes from the buttons to flutter, and counts of what is sent
+  private final Flic2Metrics metrics = new Flic2Metrics();
+
+  // records what the controller calls back with, null when not tracing
+  private volatile Flic2TraceRecorder traceRecorder = null;
+
+  // plays a trace back through our callback, null when not replaying
+  private volatile Flic2TraceReplayer traceReplayer = null;
 
-  // we can and want to control a Flic2 then
-  private Flic2Controller flic2Controller = null;
+  // the options to start the controller with when it's needed, null once started
+  private volatile Flic2Options pendingOptions = null;
+
+  // when initialise was called, how long the controller took to construct and how long
+  // from initialise till it was ready (ms, -1 till it is)
+  private volatile long initialiseCalledMs = 0;
+  private volatile long controllerStartMs = -1;
+  private volatile long readyMs = -1;
+
+  // the buttons as last known, null when not caching them. Those loaded from it are given
+  // (as stale) till the controller is ready and they have been checked against it
+  private volatile Flic2ButtonCache buttonCache = null;
+  private volatile List<Flic2ButtonSnapshot> cachedButtons = null;
+  private boolean isButtonCacheSaving = false;
+  // the buttons as they are in the file (by UUID), so a save with nothing changed is skipped
+  private final Map<String, Flic2ButtonSnapshot> savedButtons = new HashMap<>();
+
+  // the journal this engine writes the clicks to, null when not journalling
+  private volatile Flic2EventJournal journal = null;
+
+  // the handler of the thread the Flic 2 library is running on, null till initialised
+  private volatile Handler flicHandler = null;
+
+  // the handler of the platform thread, where everything sent to flutter has to go from
+  private final Handler platformHandler = new Handler(Looper.getMainLooper());
+
+  // runs the hop to the platform thread on its handler
+  private final Flic2EventDrain.Poster platformPoster = new Flic2EventDrain.Poster() {
+    @Override
+    public void post(Runnable runnable) {
+      platformHandler.post(runnable);
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delayMs) {
+      platformHandler.postDelayed(runnable, delayMs);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable runnable) {
+      platformHandler.removeCallbacks(runnable);
+    }
+  };
+
+  // events waiting for the platform thread to send them, the live ahead of those queued
+  private volatile Flic2EventDrain drain = new Flic2EventDrain(new Flic2EventLanes(0), platformPoster,
+      this::sendEvents);
 
   private Context context = null;
 
+  // run the method on the thread the Flic 2 library is running on
+  private static final int RUN_ON_FLIC_THREAD = 0;
+  // run the method on the platform thread, where the event stream lives
+  private static final int RUN_ON_PLATFORM_THREAD = 1;
+  // run the method right away on the background task queue it was called on
+  private static final int RUN_ON_TASK_QUEUE = 2;
+
+  /*
+   * the function to call to handle a method called from flutter
+   */
+  private interface MethodHandler {
+    void handle(@NonNull MethodCall call, @NonNull Result result);
+  }
+
+  /*
+   * the function to handle a method and the thread to handle it on
+   */
+  private static class MethodEntry {
+    final MethodHandler handler;
+    final int thread;
+
+    MethodEntry(MethodHandler handler, int thread) {
+      this.handler = handler;
+      this.thread = thread;
+    }
+  }
+
+  // the methods flutter can call, by name, so we can find each without comparing every name
+  private final Map<String, MethodEntry> methodTable = new HashMap<>();
+
+  public FlicButtonPlugin() {
+    methodTable.put(methodNameInitialise, new MethodEntry(this::initialiseFlic2, RUN_ON_TASK_QUEUE));
+    methodTable.put(methodNameDispose, new MethodEntry(this::disposeFlic2, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameStartFlic2Scan, new MethodEntry(this::startFlic2Scan, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameStopFlic2Scan, new MethodEntry(this::stopFlic2Scan, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameStartContinuousScan,
+        new MethodEntry(this::startContinuousScan, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameGetScanStats, new MethodEntry(this::getScanStats, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameSetActionRules, new MethodEntry(this::setActionRules, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameGetActionStats, new MethodEntry(this::getActionStats, RUN_ON_TASK_QUEUE));
+    methodTable.put(methodNameStartTrace, new MethodEntry(this::startTrace, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameStopTrace, new MethodEntry(this::stopTrace, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameReplayTrace, new MethodEntry(this::replayTrace, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameGetButtons, new MethodEntry(this::getButtonsOrCached, RUN_ON_TASK_QUEUE));
+    methodTable.put(methodNameGetButtonsByAddr, new MethodEntry(this::getButtonsByAddr, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameGetButtonsSince, new MethodEntry(this::getButtonsSince, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameGetButtonStats, new MethodEntry(this::getButtonStats, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameStartListenToFlic2, new MethodEntry(this::startListenToFlic2, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameStopListenToFlic2, new MethodEntry(this::stopListenToFlic2, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameConnectButton, new MethodEntry(this::connectButton, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameDisconnectButton, new MethodEntry(this::disconnectButton, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameForgetButton, new MethodEntry(this::forgetButton, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameStartListenToFlic2Buttons,
+        new MethodEntry(this::startListenToFlic2Buttons, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameStopListenToFlic2Buttons,
+        new MethodEntry(this::stopListenToFlic2Buttons, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameConnectButtons, new MethodEntry(this::connectButtons, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameDisconnectButtons, new MethodEntry(this::disconnectButtons, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameBatch, new MethodEntry(this::batch, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameGetConnectionStats, new MethodEntry(this::getConnectionStats, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameAckEvents, new MethodEntry(this::ackEvents, RUN_ON_PLATFORM_THREAD));
+    methodTable.put(methodNameGetStreamStats, new MethodEntry(this::getStreamStats, RUN_ON_PLATFORM_THREAD));
+    methodTable.put(methodNameGetLaneStats, new MethodEntry(this::getLaneStats, RUN_ON_TASK_QUEUE));
+    methodTable.put(methodNameReadJournal, new MethodEntry(this::readJournal, RUN_ON_TASK_QUEUE));
+    methodTable.put(methodNameGetMetrics, new MethodEntry(this::getMetrics, RUN_ON_TASK_QUEUE));
+    methodTable.put(methodNameWaitReady, new MethodEntry(this::waitReady, RUN_ON_FLIC_THREAD));
+    methodTable.put(methodNameGetStartupStats, new MethodEntry(this::getStartupStats, RUN_ON_TASK_QUEUE));
+    methodTable.put(methodNameStartBackground, new MethodEntry(this::startBackground, RUN_ON_PLATFORM_THREAD));
+    methodTable.put(methodNameGetBackgroundStats,
+        new MethodEntry(this::getBackgroundStats, RUN_ON_PLATFORM_THREAD));
+  }
+
   @Override
   public void onAttachedToEngine(@NonNull FlutterPluginBinding flutterPluginBinding) {
-    this.channel = new MethodChannel(flutterPluginBinding.getBinaryMessenger(), channelName);
+    final BinaryMessenger messenger = flutterPluginBinding.getBinaryMessenger();
+    // method calls are handled on a background queue, so nothing we do here holds up the UI
+    this.channel = new MethodChannel(messenger, channelName, StandardMethodCodec.INSTANCE,
+        messenger.makeBackgroundTaskQueue());
     this.channel.setMethodCallHandler(this);
+    this.eventChannel = new EventChannel(messenger, eventChannelName);
     // we will need the application context later for when they start the service or
     // whatever
     this.context = flutterPluginBinding.getApplicationContext();
@@ -78,10 +293,75 @@ public class FlicButtonPlugin implements FlutterPlugin, MethodCallHandler {
   @Override
   public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
     channel.setMethodCallHandler(null);
-    // and shutdown anything else started
-    if (null != this.flic2Controller) {
-      this.flic2Controller.releaseFlic();
-      this.flic2Controller = null;
+    // there's nothing to send events to now
+    channel = null;
+    stopStreaming();
+    runOnFlicThread(() -> {
+      // send anything we are holding while we still can
+      stopBatching();
+      // the buttons as they are now, for the next time we start
+      saveButtonCache();
+      flushJournal();
+      // and shutdown anything else started
+      if (null != this.subscriber) {
+        if (null != this.journal || ControlService.isDispatching()) {
+          // keep listening, so the clicks are journalled (or sent to the background
+          // callback) till the next engine starts
+          retainDetachedController(this.subscriber);
+        } else {
+          Flic2SharedController.unsubscribe(this.subscriber);
+        }
+        this.subscriber = null;
+        this.flic2Controller = null;
+      }
+      this.flicHandler = null;
+    });
+  }
+
+  private static synchronized Looper getFlicThreadLooper() {
+    if (null == flicThread) {
+      flicThread = new HandlerThread("Flic2");
+      flicThread.start();
+    }
+    return flicThread.getLooper();
+  }
+
+  private static synchronized Flic2EventJournal openJournal(Context context, int capacity) throws IOException {
+    if (null == sharedJournal) {
+      sharedJournal = Flic2EventJournal.open(new File(context.getFilesDir(), journalFileName), capacity);
+    }
+    return sharedJournal;
+  }
+
+  private static synchronized void retainDetachedController(Flic2SharedController.Subscriber subscriber) {
+    releaseDetachedController();
+    detachedSubscriber = subscriber;
+  }
+
+  private static synchronized void releaseDetachedController() {
+    if (null != detachedSubscriber) {
+      // another engine is taking over, so stop the old one listening
+      Flic2SharedController.unsubscribe(detachedSubscriber);
+      detachedSubscriber = null;
+    }
+  }
+
+  private void runOnFlicThread(Runnable runnable) {
+    // read once, a dispose or detach on another thread can clear it at any time
+    final Handler handler = this.flicHandler;
+    if (null == handler || handler.getLooper() == Looper.myLooper()) {
+      // not started (so there is no Flic 2 thread to wait for) or we are on it already
+      runnable.run();
+    } else {
+      handler.post(runnable);
+    }
+  }
+
+  private void runOnPlatformThread(Runnable runnable) {
+    if (Looper.getMainLooper() == Looper.myLooper()) {
+      runnable.run();
+    } else {
+      this.platformHandler.post(runnable);
     }
   }
 
@@ -112,235 +392,892 @@ public class FlicButtonPlugin implements FlutterPlugin, MethodCallHandler {
     return toReturn;
   }
 
-  private static StringBuilder AddParamToJson(StringBuilder jsonString, String dataTitle,
-      Callable<Object> dataFunction) {
-    // start the title
-    jsonString.append("\"");
-    jsonString.append(dataTitle);
-    jsonString.append("\":");
-    try {
-      // now the data as the function manages
-      final Object result = dataFunction.call();
-      if (result == null) {
-        // just add the null as a string
-        jsonString.append("null");
-      } else if (result instanceof String) {
-        // add the resulting data bounded with quotes, but maybe adding invalid strings
-        // cause the problem?
-        String stringAddResult = "null";
+  @Override
+  public void onMethodCall(@NonNull MethodCall call, @NonNull final Result result) {
+    // this is called on the background task queue, so find the method and run it on
+    // the thread it needs
+    final MethodEntry entry = methodTable.get(call.method);
+    final Handler handler = this.flicHandler;
+    if (null == entry) {
+      result.notImplemented();
+    } else if (entry.thread == RUN_ON_FLIC_THREAD && null == handler) {
+      // not initialised (or disposed), there's no Flic 2 thread to run this on
+      result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been started",
+          "Flic 2 isn't running so we can't " + call.method);
+    } else if (entry.thread == RUN_ON_FLIC_THREAD && handler.getLooper() != Looper.myLooper()) {
+      // the Flic 2 library is only called on its thread, the result is sent from the
+      // platform thread
+      handler.post(() -> {
+        if (!methodNameDispose.equals(call.method)) {
+          // the call waits for the controller, starting it if that was left till needed
+          ensureController();
+        }
+        entry.handler.handle(call, new PlatformThreadResult(result));
+      });
+    } else if (entry.thread == RUN_ON_PLATFORM_THREAD) {
+      runOnPlatformThread(() -> entry.handler.handle(call, result));
+    } else {
+      entry.handler.handle(call, result);
+    }
+  }
+
+  private void initialiseFlic2(@NonNull MethodCall call, @NonNull final Result result) {
+    // this is easy - start Flic
+    if (null != this.flic2Controller || null != this.flicHandler) {
+      // already started
+      result.error(ERROR_ALREADY_STARTED, "Flic 2 has been initialized already",
+          "Flic 2 started already, okay to call twice but won't do anything...");
+    } else if (null == this.context) {
+      result.error(ERROR_CRITICAL, "There's no context",
+          "The flutter engine didn't attach with a valid application context, sorry but we can't start Flic2");
+    } else {
+      // start Flic 2 then, encoding the data as the caller asked for
+      final Flic2Options options = Flic2Options.fromArguments(call.arguments());
+      if (options.journal) {
         try {
-          StringBuilder stringResultBuilder = new StringBuilder();
-          stringResultBuilder.append("\"");
-          // strings can't contain JSON quotes or slashes
-          final String cleanResult = ((String) result)
-              .replaceAll("\"", "'")
-              .replaceAll("\r", "")
-              .replaceAll("\n", "")
-              .replaceAll("\\\\", "");
-          stringResultBuilder.append(cleanResult);
-          stringResultBuilder.append("\"");
-          stringAddResult = stringResultBuilder.toString();
-        } catch (Throwable e) {
-          // yep - failed to add the string
-          stringAddResult = "null";
-          Logger logger = Logger.getGlobal();
-          if (logger != null) {
-            logger.warning(
-                "Something in flic failed when constructing the JSON with string: \"" + result + "\"" + e.getMessage());
-          }
+          this.journal = openJournal(context, options.journalCapacity);
+        } catch (IOException e) {
+          result.error(ERROR_CRITICAL, "The journal can't be opened",
+              "Flic 2 can't write to the journal file: " + e.getMessage());
+          return;
         }
-        jsonString.append(stringAddResult);
+      }
+      this.encoder = new Flic2EventEncoder(options.encoding);
+      this.compactUpOrDown = options.compactUpOrDown;
+      this.drain = new Flic2EventDrain(new Flic2EventLanes(options.queuedPerSecond), platformPoster,
+          this::sendEvents);
+      if (options.buttonCache) {
+        // a small file, read here so flutter can have the buttons before the controller is ready.
+        // Eagerly started, it is ready before flutter can ask, so these are only checked against it
+        this.buttonCache = new Flic2ButtonCache(new File(context.getFilesDir(), buttonCacheFileName));
+        this.cachedButtons = this.buttonCache.load();
+        setSavedButtons(this.cachedButtons);
+      }
+      // and on the thread they asked for, unless another engine has already started the
+      // controller we will share, then it's on the thread that one is using
+      final Handler sharedHandler = Flic2SharedController.getSharedHandler();
+      final Handler handler = null != sharedHandler ? sharedHandler
+          : new Handler(options.flicThread ? getFlicThreadLooper() : Looper.getMainLooper());
+      if (options.isBatching()) {
+        // events are called back on the Flic 2 thread, so batch there
+        this.batcher = new Flic2EventBatcher(options.batchSize, options.batchWindowMs, handler,
+            this::deliverEvents);
+      }
+      if (options.eventStream) {
+        // send events over the stream that flutter will listen to
+        this.eventStream = new Flic2EventStream(options.streamCapacity, options.streamWindow,
+            options.streamOverflow);
+        this.eventChannel.setStreamHandler(this.eventStream);
+      }
+      this.initialiseCalledMs = SystemClock.elapsedRealtime();
+      this.controllerStartMs = -1;
+      this.readyMs = -1;
+      this.pendingOptions = options;
+      this.flicHandler = handler;
+      if (options.initMode == Flic2Options.INIT_LAZY) {
+        // started by the first call that needs it
+        result.success(true);
+      } else if (options.initMode == Flic2Options.INIT_ASYNC) {
+        // start it on the Flic 2 thread, calls made before then are queued behind this
+        result.success(true);
+        runOnFlicThread(this::ensureController);
       } else {
-        // just append as the raw data type
-        jsonString.append(result);
+        final Result flicResult = new PlatformThreadResult(result);
+        runOnFlicThread(() -> {
+          ensureController();
+          flicResult.success(true);
+        });
+      }
+    }
+  }
+
+  /*
+   * start the controller if initialise has been called but it isn't started yet, this is
+   * called on the Flic 2 thread
+   */
+  private Flic2Controller ensureController() {
+    final Flic2Options options = this.pendingOptions;
+    if (null == this.flic2Controller && null != options) {
+      this.pendingOptions = null;
+      final long startMs = SystemClock.elapsedRealtime();
+      // the controller is shared by all the engines, created by the first of them
+      final Flic2SharedController.Subscriber shared = Flic2SharedController.subscribe(context, this.flicHandler,
+          controllerCallback, this.journal, metrics);
+      // any engine left listening before us can stop now we are here (after we subscribed, so
+      // the controller and its connections are kept for us)
+      releaseDetachedController();
+      final Flic2Controller controller = shared.getController();
+      if (options.isSchedulingConnections() && !shared.enableConnectionScheduling(options)) {
+        // another engine has them scheduled already, and differently, which it keeps
+        controllerCallback.onError("The connections are already scheduled by another engine with different options,"
+            + " these are ignored");
       }
-    } catch (Throwable e) {
-      // failed, add the data as "null" to something is returned
-      jsonString.append("null");
-      // and log the error to help in the future here
-      Logger logger = Logger.getGlobal();
-      if (logger != null) {
-        logger.warning("Something in flic failed when constructing the JSON return: " + e.getMessage());
+      this.flicHandler = shared.getHandler();
+      this.subscriber = shared;
+      this.flic2Controller = controller;
+      final long nowMs = SystemClock.elapsedRealtime();
+      this.controllerStartMs = nowMs - startMs;
+      this.readyMs = nowMs - initialiseCalledMs;
+      final List<Flic2ButtonSnapshot> cached = this.cachedButtons;
+      if (null != this.buttonCache && null != cached) {
+        // tell flutter what is different from the buttons it was given from the cache
+        Flic2ButtonCache.reconcile(controller, this.flicHandler, cached,
+            (added, changed, removed) -> onButtonsReconciled(controller, added, changed, removed));
       }
     }
-    // returning the string build so this can be chained
-    return jsonString;
-  }
-
-  private static String ButtonToJson(Flic2Button button) {
-    final StringBuilder sb = new StringBuilder("{");
-    // let's be super careful about constructing our json string here as these
-    // functions have been known to fail and return strange '����'
-    AddParamToJson(sb, "uuid", () -> button.getUuid()).append(",");
-    AddParamToJson(sb, "bdAddr", () -> button.getBdAddr()).append(",");
-    AddParamToJson(sb, "readyTime", () -> button.getReadyTimestamp()).append(",");
-    AddParamToJson(sb, "name", () -> button.getName()).append(",");
-    AddParamToJson(sb, "serialNo", () -> button.getSerialNumber()).append(",");
-    AddParamToJson(sb, "connection", () -> button.getConnectionState()).append(",");
-    AddParamToJson(sb, "firmwareVer", () -> button.getFirmwareVersion()).append(",");
-
-    final BatteryLevel lastKnownBatteryLevel = button.getLastKnownBatteryLevel();
-    if (lastKnownBatteryLevel == null) {
-      AddParamToJson(sb, "battPerc", () -> null).append(",");
-      AddParamToJson(sb, "battTime", () -> null).append(",");
-      AddParamToJson(sb, "battVolt", () -> null).append(",");
+    return this.flic2Controller;
+  }
+
+  private void disposeFlic2(@NonNull MethodCall call, @NonNull final Result result) {
+    // this is easy - stop Flic
+    if (null == this.flic2Controller && null != this.pendingOptions) {
+      // never needed, so never started, there's nothing to stop but what was set up for it
+      this.pendingOptions = null;
+      this.buttonCache = null;
+      this.cachedButtons = null;
+      stopBatching();
+      runOnPlatformThread(this::stopStreaming);
+      this.flicHandler = null;
+      result.success(true);
+    } else if (null == this.flic2Controller) {
+      // already started
+      result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been initialized",
+          "Flic 2 isn't running so we can't stop it...");
     } else {
-      AddParamToJson(sb, "battPerc", () -> lastKnownBatteryLevel.getEstimatedPercentage()).append(",");
-      AddParamToJson(sb, "battTime", () -> lastKnownBatteryLevel.getTimestampUtcMs()).append(",");
-      AddParamToJson(sb, "battVolt", () -> lastKnownBatteryLevel.getVoltage()).append(",");
+      // stop Flic 2 then
+      stopTracing();
+      saveButtonCache();
+      flushJournal();
+      this.buttonCache = null;
+      this.cachedButtons = null;
+      if (null != this.actionEngine) {
+        // only our rules, the other engines keep theirs
+        this.subscriber.setActionEngine(null);
+        this.actionEngine.close();
+        this.actionEngine = null;
+      }
+      // the controller is only released once the other engines are done with it too
+      Flic2SharedController.unsubscribe(this.subscriber);
+      boolean answer = true;
+      this.subscriber = null;
+      this.flic2Controller = null;
+      stopBatching();
+      runOnPlatformThread(this::stopStreaming);
+      // nothing more to run on the Flic 2 thread till we are started again
+      this.flicHandler = null;
+      result.success(answer);
     }
-    // the last one requires no comma at the end
-    AddParamToJson(sb, "pressCount", () -> button.getPressCount());
-    // but it does require an ending curly brace
-    sb.append("}");
-    // which we can return
-    return sb.toString();
   }
 
-  @Override
-  public void onMethodCall(@NonNull MethodCall call, @NonNull final Result result) {
-    if (call.method.equals(methodNameInitialise)) {
-      // this is easy - start Flic
-      if (null != this.flic2Controller) {
-        // already started
-        result.error(ERROR_ALREADY_STARTED, "Flic 2 has been initialized already",
-            "Flic 2 started already, okay to call twice but won't do anything...");
-      } else if (null == this.context) {
-        result.error(ERROR_CRITICAL, "There's no context",
-            "The flutter engine didn't attach with a valid application context, sorry but we can't start Flic2");
-      } else {
-        // start Flic 2 then
-        this.flic2Controller = new Flic2Controller(context, flic2Callback);
-        result.success(true);
+  private void startFlic2Scan(@NonNull MethodCall call, @NonNull final Result result) {
+    // this is easy - start the controller scanning
+    if (null == this.flic2Controller) {
+      // not started so cannot scan
+      result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been started", "Flic 2 isn't running so we can't scan...");
+    } else {
+      // scan for new buttons then
+      boolean answer = this.flic2Controller.startButtonScanning();
+      result.success(answer);
+    }
+  }
+
+  private void startContinuousScan(@NonNull MethodCall call, @NonNull final Result result) {
+    // scan till told to stop, the options of the scan can be passed in a map
+    if (null == this.flic2Controller) {
+      result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been started", "Flic 2 isn't running so we can't scan...");
+    } else {
+      final Object args = call.arguments();
+      final Map<?, ?> options = args instanceof Map ? (Map<?, ?>) args : null;
+      boolean answer = this.flic2Controller.startContinuousScanning(Flic2ContinuousScanner.Config.fromMap(options));
+      result.success(answer);
+    }
+  }
+
+  private void getScanStats(@NonNull MethodCall call, @NonNull final Result result) {
+    // the counts of the continuous scan, null if there hasn't been one
+    if (null == this.flic2Controller) {
+      result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been started",
+          "Flic 2 isn't running so there are no scan stats...");
+    } else {
+      result.success(this.flic2Controller.getScanStats());
+    }
+  }
+
+  private void setActionRules(@NonNull MethodCall call, @NonNull final Result result) {
+    // replace the rules of the actions run natively with those in the list of maps passed
+    final Object args = call.arguments();
+    if (null == this.flic2Controller) {
+      result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been started",
+          "Flic 2 isn't running so there are no clicks to act on...");
+      return;
+    } else if (!(args instanceof List)) {
+      result.error(ERROR_INVALID_ARGUMENTS,
+          "The argument passed to " + methodNameSetActionRules + " should be a list of rules",
+          args == null ? "null" : args.toString());
+      return;
+    }
+    final List<Flic2ActionEngine.Rule> rules = new ArrayList<>();
+    for (Object ruleArgs : (List<?>) args) {
+      final Flic2ActionEngine.Rule rule = ruleArgs instanceof Map
+          ? Flic2ActionEngine.Rule.fromMap((Map<?, ?>) ruleArgs) : null;
+      if (null == rule) {
+        result.error(ERROR_INVALID_ARGUMENTS, "A rule needs an action and a target",
+            ruleArgs == null ? "null" : ruleArgs.toString());
+        return;
       }
-    } else if (call.method.equals(methodNameDispose)) {
-      // this is easy - stop Flic
-      if (null == this.flic2Controller) {
-        // already started
-        result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been initialized",
-            "Flic 2 isn't running so we can't stop it...");
-      } else {
-        // stop Flic 2 then
-        boolean answer = this.flic2Controller.releaseFlic();
-        this.flic2Controller = null;
-        result.success(answer);
+      rules.add(rule);
+    }
+    if (null == this.actionEngine) {
+      this.actionEngine = new Flic2ActionEngine(context);
+    }
+    this.actionEngine.setRules(rules);
+    // our rules, the other engines sharing the controller have their own
+    this.subscriber.setActionEngine(this.actionEngine);
+    result.success(true);
+  }
+
+  private void getActionStats(@NonNull MethodCall call, @NonNull final Result result) {
+    // the counters, and how often each rule fired, the counters reset after reading if asked
+    final Object args = call.arguments();
+    final boolean isReset = args instanceof List && !((List<?>) args).isEmpty()
+        && Boolean.TRUE.equals(((List<?>) args).get(0));
+    final Flic2ActionEngine engine = this.actionEngine;
+    final Map<String, Object> stats = new HashMap<>();
+    stats.put("counters", null == engine ? new HashMap<String, Object>() : engine.getCounters(isReset));
+    stats.put("rules", null == engine ? new ArrayList<Object>() : engine.getRuleStats());
+    result.success(stats);
+  }
+
+  private void stopFlic2Scan(@NonNull MethodCall call, @NonNull final Result result) {
+    // this is easy - stop the controller scanning
+    if (null == this.flic2Controller) {
+      // already started
+      result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been started",
+          "Flic 2 isn't running so we can't stop scanning...");
+    } else {
+      // stop scanning for new buttons then
+      boolean answer = this.flic2Controller.cancelButtonScan();
+      result.success(answer);
+    }
+  }
+
+  private void getButtonsOrCached(@NonNull MethodCall call, @NonNull final Result result) {
+    // the buttons from the cache if the controller isn't ready, else from the controller
+    final List<Flic2ButtonSnapshot> cached = this.cachedButtons;
+    final Handler handler = this.flicHandler;
+    if (null == this.flic2Controller && null != cached) {
+      // right away, marked as stale till the controller has checked them
+      final List<Object> encodedButtons = new ArrayList<>(cached.size());
+      for (Flic2ButtonSnapshot button : cached) {
+        encodedButtons.add(encoder.encodeStaleButton(button));
       }
-    } else if (call.method.equals(methodNameStartFlic2Scan)) {
-      // this is easy - start the controller scanning
-      if (null == this.flic2Controller) {
-        // not started so cannot scan
-        result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been started", "Flic 2 isn't running so we can't scan...");
-      } else {
-        // scan for new buttons then
-        boolean answer = this.flic2Controller.startButtonScanning();
-        result.success(answer);
+      result.success(encodedButtons);
+    } else if (null == handler || handler.getLooper() == Looper.myLooper()) {
+      getButtons(call, result);
+    } else {
+      // as every other call to the controller, on its thread once it is ready
+      handler.post(() -> {
+        ensureController();
+        getButtons(call, new PlatformThreadResult(result));
+      });
+    }
+  }
+
+  private void onButtonsReconciled(Flic2Controller controller, List<Flic2ButtonSnapshot> added,
+      List<Flic2ButtonSnapshot> changed, List<String> removed) {
+    if (controller != this.flic2Controller) {
+      // stopped while checking them
+      return;
+    }
+    this.cachedButtons = null;
+    final List<Object> encodedAdded = new ArrayList<>(added.size());
+    for (Flic2ButtonSnapshot button : added) {
+      encodedAdded.add(encoder.encodeButton(button));
+    }
+    final List<Object> encodedChanged = new ArrayList<>(changed.size());
+    for (Flic2ButtonSnapshot button : changed) {
+      encodedChanged.add(encoder.encodeButton(button));
+    }
+    final Map<String, Object> changes = new HashMap<>();
+    changes.put("version", controller.getFleetVersion());
+    changes.put("added", encodedAdded);
+    changes.put("changed", encodedChanged);
+    changes.put("removed", removed);
+    informListeners(METHOD_FLIC2_BUTTONS_RECONCILED, changes);
+    saveButtonCache();
+  }
+
+  /*
+   * save the buttons to the cache in a while, unless a save is waiting already. Called on every
+   * click, so this is a throttle (the first change sets when it is saved) rather than waiting for
+   * the clicks to stop, which a busy button never would
+   */
+  private void scheduleButtonCacheSave() {
+    final Handler handler = this.flicHandler;
+    if (null != this.buttonCache && null == this.cachedButtons && !isButtonCacheSaving && null != handler) {
+      isButtonCacheSaving = true;
+      handler.postDelayed(this::saveButtonCache, BUTTON_CACHE_SAVE_DELAY_MS);
+    }
+  }
+
+  /*
+   * save the buttons to the cache now, on the Flic 2 thread
+   */
+  private void saveButtonCache() {
+    isButtonCacheSaving = false;
+    final Flic2ButtonCache cache = this.buttonCache;
+    final Flic2Controller controller = this.flic2Controller;
+    if (null != cache && null != controller && null == this.cachedButtons) {
+      final List<Flic2ButtonSnapshot> buttons = controller.getSnapshots();
+      // the file is a few bytes a button, quick enough to write on this thread, but there's no
+      // need if nothing in it would change
+      if (isButtonCacheChanged(buttons) && cache.save(buttons)) {
+        setSavedButtons(buttons);
       }
-    } else if (call.method.equals(methodNameStopFlic2Scan)) {
-      // this is easy - stop the controller scanning
-      if (null == this.flic2Controller) {
-        // already started
-        result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been started",
-            "Flic 2 isn't running so we can't stop scanning...");
-      } else {
-        // stop scanning for new buttons then
-        boolean answer = this.flic2Controller.cancelButtonScan();
-        result.success(answer);
+    }
+  }
+
+  private boolean isButtonCacheChanged(List<Flic2ButtonSnapshot> buttons) {
+    if (buttons.size() != savedButtons.size()) {
+      return true;
+    }
+    for (Flic2ButtonSnapshot button : buttons) {
+      if (!button.isSameData(savedButtons.get(button.uuid))) {
+        return true;
       }
-    } else if (call.method.equals(methodNameGetButtons)) {
-      // just get our buttons registered
-      if (null == this.flic2Controller) {
-        // already started
-        result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been started",
-            "Flic 2 isn't running so we can't get buttons...");
-      } else {
-        // so we can get all our buttons, but have to translate them all to json before
-        // we return
-        List<String> jsonButtons = new ArrayList<>();
-        for (Flic2Button button : this.flic2Controller.getButtonsDiscovered()) {
-          jsonButtons.add(ButtonToJson(button));
-        }
-        // return the list of buttons as nice transferable JSON
-        result.success(jsonButtons);
+    }
+    return false;
+  }
+
+  private void setSavedButtons(List<Flic2ButtonSnapshot> buttons) {
+    savedButtons.clear();
+    for (Flic2ButtonSnapshot button : buttons) {
+      savedButtons.put(button.uuid, button);
+    }
+  }
+
+  /*
+   * write the journal out to its file now, as we are stopping and the process may go with us
+   */
+  private void flushJournal() {
+    final Flic2EventJournal eventJournal = this.journal;
+    if (null != eventJournal) {
+      eventJournal.flush();
+    }
+  }
+
+  private void getButtons(@NonNull MethodCall call, @NonNull final Result result) {
+    // just get our buttons registered
+    if (null == this.flic2Controller) {
+      // already started
+      result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been started",
+          "Flic 2 isn't running so we can't get buttons...");
+    } else {
+      // so we can get all our buttons, but have to translate them all to json (or
+      // maps) before we return
+      List<Object> encodedButtons = new ArrayList<>();
+      for (Flic2Button button : this.flic2Controller.getButtonsDiscovered()) {
+        // the snapshot (and its encoding) is only rebuilt if the button changed
+        encodedButtons.add(encoder.encodeButton(this.flic2Controller.refreshSnapshot(button)));
       }
-    } else if (call.method.equals(methodNameGetButtonsByAddr)) {
-      // just get the button data for the passed address
-      String buttonAddress = extractStringArgument(methodNameGetButtonsByAddr, "button address", call.arguments(),
-          result);
-      if (buttonAddress != null) {
-        // so all's well, return the button data from this as success
-        Flic2Button button = this.flic2Controller.getButtonForAddress(buttonAddress);
-        if (null == button) {
-          // not found, which is success returning nothing
-          result.success("");
-        } else {
-          // else return the button as JSON
-          result.success(ButtonToJson(button));
-        }
+      // return the list of buttons as nice transferable data
+      result.success(encodedButtons);
+    }
+  }
+
+  private void getButtonStats(@NonNull MethodCall call, @NonNull final Result result) {
+    // the counts the controller keeps for each button, of the one button passed or all of them
+    final Object args = call.arguments();
+    if (null == this.flic2Controller) {
+      result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been started",
+          "Flic 2 isn't running so there are no button stats...");
+    } else if (null == args) {
+      result.success(this.flic2Controller.getAllButtonStats());
+    } else if (!(args instanceof List) || ((List<?>) args).size() != 1
+        || !(((List<?>) args).get(0) instanceof String)) {
+      result.error(ERROR_INVALID_ARGUMENTS,
+          "The list passed to " + methodNameGetButtonStats + " should just contain the button UUID",
+          args.toString());
+    } else {
+      final String buttonUuid = (String) ((List<?>) args).get(0);
+      final Map<String, Object> stats = this.flic2Controller.getButtonStats(buttonUuid);
+      final Map<String, Object> answer = new HashMap<>();
+      if (null != stats) {
+        answer.put(buttonUuid, stats);
       }
-    } else if (call.method.equals(methodNameStartListenToFlic2)) {
-      // start listening for the button - the arg will be the uid of the button
-      // hopefully
-      String buttonUuid = extractStringArgument(methodNameStartListenToFlic2, "button UUID", call.arguments(), result);
-      if (buttonUuid != null) {
-        // so all's well, lets listen to the button at this UUID
-        boolean answer = this.flic2Controller.listenToButton(buttonUuid);
-        // and return from this as success
-        result.success(answer);
+      result.success(answer);
+    }
+  }
+
+  private void getButtonsSince(@NonNull MethodCall call, @NonNull final Result result) {
+    // just the buttons that changed since the fleet version they last had
+    final Object args = call.arguments();
+    if (null == this.flic2Controller) {
+      result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been started",
+          "Flic 2 isn't running so we can't get buttons...");
+    } else if (!(args instanceof List) || ((List<?>) args).size() != 1
+        || !(((List<?>) args).get(0) instanceof Number)) {
+      result.error(ERROR_INVALID_ARGUMENTS,
+          "The list passed to " + methodNameGetButtonsSince + " should contain the fleet version",
+          args == null ? "null" : args.toString());
+    } else {
+      final Flic2Controller.FleetChanges changes = this.flic2Controller.getButtonsSince(
+          ((Number) ((List<?>) args).get(0)).longValue());
+      final List<Object> added = new ArrayList<>(changes.added.size());
+      for (Flic2ButtonSnapshot button : changes.added) {
+        added.add(encoder.encodeButton(button));
       }
-    } else if (call.method.equals(methodNameStopListenToFlic2)) {
-      // stop listening for the button - the arg will be the uid of the button
-      // hopefully
-      String buttonUuid = extractStringArgument(methodNameStopListenToFlic2, "button UUID", call.arguments(), result);
-      if (buttonUuid != null) {
-        // so all's well, lets get the listener ID and register it to call with all our
-        // results as we get them
-        boolean answer = this.flic2Controller.stopListeningToButton(buttonUuid);
-        // and return from this as success
-        result.success(answer);
+      final List<Object> changed = new ArrayList<>(changes.changed.size());
+      for (Flic2ButtonSnapshot button : changes.changed) {
+        changed.add(encoder.encodeButton(button));
       }
-    } else if (call.method.equals(methodNameConnectButton)) {
-      // connect to the specified button
-      String buttonUuid = extractStringArgument(methodNameConnectButton, "button UUID", call.arguments(), result);
-      if (buttonUuid != null) {
-        // so all's well, lets listen to the button at this UUID
-        boolean answer = this.flic2Controller.connectButton(buttonUuid);
-        // and return from this as success
-        result.success(answer);
+      final Map<String, Object> answer = new HashMap<>();
+      answer.put("version", changes.version);
+      answer.put("fullResync", changes.isFullResync);
+      answer.put("added", added);
+      answer.put("changed", changed);
+      answer.put("removed", changes.removed);
+      result.success(answer);
+    }
+  }
+
+  private void getButtonsByAddr(@NonNull MethodCall call, @NonNull final Result result) {
+    // just get the button data for the passed address
+    String buttonAddress = extractStringArgument(methodNameGetButtonsByAddr, "button address", call.arguments(),
+        result);
+    if (buttonAddress != null) {
+      // so all's well, return the button data from this as success
+      Flic2Button button = this.flic2Controller.getButtonForAddress(buttonAddress);
+      if (null == button) {
+        // not found, which is success returning nothing
+        result.success("");
+      } else {
+        // else return the button as JSON (or a map)
+        result.success(encoder.encodeButton(this.flic2Controller.refreshSnapshot(button)));
       }
-    } else if (call.method.equals(methodNameDisconnectButton)) {
-      // disconnect the button - the arg will be the uid of the button hopefully
-      String buttonUuid = extractStringArgument(methodNameDisconnectButton, "button UUID", call.arguments(), result);
-      if (buttonUuid != null) {
-        // so all's well, lets get the listener ID and register it to call with all our
-        // results as we get them
-        boolean answer = this.flic2Controller.disconnectButton(buttonUuid);
-        // and return from this as success
-        result.success(answer);
+    }
+  }
+
+  private void startListenToFlic2(@NonNull MethodCall call, @NonNull final Result result) {
+    // start listening for the button - the arg will be the uid of the button
+    // hopefully, with a map of the events wanted after it if they don't want them all
+    final Object args = call.arguments();
+    Flic2ButtonFilter filter = null;
+    Object uuidArgs = args;
+    if (args instanceof List && ((List<?>) args).size() == 2 && ((List<?>) args).get(1) instanceof Map) {
+      filter = Flic2ButtonFilter.fromMap((Map<?, ?>) ((List<?>) args).get(1));
+      uuidArgs = ((List<?>) args).subList(0, 1);
+    }
+    String buttonUuid = extractStringArgument(methodNameStartListenToFlic2, "button UUID", uuidArgs, result);
+    if (buttonUuid != null) {
+      // so all's well, lets listen to the button at this UUID
+      boolean answer = this.subscriber.listenToButton(buttonUuid, filter);
+      // and return from this as success
+      result.success(answer);
+    }
+  }
+
+  private void stopListenToFlic2(@NonNull MethodCall call, @NonNull final Result result) {
+    // stop listening for the button - the arg will be the uid of the button
+    // hopefully
+    String buttonUuid = extractStringArgument(methodNameStopListenToFlic2, "button UUID", call.arguments(), result);
+    if (buttonUuid != null) {
+      // so all's well, lets get the listener ID and register it to call with all our
+      // results as we get them
+      boolean answer = this.subscriber.stopListeningToButton(buttonUuid);
+      // and return from this as success
+      result.success(answer);
+    }
+  }
+
+  private void connectButton(@NonNull MethodCall call, @NonNull final Result result) {
+    // connect to the specified button
+    String buttonUuid = extractStringArgument(methodNameConnectButton, "button UUID", call.arguments(), result);
+    if (buttonUuid != null) {
+      // so all's well, lets listen to the button at this UUID
+      boolean answer = this.flic2Controller.connectButton(buttonUuid);
+      // and return from this as success
+      result.success(answer);
+    }
+  }
+
+  private void disconnectButton(@NonNull MethodCall call, @NonNull final Result result) {
+    // disconnect the button - the arg will be the uid of the button hopefully
+    String buttonUuid = extractStringArgument(methodNameDisconnectButton, "button UUID", call.arguments(), result);
+    if (buttonUuid != null) {
+      // so all's well, lets get the listener ID and register it to call with all our
+      // results as we get them
+      boolean answer = this.flic2Controller.disconnectButton(buttonUuid);
+      // and return from this as success
+      result.success(answer);
+    }
+  }
+
+  private void forgetButton(@NonNull MethodCall call, @NonNull final Result result) {
+    // forget the button - the arg will be the uid of the button hopefully
+    String buttonUuid = extractStringArgument(methodNameForgetButton, "button UUID", call.arguments(), result);
+    if (buttonUuid != null) {
+      // so all's well, lets forget this button then please
+      boolean answer = this.flic2Controller.forgetButton(buttonUuid);
+      // and return from this as success
+      result.success(answer);
+    }
+  }
+
+  private List<String> extractButtonUuids(String functionName, Object arguments, @NonNull final Result result) {
+    if (null == this.flic2Controller) {
+      result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been started", "Flic 2 isn't running so we can't " + functionName);
+      return null;
+    } else if (null == arguments) {
+      // no list means all the buttons we know about
+      return this.flic2Controller.getButtonUuids();
+    } else if (arguments instanceof List) {
+      final List<String> buttonUuids = new ArrayList<>();
+      for (Object arg : (List<?>) arguments) {
+        if (!(arg instanceof String)) {
+          result.error(ERROR_INVALID_ARGUMENTS,
+              "The list passed to " + functionName + " should just contain button UUIDs",
+              arguments.toString());
+          return null;
+        }
+        buttonUuids.add((String) arg);
       }
-    } else if (call.method.equals(methodNameForgetButton)) {
-      // forget the button - the arg will be the uid of the button hopefully
-      String buttonUuid = extractStringArgument(methodNameForgetButton, "button UUID", call.arguments(), result);
-      if (buttonUuid != null) {
-        // so all's well, lets forget this button then please
-        boolean answer = this.flic2Controller.forgetButton(buttonUuid);
-        // and return from this as success
-        result.success(answer);
+      return buttonUuids;
+    } else {
+      result.error(ERROR_INVALID_ARGUMENTS,
+          "The list passed to " + functionName + " is not valid",
+          arguments.toString());
+      return null;
+    }
+  }
+
+  private void startListenToFlic2Buttons(@NonNull MethodCall call, @NonNull final Result result) {
+    // listen to all the buttons in the list (or all we know if there's no list)
+    List<String> buttonUuids = extractButtonUuids(methodNameStartListenToFlic2Buttons, call.arguments(), result);
+    if (buttonUuids != null) {
+      // return the answer for each button in one go
+      result.success(this.flic2Controller.forButtons(buttonUuids, this.subscriber::listenToButton));
+    }
+  }
+
+  private void stopListenToFlic2Buttons(@NonNull MethodCall call, @NonNull final Result result) {
+    List<String> buttonUuids = extractButtonUuids(methodNameStopListenToFlic2Buttons, call.arguments(), result);
+    if (buttonUuids != null) {
+      result.success(this.flic2Controller.forButtons(buttonUuids, this.subscriber::stopListeningToButton));
+    }
+  }
+
+  private void connectButtons(@NonNull MethodCall call, @NonNull final Result result) {
+    List<String> buttonUuids = extractButtonUuids(methodNameConnectButtons, call.arguments(), result);
+    if (buttonUuids != null) {
+      result.success(this.flic2Controller.forButtons(buttonUuids, this.flic2Controller::connectButton));
+    }
+  }
+
+  private void disconnectButtons(@NonNull MethodCall call, @NonNull final Result result) {
+    List<String> buttonUuids = extractButtonUuids(methodNameDisconnectButtons, call.arguments(), result);
+    if (buttonUuids != null) {
+      result.success(this.flic2Controller.forButtons(buttonUuids, this.flic2Controller::disconnectButton));
+    }
+  }
+
+  private void batch(@NonNull MethodCall call, @NonNull final Result result) {
+    // run a list of calls, each a map of the method and its arguments, returning the
+    // result of each in one reply
+    final Object args = call.arguments();
+    if (!(args instanceof List)) {
+      result.error(ERROR_INVALID_ARGUMENTS,
+          "The list passed to " + methodNameBatch + " is not valid",
+          args == null ? "null" : args.toString());
+      return;
+    }
+    final List<Object> results = new ArrayList<>();
+    for (Object command : (List<?>) args) {
+      final BatchResult batchResult = new BatchResult();
+      final Object method = command instanceof Map ? ((Map<?, ?>) command).get("method") : null;
+      final MethodEntry entry = method instanceof String ? methodTable.get(method) : null;
+      if (null == entry) {
+        batchResult.notImplemented();
+      } else if (entry.thread != RUN_ON_FLIC_THREAD || method.equals(methodNameBatch)) {
+        // only the calls to the Flic 2 library can be batched (here on its thread)
+        batchResult.error(ERROR_INVALID_ARGUMENTS, "The method " + method + " can't be called in a batch", null);
+      } else {
+        // these all answer straight away on this thread, so we have the result after
+        entry.handler.handle(new MethodCall((String) method, ((Map<?, ?>) command).get("arguments")),
+            batchResult);
       }
+      results.add(batchResult.toMap());
+    }
+    result.success(results);
+  }
+
+  private void getConnectionStats(@NonNull MethodCall call, @NonNull final Result result) {
+    // return how the connecting of each button has gone
+    if (null == this.flic2Controller) {
+      result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been started",
+          "Flic 2 isn't running so we can't get connection stats...");
     } else {
-      result.notImplemented();
+      final Map<String, Object> stats = this.flic2Controller.getConnectionStats();
+      if (null == stats) {
+        result.error(ERROR_NOT_STARTED, "Connection scheduling hasn't been started",
+            "Flic 2 isn't scheduling connections so there are no stats to get");
+      } else {
+        result.success(stats);
+      }
+    }
+  }
+
+  private void ackEvents(@NonNull MethodCall call, @NonNull final Result result) {
+    // flutter has processed events from the stream, send it some more
+    final Object args = call.arguments();
+    if (null == this.eventStream) {
+      result.error(ERROR_NOT_STARTED, "The event stream hasn't been started",
+          "Flic 2 isn't streaming events so there's nothing to acknowledge");
+    } else if (!(args instanceof List) || ((List<?>) args).size() != 1
+        || !(((List<?>) args).get(0) instanceof Number)) {
+      result.error(ERROR_INVALID_ARGUMENTS,
+          "The list passed to " + methodNameAckEvents + " should just contain the count",
+          args == null ? "null" : args.toString());
+    } else {
+      this.eventStream.acknowledge(((Number) ((List<?>) args).get(0)).intValue());
+      result.success(true);
+    }
+  }
+
+  private void getStreamStats(@NonNull MethodCall call, @NonNull final Result result) {
+    // return the counts of what the stream has been doing
+    if (null == this.eventStream) {
+      result.error(ERROR_NOT_STARTED, "The event stream hasn't been started",
+          "Flic 2 isn't streaming events so there are no stats to get");
+    } else {
+      result.success(this.eventStream.getStats());
     }
   }
 
+  private void getLaneStats(@NonNull MethodCall call, @NonNull final Result result) {
+    // how deep the live and queued lanes are and how long events waited in them
+    result.success(this.drain.getLanes().getStats());
+  }
+
+  private void readJournal(@NonNull MethodCall call, @NonNull final Result result) {
+    // read the clicks journalled since the cursor passed, the cursor to pass next time comes back with them
+    final Object args = call.arguments();
+    final Flic2EventJournal eventJournal = this.journal;
+    if (null == eventJournal) {
+      result.error(ERROR_NOT_STARTED, "The journal hasn't been started",
+          "Flic 2 isn't journalling clicks so there's nothing to read");
+    } else if (!(args instanceof List) || ((List<?>) args).size() != 2
+        || !(((List<?>) args).get(0) instanceof Number) || !(((List<?>) args).get(1) instanceof Number)) {
+      result.error(ERROR_INVALID_ARGUMENTS,
+          "The list passed to " + methodNameReadJournal + " should contain the cursor and the most records to read",
+          args == null ? "null" : args.toString());
+    } else {
+      final List<?> list = (List<?>) args;
+      final Map<String, Object> read = eventJournal.read(((Number) list.get(0)).longValue(),
+          ((Number) list.get(1)).intValue());
+      final Flic2Controller controller = this.flic2Controller;
+      if (null != controller) {
+        // the journal only has room for the address, add the UUID of the buttons we know
+        for (Object record : (List<?>) read.get("records")) {
+          @SuppressWarnings("unchecked")
+          final Map<String, Object> recordMap = (Map<String, Object>) record;
+          final Flic2ButtonRegistry.Entry entry = controller.getRegistry().getByAddr((String) recordMap.get("bdAddr"));
+          recordMap.put("uuid", null == entry ? null : entry.uuid);
+        }
+      }
+      result.success(read);
+    }
+  }
+
+  private void getMetrics(@NonNull MethodCall call, @NonNull final Result result) {
+    // the timings and counts, reset after reading if asked
+    final Object args = call.arguments();
+    final boolean isReset = args instanceof List && !((List<?>) args).isEmpty()
+        && Boolean.TRUE.equals(((List<?>) args).get(0));
+    final Map<String, Object> answer = metrics.toMap();
+    if (isReset) {
+      metrics.reset();
+    }
+    result.success(answer);
+  }
+
+  private void waitReady(@NonNull MethodCall call, @NonNull final Result result) {
+    // this is called once the controller is started, so it's ready if there is one
+    if (null == this.flic2Controller) {
+      result.error(ERROR_NOT_STARTED, "Flic 2 hasn't been initialized",
+          "Flic 2 isn't running so it will never be ready...");
+    } else {
+      result.success(true);
+    }
+  }
+
+  private void getStartupStats(@NonNull MethodCall call, @NonNull final Result result) {
+    // how long starting took, so we can watch for it getting slower
+    final Map<String, Object> stats = new HashMap<>();
+    stats.put("ready", null != this.flic2Controller);
+    stats.put("controllerStartMs", this.controllerStartMs);
+    stats.put("readyMs", this.readyMs);
+    result.success(stats);
+  }
+
+  private void startBackground(@NonNull MethodCall call, @NonNull final Result result) {
+    // start the service running the dispatcher, to call the callback with events while there's no UI
+    final Object args = call.arguments();
+    if (null == this.context) {
+      result.error(ERROR_CRITICAL, "There's no context",
+          "The flutter engine didn't attach with a valid application context, sorry but we can't start the service");
+    } else if (!(args instanceof List) || ((List<?>) args).size() != 2
+        || !(((List<?>) args).get(0) instanceof Number) || !(((List<?>) args).get(1) instanceof Number)) {
+      result.error(ERROR_INVALID_ARGUMENTS,
+          "The list passed to " + methodNameStartBackground + " should contain the dispatcher and callback handles",
+          args == null ? "null" : args.toString());
+    } else {
+      final List<?> list = (List<?>) args;
+      final Intent intent = new Intent(context, ControlService.class);
+      intent.putExtra(ControlService.CALLBACK_DISPATCHER_HANDLE_KEY, ((Number) list.get(0)).longValue());
+      intent.putExtra(ControlService.CALLBACK_HANDLE_KEY, ((Number) list.get(1)).longValue());
+      result.success(null != context.startService(intent));
+    }
+  }
+
+  private void getBackgroundStats(@NonNull MethodCall call, @NonNull final Result result) {
+    // how long the background engine took to start and events took to get to it
+    result.success(ControlService.getStats());
+  }
+
+  private void startTrace(@NonNull MethodCall call, @NonNull final Result result) {
+    // record everything the controller calls back with to a file, to be replayed later
+    final Object args = call.arguments();
+    final Object path = args instanceof List && !((List<?>) args).isEmpty() ? ((List<?>) args).get(0) : null;
+    if (null != this.traceRecorder) {
+      result.error(ERROR_ALREADY_STARTED, "Already tracing", "Flic 2 is already tracing to "
+          + this.traceRecorder.getFile().getAbsolutePath());
+      return;
+    }
+    final File file = path instanceof String ? new File((String) path) : new File(context.getFilesDir(), traceFileName);
+    try {
+      this.traceRecorder = new Flic2TraceRecorder(file, flic2Callback);
+      result.success(file.getAbsolutePath());
+    } catch (IOException e) {
+      result.error(ERROR_CRITICAL, "The trace can't be written",
+          "Flic 2 can't write the trace to " + file.getAbsolutePath() + ": " + e.getMessage());
+    }
+  }
+
+  private void stopTrace(@NonNull MethodCall call, @NonNull final Result result) {
+    // stop recording, returning what was recorded
+    final Flic2TraceRecorder recorder = this.traceRecorder;
+    if (null == recorder) {
+      result.error(ERROR_NOT_STARTED, "Not tracing", "Flic 2 isn't tracing so there's nothing to stop");
+    } else {
+      this.traceRecorder = null;
+      result.success(recorder.close());
+    }
+  }
+
+  private void replayTrace(@NonNull MethodCall call, @NonNull final Result result) {
+    // play a trace back through our callback as if it were the controller, answering when it's done
+    final Object args = call.arguments();
+    if (!(args instanceof List) || ((List<?>) args).size() != 2 || !(((List<?>) args).get(0) instanceof String)
+        || !(((List<?>) args).get(1) instanceof Number)) {
+      result.error(ERROR_INVALID_ARGUMENTS,
+          "The list passed to " + methodNameReplayTrace + " should contain the path and the speed",
+          args == null ? "null" : args.toString());
+      return;
+    } else if (null != this.traceReplayer) {
+      result.error(ERROR_ALREADY_STARTED, "Already replaying", "Flic 2 is already replaying a trace");
+      return;
+    }
+    final List<?> list = (List<?>) args;
+    final Handler handler = this.flicHandler;
+    final Flic2TraceReplayer replayer = new Flic2TraceReplayer(new File((String) list.get(0)),
+        ((Number) list.get(1)).doubleValue(), false, handler::post, flic2Callback);
+    this.traceReplayer = replayer;
+    replayer.start(stats -> {
+      handler.post(() -> {
+        if (this.traceReplayer == replayer) {
+          this.traceReplayer = null;
+        }
+      });
+      result.success(stats);
+    });
+  }
+
+  /*
+   * the callback the controller is given, passing everything to the trace
+   * recorder when tracing, which passes it on to our callback
+   */
+  private final Flic2Controller.ButtonCallback controllerCallback = new Flic2Controller.ButtonCallback() {
+    private Flic2ButtonCallback target() {
+      final Flic2TraceRecorder recorder = traceRecorder;
+      return null == recorder ? flic2Callback : recorder;
+    }
+
+    @Override
+    public void onPairedButtonFound(Flic2ButtonSnapshot button) {
+      target().onPairedButtonFound(button);
+    }
+
+    @Override
+    public void onButtonFound(Flic2ButtonSnapshot button) {
+      target().onButtonFound(button);
+    }
+
+    @Override
+    public void onButtonConnected() {
+      target().onButtonConnected();
+    }
+
+    @Override
+    public void onButtonDiscovered(String buttonAddress) {
+      target().onButtonDiscovered(buttonAddress);
+    }
+
+    @Override
+    public void onButtonScanningStarted() {
+      target().onButtonScanningStarted();
+    }
+
+    @Override
+    public void onButtonScanningStopped() {
+      target().onButtonScanningStopped();
+    }
+
+    @Override
+    public void onError(String error) {
+      target().onError(error);
+    }
+
+    @Override
+    public void onButtonClicked(Flic2ButtonSnapshot button, boolean wasQueued, boolean lastQueued, long timestamp,
+        boolean isSingleClick, boolean isDoubleClick, boolean isHold) {
+      target().onButtonClicked(button, wasQueued, lastQueued, timestamp, isSingleClick, isDoubleClick, isHold);
+    }
+
+    @Override
+    public void onButtonUpOrDown(Flic2ButtonSnapshot button, boolean down, long timestamp) {
+      target().onButtonUpOrDown(button, down, timestamp);
+    }
+
+    @Override
+    public void onButtonRemoved(String buttonUuid) {
+      // not a callback of the trace, just what we keep about the button
+      flic2Callback.onButtonRemoved(buttonUuid);
+    }
+  };
+
   private final Flic2Controller.ButtonCallback flic2Callback = new Flic2Controller.ButtonCallback() {
     @Override
-    public void onPairedButtonFound(Flic2Button button) {
+    public void onPairedButtonFound(Flic2ButtonSnapshot button) {
       // inform listeners of this class of this function
-      informListeners(METHOD_FLIC2_DISCOVER_PAIRED, ButtonToJson(button));
+      informListeners(METHOD_FLIC2_DISCOVER_PAIRED, encoder.encodeButton(button));
+      scheduleButtonCacheSave();
     }
 
     @Override
-    public void onButtonFound(Flic2Button button) {
-      informListeners(METHOD_FLIC2_FOUND, ButtonToJson(button));
+    public void onButtonFound(Flic2ButtonSnapshot button) {
+      informListeners(METHOD_FLIC2_FOUND, encoder.encodeButton(button));
+      scheduleButtonCacheSave();
     }
 
     @Override
@@ -369,31 +1306,201 @@ public class FlicButtonPlugin implements FlutterPlugin, MethodCallHandler {
     }
 
     @Override
-    public void onButtonClicked(Flic2Button button, boolean wasQueued, boolean lastQueued, long timestamp,
+    public void onButtonRemoved(String buttonUuid) {
+      // a button paired again starts its compact up / downs again with all of it
+      encoder.forgetButton(buttonUuid);
+      scheduleButtonCacheSave();
+    }
+
+    @Override
+    public void onButtonClicked(Flic2ButtonSnapshot button, boolean wasQueued, boolean lastQueued, long timestamp,
         boolean isSingleClick, boolean isDoubleClick, boolean isHold) {
+      // the press count (maybe the battery) moved, so the cache wants saving
+      scheduleButtonCacheSave();
+      if (null == channel && !ControlService.isDispatching()) {
+        // detached from the engine, the shared controller journalled it and that's all we can do
+        return;
+      }
+      final long eventNs = metrics.getCurrentEventNs();
       // convert all this complex and bulky data to a single object to pass back
-      final String jsonData = "{" + "\"wasQueued\":" + wasQueued + "," + "\"clickAge\":"
-          + (wasQueued ? button.getReadyTimestamp() - timestamp : 0) + "," + "\"lastQueued\":" + lastQueued + ","
-          + "\"timestamp\":" + timestamp + "," + "\"isSingleClick\":" + isSingleClick + "," + "\"isDoubleClick\":"
-          + isDoubleClick + "," + "\"isHold\":" + isHold + "," + "\"button\":" + ButtonToJson(button) + "}";
+      final Object clickData = encodeClick(button, wasQueued, lastQueued, timestamp, isSingleClick, isDoubleClick,
+          isHold);
+      final long encodedNs = metrics.onEncoded(eventNs);
+      if (null == channel) {
+        // there's no UI, but there is a background callback
+        ControlService.dispatchEvent(METHOD_FLIC2_CLICK, clickData);
+        return;
+      }
       // and send back
-      informListeners(METHOD_FLIC2_CLICK, jsonData);
+      informListeners(new Flic2Event(METHOD_FLIC2_CLICK, clickData, button.uuid, wasQueued, lastQueued, eventNs,
+          encodedNs));
     }
 
     @Override
-    public void onButtonUpOrDown(Flic2Button button, boolean down) {
-      informListeners(METHOD_FLIC2_BUTTON_UP_DOWN, "{ \"down\": " + down +",  \"button\": " + ButtonToJson(button) + "}");
+    public void onButtonUpOrDown(Flic2ButtonSnapshot button, boolean down, long timestamp) {
+      if (null == channel) {
+        if (ControlService.isDispatching()) {
+          ControlService.dispatchEvent(METHOD_FLIC2_BUTTON_UP_DOWN, encodeUpOrDown(button, down));
+        }
+        return;
+      }
+      final long eventNs = metrics.getCurrentEventNs();
+      // the background callback has no button to apply a compact one to, so only flutter gets those
+      final Object upOrDownData = compactUpOrDown ? encoder.encodeCompactUpOrDown(button, down, timestamp)
+          : encodeUpOrDown(button, down);
+      informListeners(new Flic2Event(METHOD_FLIC2_BUTTON_UP_DOWN, upOrDownData, button.uuid, false, false,
+          eventNs, metrics.onEncoded(eventNs)));
     }
   };
 
-  private void informListeners(int methodId, String callbackData) {
-    if (null != channel) {
+  /*
+   * the click encoded, or the encoding of it another engine sharing the controller has made
+   */
+  private Object encodeClick(Flic2ButtonSnapshot button, boolean wasQueued, boolean lastQueued, long timestamp,
+      boolean isSingleClick, boolean isDoubleClick, boolean isHold) {
+    final Flic2SharedController.Subscriber shared = this.subscriber;
+    return null == shared
+        ? encoder.encodeClick(button, wasQueued, lastQueued, timestamp, isSingleClick, isDoubleClick, isHold)
+        : shared.encodeClick(encoder, button, wasQueued, lastQueued, timestamp, isSingleClick, isDoubleClick, isHold);
+  }
+
+  private Object encodeUpOrDown(Flic2ButtonSnapshot button, boolean down) {
+    final Flic2SharedController.Subscriber shared = this.subscriber;
+    return null == shared ? encoder.encodeUpOrDown(button, down) : shared.encodeUpOrDown(encoder, button, down);
+  }
+
+  private void informListeners(int methodId, Object callbackData) {
+    informListeners(new Flic2Event(methodId, callbackData));
+  }
+
+  private void informListeners(Flic2Event event) {
+    final Flic2EventBatcher eventBatcher = this.batcher;
+    if (null != eventBatcher) {
+      // let the batcher decide when this is sent
+      eventBatcher.add(event);
+    } else {
+      deliverEvent(event);
+    }
+  }
+
+  private void deliverEvent(Flic2Event event) {
+    // the first waiting hops to the platform thread, the rest go with it
+    drain.add(event, Looper.getMainLooper() == Looper.myLooper());
+  }
+
+  private void deliverEvents(List<Flic2Event> events) {
+    drain.addAll(events, Looper.getMainLooper() == Looper.myLooper());
+  }
+
+  private void stopBatching() {
+    final Flic2EventBatcher eventBatcher = this.batcher;
+    if (null != eventBatcher) {
+      eventBatcher.flush();
+      this.batcher = null;
+    }
+  }
+
+  private void stopTracing() {
+    final Flic2TraceRecorder recorder = this.traceRecorder;
+    if (null != recorder) {
+      this.traceRecorder = null;
+      recorder.close();
+    }
+    final Flic2TraceReplayer replayer = this.traceReplayer;
+    if (null != replayer) {
+      this.traceReplayer = null;
+      replayer.stop();
+    }
+  }
+
+  private void stopStreaming() {
+    if (null != eventStream) {
+      eventChannel.setStreamHandler(null);
+      eventStream = null;
+    }
+  }
+
+  private void sendEvent(Flic2Event event) {
+    metrics.onSent(event);
+    final Flic2EventStream stream = this.eventStream;
+    if (null != stream) {
+      // the stream will send this when flutter is ready for it
+      stream.offer(event);
+    } else if (null != channel) {
       // call the method on the channel to inform listeners of this operation
-      Map<String, Object> args = new HashMap<>();
-      args.put("method", methodId);
-      args.put("data", callbackData);
-      // Send some value to callback
-      channel.invokeMethod(methodNameCallback, args);
+      channel.invokeMethod(methodNameCallback, event.toArguments());
+    }
+  }
+
+  private void sendEvents(List<Flic2Event> events) {
+    if (events.size() == 1 || null != eventStream) {
+      // no need to wrap just one event in a list, and the stream sends them one at a time
+      for (Flic2Event event : events) {
+        sendEvent(event);
+      }
+    } else if (null != channel) {
+      // send all the events in one message, flutter calls them back in order
+      List<Map<String, Object>> args = new ArrayList<>(events.size());
+      for (Flic2Event event : events) {
+        metrics.onSent(event);
+        args.add(event.toArguments());
+      }
+      channel.invokeMethod(methodNameCallbackBatch, args);
+    }
+  }
+
+  /*
+   * passes the result of a call made on the Flic 2 thread back from the platform thread
+   */
+  private class PlatformThreadResult implements Result {
+    private final Result result;
+
+    PlatformThreadResult(Result result) {
+      this.result = result;
+    }
+
+    @Override
+    public void success(Object answer) {
+      runOnPlatformThread(() -> result.success(answer));
+    }
+
+    @Override
+    public void error(String errorCode, String errorMessage, Object errorDetails) {
+      metrics.onError();
+      runOnPlatformThread(() -> result.error(errorCode, errorMessage, errorDetails));
+    }
+
+    @Override
+    public void notImplemented() {
+      runOnPlatformThread(result::notImplemented);
+    }
+  }
+
+  /*
+   * keeps the result of a single call in a batch, to send back with the rest
+   */
+  private static class BatchResult implements Result {
+    private final Map<String, Object> outcome = new HashMap<>();
+
+    @Override
+    public void success(Object answer) {
+      outcome.put("success", answer);
+    }
+
+    @Override
+    public void error(String errorCode, String errorMessage, Object errorDetails) {
+      outcome.put("error", errorCode);
+      outcome.put("message", errorMessage);
+      outcome.put("details", errorDetails);
+    }
+
+    @Override
+    public void notImplemented() {
+      outcome.put("error", ERROR_NOT_IMPLEMENTED);
+    }
+
+    Map<String, Object> toMap() {
+      return outcome;
     }
   }
 }
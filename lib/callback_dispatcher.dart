@@ -4,6 +4,7 @@ import 'package:flutter/material.dart';
 import 'package:flutter/services.dart';
 
 /// the master callback dispatcher to send and receive data from the iOS and android implementations
+@pragma('vm:entry-point')
 void callbackDispatcher() {
   // 1. Initialize MethodChannel used to communicate with the platform portion of the plugin.
   const MethodChannel backgroundChannel =
@@ -21,10 +22,18 @@ void callbackDispatcher() {
         CallbackHandle.fromRawHandle(args[0]));
     assert(callbackThis != null);
 
-    // 3.2. Preprocess arguments.
-    String s = args[1] as String;
+    // 3.2. Preprocess arguments, a batch of events each a map of the method
+    // (FlicButtonPlugin.METHOD_FLIC2_...) and its data.
+    final List<dynamic> events = args[1] as List<dynamic>;
 
-    // 3.3. Invoke callback.
-    callbackThis!(s);
+    // 3.3. Invoke callback, for each in turn. Native sends the next batch when
+    // we return.
+    for (final event in events) {
+      await callbackThis!(event);
+    }
+    return true;
   });
+
+  // 4. Tell the platform we are listening, so it can send what it has been holding.
+  backgroundChannel.invokeMethod('initialized');
 }
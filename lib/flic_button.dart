@@ -2,10 +2,13 @@
 
 import 'dart:async';
 import 'dart:convert';
+import 'dart:ui';
 
 import 'package:flutter/services.dart';
 import 'package:logging/logging.dart';
 
+import 'callback_dispatcher.dart';
+
 /// an enum to use to represent the connection state of our button controller
 enum Flic2ButtonConnectionState {
   disconnected,
@@ -14,6 +17,174 @@ enum Flic2ButtonConnectionState {
   connected_ready,
 }
 
+/// how the native side encodes the buttons and events it sends back to dart
+enum Flic2EventEncoding {
+  /// the original JSON strings, parsed again on this side
+  json,
+
+  /// maps of primitives written directly by the channel codec (android only, iOS
+  /// will always send JSON)
+  typed,
+}
+
+/// what the native event stream does when it is full as dart isn't keeping up
+enum Flic2StreamOverflow {
+  /// drop the oldest event waiting
+  dropOldest,
+
+  /// replace a waiting up / down of the same button with the newer one
+  coalesceUpDown,
+
+  /// refuse replayed (queued) clicks till there is room, live events still get in
+  blockQueued,
+}
+
+/// when the native side starts the Flic 2 library (loading the buttons paired before)
+enum Flic2InitMode {
+  /// before initialize returns, as it always has
+  eager,
+
+  /// after initialize returns, off the platform thread when
+  /// [Flic2Options.flicThread] is set, calls made before it is ready wait for it
+  async,
+
+  /// only when the first call that needs it is made, which waits for it
+  lazy,
+}
+
+/// the options passed to the native side as the plugin is initialized
+class Flic2Options {
+  /// how the buttons and events are encoded to come back from native
+  final Flic2EventEncoding eventEncoding;
+
+  /// the most events native will send in one message, a button coming back into
+  /// range replays all its queued clicks which are sent together (android only,
+  /// one is no batching)
+  final int batchSize;
+
+  /// how long (ms) native will hold a queued click waiting for the rest of the batch
+  final int batchWindowMs;
+
+  /// receive the events over a stream that native holds (bounded) until dart is
+  /// ready for them rather than a method call per event (android only)
+  final bool eventStream;
+
+  /// the most events native will hold waiting for dart on the stream
+  final int streamCapacity;
+
+  /// the most events native will send on the stream before dart acknowledges them
+  final int streamWindow;
+
+  /// what native does when the stream is full
+  final Flic2StreamOverflow streamOverflow;
+
+  /// run the native Flic 2 library, and the preparing of events to send, on a
+  /// thread of its own so a busy UI doesn't delay the buttons (android only). The
+  /// library is shared by the whole app (and keeps the thread it was started on
+  /// for the life of the process) so the first initialize decides this
+  final bool flicThread;
+
+  /// the most buttons native will connect at once, the rest wait their turn
+  /// (recently clicked first) and failures are tried again after a backoff,
+  /// zero connects every button straight away (android only). The connections
+  /// are shared by the whole app, so they are scheduled as the first initialize
+  /// asking for it wants, another asking differently gets an error and its
+  /// scheduling options are ignored
+  final int maxConnecting;
+
+  /// how long (ms) a button has to connect before native tries again
+  final int connectTimeoutMs;
+
+  /// the first wait (ms) before trying to connect again, this doubles with each
+  /// failure (with some jitter) up to [backoffMaxMs]
+  final int backoffBaseMs;
+
+  /// the longest wait (ms) before trying to connect again
+  final int backoffMaxMs;
+
+  /// the most attempts to connect a button before giving up, zero to keep trying
+  final int maxConnectAttempts;
+
+  /// write every click and up / down to a journal file natively, so those that
+  /// happen while there is no engine (or the app is restarting) can be read
+  /// back with [FlicButtonPlugin.readFlic2Journal] (android only)
+  final bool journal;
+
+  /// the most records the journal holds, the oldest are overwritten after this
+  final int journalCapacity;
+
+  /// when the native side starts the Flic 2 library (android only), use
+  /// [FlicButtonPlugin.waitForFlic2Ready] to know when it has
+  final Flic2InitMode initMode;
+
+  /// send each up / down as the button's UUID with only the data of the button
+  /// that changed since the last, the button is rebuilt here from the one before
+  /// (android only)
+  final bool compactUpOrDown;
+
+  /// keep the buttons in a file natively, so [FlicButtonPlugin.getFlic2Buttons]
+  /// can answer from it straight away (the buttons marked
+  /// [Flic2Button.isStale]) while the Flic 2 library is starting. Once it has,
+  /// [Flic2Listener.onButtonsReconciled] is told what was different (android
+  /// only). Only an [initMode] of async or lazy answers from the file, eager
+  /// starts the library before initialize returns so the file is only read to
+  /// tell what changed since the app last ran
+  final bool buttonCache;
+
+  /// the most queued events (those a button replays as it comes back in range)
+  /// sent each second, so a long backlog drains in the background. Live events
+  /// are always sent ahead of them (android only, zero for no limit)
+  final int queuedPerSecond;
+
+  /// constructor
+  const Flic2Options({
+    this.eventEncoding = Flic2EventEncoding.typed,
+    this.batchSize = 1,
+    this.batchWindowMs = 50,
+    this.eventStream = false,
+    this.streamCapacity = 256,
+    this.streamWindow = 32,
+    this.streamOverflow = Flic2StreamOverflow.dropOldest,
+    this.flicThread = false,
+    this.maxConnecting = 0,
+    this.connectTimeoutMs = 15000,
+    this.backoffBaseMs = 1000,
+    this.backoffMaxMs = 60000,
+    this.maxConnectAttempts = 0,
+    this.journal = false,
+    this.journalCapacity = 4096,
+    this.initMode = Flic2InitMode.eager,
+    this.compactUpOrDown = false,
+    this.buttonCache = false,
+    this.queuedPerSecond = 0,
+  });
+
+  /// the options as they are sent over the channel to initialize the native side
+  Map<String, dynamic> toMap() {
+    return {
+      'encoding': eventEncoding.index,
+      'batchSize': batchSize,
+      'batchWindowMs': batchWindowMs,
+      'eventStream': eventStream,
+      'streamCapacity': streamCapacity,
+      'streamWindow': streamWindow,
+      'streamOverflow': streamOverflow.index,
+      'flicThread': flicThread,
+      'maxConnecting': maxConnecting,
+      'connectTimeoutMs': connectTimeoutMs,
+      'backoffBaseMs': backoffBaseMs,
+      'backoffMaxMs': backoffMaxMs,
+      'maxConnectAttempts': maxConnectAttempts,
+      'journal': journal,
+      'journalCapacity': journalCapacity,
+      'initMode': initMode.index,
+      'compactUpOrDown': compactUpOrDown,
+      'buttonCache': buttonCache,
+      'queuedPerSecond': queuedPerSecond,
+    };
+  }
+}
+
 /// a class to contain all the data about a flic 2 button
 class Flic2Button {
   /// the unique ID of this button - a long ugly string
@@ -49,6 +220,10 @@ class Flic2Button {
   /// a global counter of how often this button has been clicked
   final int pressCount;
 
+  /// is this the button as it was last known, from the cache, rather than from
+  /// the Flic 2 library (see [Flic2Options.buttonCache])
+  final bool isStale;
+
   /// constructor
   const Flic2Button({
     required this.uuid,
@@ -62,6 +237,7 @@ class Flic2Button {
     required this.battTimestamp,
     required this.battVoltage,
     required this.pressCount,
+    this.isStale = false,
   });
 }
 
@@ -113,11 +289,373 @@ class Flic2ButtonUpOrDown {
   /// Whether the button was pressed down or released.
   final bool isDown;
 
+  /// the time it happened, from the button (zero when not sent)
+  final int timestamp;
+
   /// constructor
   const Flic2ButtonUpOrDown({
     required this.button,
     required this.isDown,
+    this.timestamp = 0,
+  });
+}
+
+/// the events of a button to listen to, those not wanted are dropped natively
+/// so never cross the channel (not iOS)
+class Flic2ButtonFilter {
+  static const int _eventSingleClick = 1;
+  static const int _eventDoubleClick = 1 << 1;
+  static const int _eventHold = 1 << 2;
+  static const int _eventUpOrDown = 1 << 3;
+
+  /// send single clicks
+  final bool singleClick;
+
+  /// send double clicks
+  final bool doubleClick;
+
+  /// send holds
+  final bool hold;
+
+  /// send the button going up and down
+  final bool upOrDown;
+
+  /// send events as they happen
+  final bool live;
+
+  /// send the clicks a button queued while it was out of range
+  final bool queued;
+
+  /// the oldest (ms) a queued click can be and still be sent, zero for any age
+  final int maxQueuedAgeMs;
+
+  /// constructor
+  const Flic2ButtonFilter({
+    this.singleClick = true,
+    this.doubleClick = true,
+    this.hold = true,
+    this.upOrDown = true,
+    this.live = true,
+    this.queued = true,
+    this.maxQueuedAgeMs = 0,
+  });
+
+  /// the map that is passed to native
+  Map<String, dynamic> toMap() {
+    return {
+      'events': (singleClick ? _eventSingleClick : 0) |
+          (doubleClick ? _eventDoubleClick : 0) |
+          (hold ? _eventHold : 0) |
+          (upOrDown ? _eventUpOrDown : 0),
+      'live': live,
+      'queued': queued,
+      'maxQueuedAgeMs': maxQueuedAgeMs,
+    };
+  }
+}
+
+/// the built in actions native can run as a button is clicked
+enum Flic2Action {
+  /// broadcast an intent with the action of the target
+  broadcast,
+
+  /// write a line (uuid,event,timestamp,wasQueued) to the local socket named
+  /// by the target
+  socket,
+
+  /// add one to the counter named by the target
+  counter,
+}
+
+/// a rule run natively as a button is clicked, without waiting for dart
+/// (android only)
+class Flic2ActionRule {
+  /// the button the rule is for, null for any button
+  final String? buttonUuid;
+
+  /// the events that fire the rule, as a [Flic2ButtonFilter] without the
+  /// live / queued settings
+  final Flic2ButtonFilter events;
+
+  /// fire for the clicks a button queued while it was out of range too
+  final bool queued;
+
+  /// the action to run
+  final Flic2Action action;
+
+  /// the intent action, socket name or counter name
+  final String target;
+
+  /// the package a broadcast is limited to, null for any
+  final String? targetPackage;
+
+  /// send the event on to dart after the action has run
+  final bool forward;
+
+  /// constructor
+  const Flic2ActionRule({
+    this.buttonUuid,
+    this.events = const Flic2ButtonFilter(),
+    this.queued = false,
+    required this.action,
+    required this.target,
+    this.targetPackage,
+    this.forward = true,
+  });
+
+  /// the map that is passed to native
+  Map<String, dynamic> toMap() {
+    return {
+      'uuid': buttonUuid,
+      'events': events.toMap()['events'],
+      'queued': queued,
+      'action': action.index,
+      'target': target,
+      'package': targetPackage,
+      'forward': forward,
+    };
+  }
+}
+
+/// the options of a scan that keeps going, pairing every button it finds
+/// (android only)
+class Flic2ContinuousScanOptions {
+  /// a button discovered again within this (ms) isn't passed on again
+  final int dedupeWindowMs;
+
+  /// the most discoveries passed on each second, zero for no limit
+  final int maxDiscoveriesPerSecond;
+
+  /// the wait (ms) before scanning again after a scan ends, this doubles while
+  /// the scans fail (bluetooth off, or no permission) up to [backoffMaxMs]
+  final int rearmDelayMs;
+
+  /// the longest wait (ms) before scanning again
+  final int backoffMaxMs;
+
+  /// constructor
+  const Flic2ContinuousScanOptions({
+    this.dedupeWindowMs = 30000,
+    this.maxDiscoveriesPerSecond = 10,
+    this.rearmDelayMs = 250,
+    this.backoffMaxMs = 30000,
   });
+
+  /// the map that is passed to native
+  Map<String, dynamic> toMap() {
+    return {
+      'dedupeWindowMs': dedupeWindowMs,
+      'maxDiscoveriesPerSecond': maxDiscoveriesPerSecond,
+      'rearmDelayMs': rearmDelayMs,
+      'backoffMaxMs': backoffMaxMs,
+    };
+  }
+}
+
+/// a single event from native, as it is passed to the [Flic2Listener], which
+/// of the values are set depends on the [methodId] of the event
+class Flic2Event {
+  /// the FlicButtonPlugin.METHOD_FLIC2_... ID of this event
+  final int methodId;
+
+  /// the button found or discovered
+  final Flic2Button? button;
+
+  /// the click of a button
+  final Flic2ButtonClick? click;
+
+  /// the press or release of a button
+  final Flic2ButtonUpOrDown? upOrDown;
+
+  /// the address of a button discovered
+  final String? buttonAddress;
+
+  /// the error encountered
+  final String? error;
+
+  /// the differences between the cached buttons and those of the library
+  final Flic2FleetChanges? fleetChanges;
+
+  /// constructor
+  const Flic2Event({
+    required this.methodId,
+    this.button,
+    this.click,
+    this.upOrDown,
+    this.buttonAddress,
+    this.error,
+    this.fleetChanges,
+  });
+}
+
+/// the buttons added, changed and removed since a version of the fleet, from
+/// [FlicButtonPlugin.getFlic2ButtonsSince]
+class Flic2FleetChanges {
+  /// the version of the fleet these bring you up to, pass it next time
+  final int version;
+
+  /// the buttons new to the fleet
+  final List<Flic2Button> added;
+
+  /// the buttons with data that changed
+  final List<Flic2Button> changed;
+
+  /// the UUIDs of the buttons no longer in the fleet
+  final List<String> removed;
+
+  /// the version passed was too old (or from before the app was restarted) for
+  /// native to know what was removed since, so every button is in [added] and
+  /// any button you have that isn't there has gone
+  final bool isFullResync;
+
+  /// constructor
+  const Flic2FleetChanges({
+    required this.version,
+    required this.added,
+    required this.changed,
+    required this.removed,
+    this.isFullResync = false,
+  });
+}
+
+/// a click or up / down of a button as it was written to the native journal
+class Flic2JournalRecord {
+  static const int TYPE_CLICK = 1;
+  static const int TYPE_UP_OR_DOWN = 2;
+
+  static const int FLAG_WAS_QUEUED = 1;
+  static const int FLAG_LAST_QUEUED = 1 << 1;
+  static const int FLAG_SINGLE_CLICK = 1 << 2;
+  static const int FLAG_DOUBLE_CLICK = 1 << 3;
+  static const int FLAG_HOLD = 1 << 4;
+  static const int FLAG_DOWN = 1 << 5;
+
+  /// the sequence number of this record, pass this as the cursor to read after it
+  final int seq;
+
+  /// the UUID of the button, null if it isn't one we know now
+  final String? buttonUuid;
+
+  /// the address of the button
+  final String bdAddr;
+
+  /// the type of record, [TYPE_CLICK] or [TYPE_UP_OR_DOWN]
+  final int type;
+
+  /// the FLAG_... values of the click or up / down
+  final int flags;
+
+  /// the timestamp of the click (or up / down) from the button
+  final int timestamp;
+
+  /// when this was written (ms since the epoch)
+  final int wallMs;
+
+  /// constructor
+  const Flic2JournalRecord({
+    required this.seq,
+    required this.buttonUuid,
+    required this.bdAddr,
+    required this.type,
+    required this.flags,
+    required this.timestamp,
+    required this.wallMs,
+  });
+
+  bool get isClick => type == TYPE_CLICK;
+  bool get wasQueued => flags & FLAG_WAS_QUEUED != 0;
+  bool get lastQueued => flags & FLAG_LAST_QUEUED != 0;
+  bool get isSingleClick => flags & FLAG_SINGLE_CLICK != 0;
+  bool get isDoubleClick => flags & FLAG_DOUBLE_CLICK != 0;
+  bool get isHold => flags & FLAG_HOLD != 0;
+  bool get isDown => flags & FLAG_DOWN != 0;
+}
+
+/// the records read from the native journal, see [FlicButtonPlugin.readFlic2Journal]
+class Flic2JournalRead {
+  /// the records after the cursor, oldest first
+  final List<Flic2JournalRecord> records;
+
+  /// the cursor to pass to read the records after these
+  final int cursor;
+
+  /// how many records after the cursor were lost, as the journal wrapped past them
+  final int missed;
+
+  /// the cursor passed was ahead of the journal (it was started again, as when
+  /// its capacity changed), so there are no records and [cursor] is the latest
+  final bool isReset;
+
+  /// constructor
+  const Flic2JournalRead({
+    required this.records,
+    required this.cursor,
+    required this.missed,
+    this.isReset = false,
+  });
+}
+
+/// a single call to make as part of a batch, see [FlicButtonPlugin.batchFlic2]
+class Flic2Command {
+  /// the name of the method to call
+  final String method;
+
+  /// the arguments to pass to the method
+  final Object? arguments;
+
+  Flic2Command._(this.method, this.arguments);
+
+  /// connect a button
+  Flic2Command.connectButton(String buttonUuid)
+      : this._(FlicButtonPlugin._methodNameConnectButton, [buttonUuid]);
+
+  /// disconnect a button
+  Flic2Command.disconnectButton(String buttonUuid)
+      : this._(FlicButtonPlugin._methodNameDisconnectButton, [buttonUuid]);
+
+  /// forget a button
+  Flic2Command.forgetButton(String buttonUuid)
+      : this._(FlicButtonPlugin._methodNameForgetButton, [buttonUuid]);
+
+  /// listen to a button
+  Flic2Command.listenToButton(String buttonUuid)
+      : this._(FlicButtonPlugin._methodNameStartListenToFlic2, [buttonUuid]);
+
+  /// stop listening to a button
+  Flic2Command.cancelListenToButton(String buttonUuid)
+      : this._(FlicButtonPlugin._methodNameStopListenToFlic2, [buttonUuid]);
+
+  /// start scanning for buttons
+  Flic2Command.scan() : this._(FlicButtonPlugin._methodNameStartFlic2Scan, null);
+
+  /// stop scanning for buttons
+  Flic2Command.cancelScan()
+      : this._(FlicButtonPlugin._methodNameStopFlic2Scan, null);
+
+  /// the command as it is sent over the channel
+  Map<String, dynamic> toMap() {
+    return {'method': method, 'arguments': arguments};
+  }
+}
+
+/// the result of a single [Flic2Command] run in a batch
+class Flic2CommandResult {
+  /// the value returned by the command when it worked
+  final Object? value;
+
+  /// the error code (FlicButtonPlugin.ERROR_...) when it didn't
+  final String? errorCode;
+
+  /// the message of the error when it didn't work
+  final String? errorMessage;
+
+  /// constructor
+  const Flic2CommandResult({this.value, this.errorCode, this.errorMessage});
+
+  /// did the command work
+  bool get isSuccess {
+    return errorCode == null;
+  }
 }
 
 /// implement this listener to receive information about flic 2 buttons being found, connected and pressed
@@ -150,6 +688,11 @@ abstract class Flic2Listener {
   /// called by the plugin when a connected button was pressed or released.
   /// Events of this type are "live", i.e., happened very recently.
   void onButtonUpOrDown(Flic2ButtonUpOrDown button) {}
+
+  /// called once the buttons given from the cache have been checked against
+  /// those of the Flic 2 library, with those added, changed and removed since
+  /// (see [Flic2Options.buttonCache])
+  void onButtonsReconciled(Flic2FleetChanges changes) {}
 }
 
 /// the plugin to handle the finding of, connection to and listening tp to Flic2 buttons
@@ -159,26 +702,65 @@ abstract class Flic2Listener {
 /// to version 1 of their buttons, or the dial, but I guess it could (O:
 class FlicButtonPlugin {
   static const String _channelName = 'flic_button';
+  static const String _eventChannelName = 'flic_button_events';
   static const String _methodNameInitialize = 'initializeFlic2';
   static const String _methodNameDispose = 'disposeFlic2';
   static const String _methodNameCallback = 'callListener';
+  static const String _methodNameCallbackBatch = 'callListenerBatch';
 
   static const String _methodNameStartFlic2Scan = "startFlic2Scan";
   static const String _methodNameStopFlic2Scan = "stopFlic2Scan";
+  static const String _methodNameStartContinuousScan =
+      "startFlic2ContinuousScan";
+  static const String _methodNameGetScanStats = "getFlic2ScanStats";
+
+  static const String _methodNameSetActionRules = "setFlic2ActionRules";
+  static const String _methodNameGetActionStats = "getFlic2ActionStats";
+
+  static const String _methodNameStartTrace = "startFlic2Trace";
+  static const String _methodNameStopTrace = "stopFlic2Trace";
+  static const String _methodNameReplayTrace = "replayFlic2Trace";
   static const String _methodNameStartListenToFlic2 = "startListenToFlic2";
   static const String _methodNameStopListenToFlic2 = "stopListenToFlic2";
 
   static const String _methodNameGetButtons = "getButtons";
   static const String _methodNameGetButtonsByAddr = "getButtonsByAddr";
+  static const String _methodNameGetButtonsSince = "getButtonsSince";
+  static const String _methodNameGetButtonStats = "getFlic2ButtonStats";
+  static const String _methodNameGetLaneStats = "getFlic2LaneStats";
 
   static const String _methodNameConnectButton = "connectButton";
   static const String _methodNameDisconnectButton = "disconnectButton";
   static const String _methodNameForgetButton = "forgetButton";
 
+  static const String _methodNameStartListenToFlic2Buttons =
+      "startListenToFlic2Buttons";
+  static const String _methodNameStopListenToFlic2Buttons =
+      "stopListenToFlic2Buttons";
+  static const String _methodNameConnectButtons = "connectButtons";
+  static const String _methodNameDisconnectButtons = "disconnectButtons";
+  static const String _methodNameBatch = "batchFlic2";
+
+  static const String _methodNameGetConnectionStats = "getFlic2ConnectionStats";
+
+  static const String _methodNameAckEvents = "ackFlic2Events";
+  static const String _methodNameGetStreamStats = "getFlic2StreamStats";
+
+  static const String _methodNameReadJournal = "readFlic2Journal";
+
+  static const String _methodNameGetMetrics = "getFlic2Metrics";
+
+  static const String _methodNameWaitReady = "waitFlic2Ready";
+  static const String _methodNameGetStartupStats = "getFlic2StartupStats";
+
+  static const String _methodNameStartBackground = "startFlic2Background";
+  static const String _methodNameGetBackgroundStats = "getFlic2BackgroundStats";
+
   static const String ERROR_CRITICAL = 'CRITICAL';
   static const String ERROR_NOT_STARTED = 'NOT_STARTED';
   static const String ERROR_ALREADY_STARTED = 'ALREADY_STARTED';
   static const String ERROR_INVALID_ARGUMENTS = 'INVALID_ARGUMENTS';
+  static const String ERROR_NOT_IMPLEMENTED = 'NOT_IMPLEMENTED';
 
   static const int METHOD_FLIC2_DISCOVER_PAIRED = 100;
   static const int METHOD_FLIC2_DISCOVERED = 101;
@@ -188,23 +770,52 @@ class FlicButtonPlugin {
   static const int METHOD_FLIC2_SCAN_COMPLETE = 105;
   static const int METHOD_FLIC2_FOUND = 106;
   static const int METHOD_FLIC2_BUTTON_UP_DOWN = 107;
+  static const int METHOD_FLIC2_BUTTONS_RECONCILED = 108;
   static const int METHOD_FLIC2_ERROR = 200;
 
   static const MethodChannel _channel = MethodChannel(_channelName);
+  static const EventChannel _eventChannel = EventChannel(_eventChannelName);
 
   Future<bool?>? _invokationFuture;
 
+  final StreamController<Flic2Event> _eventController =
+      StreamController<Flic2Event>.broadcast();
+
+  StreamSubscription? _eventSubscription;
+
+  int _eventsToAcknowledge = 0;
+
+  /// the buttons as the last compact up / down left them, and their versions,
+  /// by UUID
+  final Map<String, Flic2Button> _upOrDownButtons = {};
+  final Map<String, int> _upOrDownVersions = {};
+
   final Flic2Listener flic2listener;
 
+  /// the options this plugin was initialized with
+  final Flic2Options options;
+
   final log = Logger('FlicButtonPlugin');
 
   /// create the 'plugin' to manage all connection and listening to FLic 2 buttons
-  FlicButtonPlugin({required this.flic2listener}) {
+  FlicButtonPlugin({
+    required this.flic2listener,
+    this.options = const Flic2Options(),
+  }) {
     // set the callback handler to ours to receive all our data back after
     // initialized
     _channel.setMethodCallHandler(_methodCallHandler);
     // an invoke the function to initialise the handling of Flic 2
-    _invokationFuture = _channel.invokeMethod<bool>(_methodNameInitialize);
+    _invokationFuture = _channel
+        .invokeMethod<bool>(_methodNameInitialize, options.toMap())
+        .then((started) {
+      if (started == true && options.eventStream) {
+        // native is ready to stream events to us now
+        _eventSubscription =
+            _eventChannel.receiveBroadcastStream().listen(_streamHandler);
+      }
+      return started;
+    });
   }
 
   /// accessor to get the invokation future so your UI can wait till it's running properly
@@ -212,18 +823,203 @@ class FlicButtonPlugin {
     return _invokationFuture;
   }
 
+  /// all the events from native, as they are passed to the [flic2listener]
+  Stream<Flic2Event> get events {
+    return _eventController.stream;
+  }
+
   /// dispose of this plugin to shut it all down (iOS doesn't at the moment)
   Future<bool?> disposeFlic2() async {
+    // stop listening to the stream of events
+    await _eventSubscription?.cancel();
+    _eventSubscription = null;
     // this just stops the FLIC 2 manager if not started that's ok
     return _channel.invokeMethod<bool>(_methodNameDispose);
   }
 
+  /// get the attempts, connects, failures and timing of connecting each button
+  /// by UUID (android only, when [Flic2Options.maxConnecting] is set). The time
+  /// from asking to ready, waiting and backoff included, is lastConnectMs and
+  /// averageConnectMs, and from the attempt that worked starting to ready is
+  /// lastAttemptMs and averageAttemptMs
+  Future<Map<String, Map>?> getFlic2ConnectionStats() async {
+    return _channel.invokeMapMethod<String, Map>(_methodNameGetConnectionStats);
+  }
+
+  /// get the counts of events queued, in flight, sent, dropped and coalesced by
+  /// the native event stream (android only, when streaming events)
+  Future<Map<String, int>?> getFlic2StreamStats() async {
+    return _channel.invokeMapMethod<String, int>(_methodNameGetStreamStats);
+  }
+
+  /// get how the live and queued lanes of events waiting to be sent are doing,
+  /// each as a map of the depth (now), maxDepth, added, sent and the wait (the
+  /// count, meanNs, maxNs, p50Ns, p90Ns, p99Ns and p999Ns of the time spent
+  /// in the lane), with the queuedPerSecond limit (android only)
+  Future<Map<String, dynamic>?> getFlic2LaneStats() async {
+    return _channel.invokeMapMethod<String, dynamic>(_methodNameGetLaneStats);
+  }
+
+  /// get where the time goes between a button being pressed and the event being
+  /// sent to this engine's dart, and counts of what was sent (android only).
+  /// Each stage (sdkToListener, listenerToEncoded, encodedToSent and
+  /// listenerToSent) is a map of the count, meanNs, maxNs, p50Ns, p90Ns, p99Ns
+  /// and p999Ns. The counts are byType (METHOD_FLIC2_... as a string), byButton
+  /// (UUID), live, queued and errors. Pass [reset] to start counting again after
+  /// these are read
+  Future<Map<String, dynamic>?> getFlic2Metrics({bool reset = false}) async {
+    return _channel
+        .invokeMapMethod<String, dynamic>(_methodNameGetMetrics, [reset]);
+  }
+
+  /// wait for the native Flic 2 library to be started, starting it now if
+  /// [Flic2Options.initMode] left that till it was needed (android only)
+  Future<bool?> waitForFlic2Ready() async {
+    await _invokationFuture;
+    return _channel.invokeMethod<bool>(_methodNameWaitReady);
+  }
+
+  /// get how long (ms) the native controller took to start (controllerStartMs)
+  /// and the time from initialize to it being ready (readyMs), -1 till it is
+  /// (android only)
+  Future<Map<String, dynamic>?> getFlic2StartupStats() async {
+    return _channel
+        .invokeMapMethod<String, dynamic>(_methodNameGetStartupStats);
+  }
+
+  /// start the native service that calls the [callback] with the clicks (and up
+  /// / downs) of the buttons while there is no UI to send them to. The callback
+  /// must be a top level (or static) function and is passed a map of the
+  /// 'method' (METHOD_FLIC2_...) and the 'data' of each event. The background
+  /// engine is started once and kept warm for every start after (android only)
+  Future<bool?> startFlic2Background(
+      FutureOr<void> Function(Map<dynamic, dynamic> event) callback) async {
+    final dispatcherHandle =
+        PluginUtilities.getCallbackHandle(callbackDispatcher);
+    final callbackHandle = PluginUtilities.getCallbackHandle(callback);
+    if (dispatcherHandle == null || callbackHandle == null) {
+      log.severe('the background callback must be a top level function');
+      return false;
+    }
+    return _channel.invokeMethod<bool>(_methodNameStartBackground,
+        [dispatcherHandle.toRawHandle(), callbackHandle.toRawHandle()]);
+  }
+
+  /// get how long (engineStartMs) the background engine took to start and the
+  /// count, averageMs and maxMs from events to the background callback having
+  /// handled them, 'cold' for those that waited for the engine to start and
+  /// 'warm' for those it was already running for, with the events 'pending' for
+  /// the callback and those 'dropped' as too many were waiting (android only)
+  Future<Map<String, dynamic>?> getFlic2BackgroundStats() async {
+    return _channel
+        .invokeMapMethod<String, dynamic>(_methodNameGetBackgroundStats);
+  }
+
+  /// read the clicks (and up / downs) written to the native journal after the
+  /// [cursor] (zero for all of them), including those from while there was no
+  /// engine to send them to. Keep the cursor returned to read on from there next
+  /// time (android only, when [Flic2Options.journal] is set)
+  Future<Flic2JournalRead> readFlic2Journal(int cursor,
+      {int maxRecords = 1024}) async {
+    final read = await _channel.invokeMapMethod<String, dynamic>(
+        _methodNameReadJournal, [cursor, maxRecords]);
+    if (read == null) {
+      return Flic2JournalRead(records: const [], cursor: cursor, missed: 0);
+    }
+    return Flic2JournalRead(
+      records: (read['records'] as List)
+          .map((record) => Flic2JournalRecord(
+                seq: record['seq'],
+                buttonUuid: record['uuid'],
+                bdAddr: record['bdAddr'],
+                type: record['type'],
+                flags: record['flags'],
+                timestamp: record['timestamp'],
+                wallMs: record['wallMs'],
+              ))
+          .toList(),
+      cursor: read['cursor'],
+      missed: read['missed'],
+      isReset: read['reset'] ?? false,
+    );
+  }
+
   /// initiate a scan for buttons
   Future<bool?> scanForFlic2() async {
     // scan for flic 2 buttons then please
     return _channel.invokeMethod<bool>(_methodNameStartFlic2Scan);
   }
 
+  /// scan for buttons till [cancelScanForFlic2] is called, pairing each as it
+  /// is found, to provision many buttons at once (android only)
+  Future<bool?> scanForFlic2Continuously(
+      {Flic2ContinuousScanOptions options =
+          const Flic2ContinuousScanOptions()}) async {
+    return _channel.invokeMethod<bool>(
+        _methodNameStartContinuousScan, options.toMap());
+  }
+
+  /// get the counts native keeps of what each button did, by UUID, for the one
+  /// [buttonUuid] or for all the buttons if not given. Each has the clicks of
+  /// each type (singleClicks, doubleClicks, holds), liveClicks and
+  /// queuedClicks, the live clicks in clicksLastMinute, clicksLast5Minutes and
+  /// clicksLast15Minutes, how long the button was held between down and up
+  /// (heldCount, heldMeanMs, heldMaxMs and the heldHistogram by the upper limit
+  /// in ms) and how far the press count moved (pressCountDelta). These are
+  /// cheap to ask for, no events need to be listened to (android only)
+  Future<Map<String, Map>?> getFlic2ButtonStats({String? buttonUuid}) async {
+    return _channel.invokeMapMethod<String, Map>(
+        _methodNameGetButtonStats, buttonUuid == null ? null : [buttonUuid]);
+  }
+
+  /// get the counts of what the continuous scan found (discovered, duplicates,
+  /// rateLimited, paired...), the scans that failed and those that ended with
+  /// nothing to pair (noResults), and how fast it is pairing buttons, as
+  /// pairedPerMinute and pairedLastMinute (android only)
+  Future<Map<String, dynamic>?> getFlic2ScanStats() async {
+    return _channel.invokeMapMethod<String, dynamic>(_methodNameGetScanStats);
+  }
+
+  /// replace the rules natively run as buttons are clicked, these act without
+  /// waiting for dart so are quicker and work when dart is busy or not running.
+  /// Each engine of the app has its own rules, these replace only this one's
+  /// (android only)
+  Future<bool?> setFlic2ActionRules(List<Flic2ActionRule> rules) async {
+    return _channel.invokeMethod<bool>(
+        _methodNameSetActionRules, rules.map((e) => e.toMap()).toList());
+  }
+
+  /// get the counts of the counter actions (as counters) and how often each
+  /// rule fired and failed (as rules), resetting the counters if asked to
+  /// (android only)
+  Future<Map<String, dynamic>?> getFlic2ActionStats({bool reset = false}) async {
+    return _channel
+        .invokeMapMethod<String, dynamic>(_methodNameGetActionStats, [reset]);
+  }
+
+  /// record every click, up / down, scan result and error (with when it
+  /// happened) to a trace file, at [path] or in the app's files if not given,
+  /// returning the path written to (android only)
+  Future<String?> startFlic2Trace({String? path}) async {
+    return _channel.invokeMethod<String>(_methodNameStartTrace, [path]);
+  }
+
+  /// stop recording the trace, returning what was recorded (path, records,
+  /// bytes, durationNs and failed)
+  Future<Map<String, dynamic>?> stopFlic2Trace() async {
+    return _channel.invokeMapMethod<String, dynamic>(_methodNameStopTrace);
+  }
+
+  /// play a trace back through the plugin, with the same timing as it was
+  /// recorded at a [speed] of one, faster at more, or as fast as it can go at
+  /// zero. This returns once the trace has played, with how long it took and how
+  /// far behind the timing of the trace it got (android only)
+  Future<Map<String, dynamic>?> replayFlic2Trace(String path,
+      {double speed = 1.0}) async {
+    return _channel.invokeMapMethod<String, dynamic>(
+        _methodNameReplayTrace, [path, speed]);
+  }
+
   /// cancel any running scan
   Future<bool?> cancelScanForFlic2() async {
     // scan for flic 2 buttons then please
@@ -250,10 +1046,12 @@ class FlicButtonPlugin {
   }
 
   /// listen to the button (android only, or can commonly ignore)
-  Future<bool?> listenToFlic2Button(String buttonUuid) async {
+  /// pass a [filter] to only be sent the events wanted from the button
+  Future<bool?> listenToFlic2Button(String buttonUuid,
+      {Flic2ButtonFilter? filter}) async {
     // scan for flic 2 buttons then please
-    return _channel
-        .invokeMethod<bool>(_methodNameStartListenToFlic2, [buttonUuid]);
+    return _channel.invokeMethod<bool>(_methodNameStartListenToFlic2,
+        filter == null ? [buttonUuid] : [buttonUuid, filter.toMap()]);
   }
 
   /// stop listening to a button (not iOS)
@@ -263,7 +1061,62 @@ class FlicButtonPlugin {
         .invokeMethod<bool>(_methodNameStopListenToFlic2, [buttonUuid]);
   }
 
-  /// get all the flic 2 buttons the manager is currently aware of (will remember between sessions)
+  /// connect all these buttons (all known buttons if null) in one call, returning
+  /// if it worked for each by UUID (not iOS)
+  Future<Map<String, bool>> connectButtons(List<String>? buttonUuids) async {
+    return await _channel.invokeMapMethod<String, bool>(
+            _methodNameConnectButtons, buttonUuids) ??
+        {};
+  }
+
+  /// disconnect all these buttons (all known buttons if null) in one call,
+  /// returning if it worked for each by UUID (not iOS)
+  Future<Map<String, bool>> disconnectButtons(List<String>? buttonUuids) async {
+    return await _channel.invokeMapMethod<String, bool>(
+            _methodNameDisconnectButtons, buttonUuids) ??
+        {};
+  }
+
+  /// listen to all these buttons (all known buttons if null) in one call,
+  /// returning if it worked for each by UUID (not iOS)
+  Future<Map<String, bool>> listenToFlic2Buttons(
+      List<String>? buttonUuids) async {
+    return await _channel.invokeMapMethod<String, bool>(
+            _methodNameStartListenToFlic2Buttons, buttonUuids) ??
+        {};
+  }
+
+  /// stop listening to all these buttons (all known buttons if null) in one
+  /// call, returning if it worked for each by UUID (not iOS)
+  Future<Map<String, bool>> cancelListenToFlic2Buttons(
+      List<String>? buttonUuids) async {
+    return await _channel.invokeMapMethod<String, bool>(
+            _methodNameStopListenToFlic2Buttons, buttonUuids) ??
+        {};
+  }
+
+  /// run all these commands in a single call to native, returning the result of
+  /// each in the same order (not iOS)
+  Future<List<Flic2CommandResult>> batchFlic2(
+      List<Flic2Command> commands) async {
+    final results = await _channel.invokeListMethod<Map>(
+        _methodNameBatch, commands.map((e) => e.toMap()).toList());
+    if (null == results) {
+      return [];
+    } else {
+      return results
+          .map((e) => Flic2CommandResult(
+                value: e['success'],
+                errorCode: e['error'],
+                errorMessage: e['message'],
+              ))
+          .toList();
+    }
+  }
+
+  /// get all the flic 2 buttons the manager is currently aware of (will remember between sessions).
+  /// With [Flic2Options.buttonCache] these can be the cached buttons, marked
+  /// [Flic2Button.isStale], if the library isn't ready yet
   Future<List<Flic2Button>> getFlic2Buttons() async {
     // get the buttons
     final buttons = await _channel.invokeMethod<List?>(_methodNameGetButtons);
@@ -274,16 +1127,44 @@ class FlicButtonPlugin {
     }
   }
 
+  /// get just the buttons added, changed and removed since the [version] of the
+  /// fleet returned last time (zero for all of them), so polling costs what
+  /// changed rather than the size of the fleet (android only)
+  Future<Flic2FleetChanges> getFlic2ButtonsSince(int version) async {
+    final changes = await _channel
+        .invokeMethod<Map>(_methodNameGetButtonsSince, [version]);
+    if (null == changes) {
+      return Flic2FleetChanges(
+          version: version, added: [], changed: [], removed: []);
+    }
+    return _createFleetChangesFromData(changes);
+  }
+
+  /// helper to convert the changes to the fleet from native
+  Flic2FleetChanges _createFleetChangesFromData(Map changes) {
+    return Flic2FleetChanges(
+      version: changes['version'],
+      added: (changes['added'] as List)
+          .map((e) => _createFlic2FromData(e))
+          .toList(),
+      changed: (changes['changed'] as List)
+          .map((e) => _createFlic2FromData(e))
+          .toList(),
+      removed: List<String>.from(changes['removed']),
+      isFullResync: changes['fullResync'] ?? false,
+    );
+  }
+
   /// when a button is discovered, you can just get the bluetooth address, this let's you see if there's a button behind that
   Future<Flic2Button?> getFlic2ButtonByAddress(String buttonAddress) async {
     // scan for flic 2 buttons then please
-    final buttonString = await _channel
-        .invokeMethod<String?>(_methodNameGetButtonsByAddr, [buttonAddress]);
-    if (buttonString == null || buttonString.isEmpty) {
+    final buttonData = await _channel
+        .invokeMethod<Object?>(_methodNameGetButtonsByAddr, [buttonAddress]);
+    if (buttonData == null || (buttonData is String && buttonData.isEmpty)) {
       // not a valid button
       return null;
     } else {
-      return _createFlic2FromData(buttonString);
+      return _createFlic2FromData(buttonData);
     }
   }
 
@@ -345,17 +1226,9 @@ class FlicButtonPlugin {
   Flic2Button _createFlic2FromData(Object data) {
     try {
       // create a button from this json data
-      Map json;
-      if (data is String) {
-        // from string data, let's get the map of data, but this can contain invalid control characters
-        // that we need to remove
-        json = jsonDecode(replaceInvalidJsonCharacters(data));
-      } else if (data is Map) {
-        // this is JSON already, so just use as-is
-        json = data;
-      } else {
-        throw ('data $data is not a string or a map');
-      }
+      // from string data, let's get the map of data, but this can contain invalid control characters
+      // that we need to remove, a map is typed (or JSON already) so just use as-is
+      final json = _mapFromData(data);
       return Flic2Button(
         uuid: json['uuid'],
         buttonAddr: json['bdAddr'],
@@ -368,6 +1241,7 @@ class FlicButtonPlugin {
         battTimestamp: json['battTime'],
         battVoltage: json['battVolt'],
         pressCount: json['pressCount'],
+        isStale: json['stale'] ?? false,
       );
     } catch (error) {
       log.warning('data back is not a valid button: $data $error');
@@ -387,10 +1261,23 @@ class FlicButtonPlugin {
     }
   }
 
+  /// helper to get the map of data from native, either as JSON to parse or
+  /// as the typed map the codec has already decoded for us
+  Map _mapFromData(Object data) {
+    if (data is Map) {
+      // typed data, no parsing required
+      return data;
+    } else if (data is String) {
+      return jsonDecode(replaceInvalidJsonCharacters(data));
+    } else {
+      throw ('data $data is not a string or a map');
+    }
+  }
+
   /// helper to convert the json from native to the object passed around in flutter
-  Flic2ButtonClick _createFlic2ClickFromData(String data) {
+  Flic2ButtonClick _createFlic2ClickFromData(Object data) {
     try {
-      final json = jsonDecode(replaceInvalidJsonCharacters(data));
+      final json = _mapFromData(data);
       return Flic2ButtonClick(
         wasQueued: json['wasQueued'],
         clickAge: json['clickAge'],
@@ -418,9 +1305,12 @@ class FlicButtonPlugin {
   }
 
   /// helper to convert the json from native to the object passed around in flutter
-  Flic2ButtonUpOrDown _createFlic2UpOrDownFromData(String data) {
+  Flic2ButtonUpOrDown _createFlic2UpOrDownFromData(Object data) {
     try {
-      final json = jsonDecode(replaceInvalidJsonCharacters(data));
+      final json = _mapFromData(data);
+      if (json.containsKey('changed')) {
+        return _createFlic2CompactUpOrDown(json);
+      }
       return Flic2ButtonUpOrDown(
         button: _createFlic2FromData(json['button']),
         isDown: json['down'],
@@ -435,6 +1325,54 @@ class FlicButtonPlugin {
     }
   }
 
+  /// rebuilds the button of a compact up / down from the one we have and the
+  /// data that changed
+  Flic2ButtonUpOrDown _createFlic2CompactUpOrDown(Map json) {
+    final String uuid = json['uuid'];
+    final int base = json['base'];
+    final Map changed = json['changed'];
+    final cached = _upOrDownButtons[uuid];
+    Flic2Button button;
+    if (base == 0 || cached == null) {
+      // all of the button was sent
+      button = _createFlic2FromData(changed);
+    } else {
+      if (_upOrDownVersions[uuid] != base) {
+        // one went missing (the stream dropped it), native sends all of the
+        // button again every so often so this will put itself right
+        log.warning('missed a change to button $uuid, it may be out of date');
+      }
+      button = Flic2Button(
+        uuid: uuid,
+        buttonAddr: changed['bdAddr'] ?? cached.buttonAddr,
+        readyTimestamp: changed['readyTime'] ?? cached.readyTimestamp,
+        name: changed['name'] ?? cached.name,
+        serialNo: changed['serialNo'] ?? cached.serialNo,
+        connectionState: changed.containsKey('connection')
+            ? _connectionStateFromChannelCode(changed['connection'])
+            : cached.connectionState,
+        firmwareVersion: changed['firmwareVer'] ?? cached.firmwareVersion,
+        battPercentage: changed.containsKey('battPerc')
+            ? changed['battPerc']
+            : cached.battPercentage,
+        battTimestamp: changed.containsKey('battTime')
+            ? changed['battTime']
+            : cached.battTimestamp,
+        battVoltage: changed.containsKey('battVolt')
+            ? changed['battVolt']
+            : cached.battVoltage,
+        pressCount: changed['pressCount'] ?? cached.pressCount,
+      );
+    }
+    _upOrDownButtons[uuid] = button;
+    _upOrDownVersions[uuid] = json['version'];
+    return Flic2ButtonUpOrDown(
+      button: button,
+      isDown: json['down'],
+      timestamp: json['timestamp'] ?? 0,
+    );
+  }
+
   /// called back from the native with the relevant data
   Future<void> _methodCallHandler(MethodCall call) async {
     // this is called from the other side when there's something happening in which
@@ -443,53 +1381,12 @@ class FlicButtonPlugin {
       case _methodNameCallback:
         // this is a nice callback from the implementation - call the proper
         // function that is required then (by the passed data)
-        final methodId = call.arguments['method'] ?? '';
-        final methodData = call.arguments['data'] ?? '';
-        // get the callback that's registered with this ID to call it
-        switch (methodId) {
-          case METHOD_FLIC2_DISCOVER_PAIRED:
-            // process this method - have discovered a paired flic 2 button
-            flic2listener
-                .onPairedButtonDiscovered(_createFlic2FromData(methodData));
-            break;
-          case METHOD_FLIC2_DISCOVERED:
-            // process this method - have discovered a flic 2 button, but just the address which isn't great
-            flic2listener.onButtonDiscovered(methodData);
-            break;
-          case METHOD_FLIC2_CONNECTED:
-            // process this method - have connected a flic 2 button
-            flic2listener.onButtonConnected();
-            break;
-          case METHOD_FLIC2_FOUND:
-            // process this method - have found a flic 2 button
-            flic2listener.onButtonFound(_createFlic2FromData(methodData));
-            break;
-          case METHOD_FLIC2_CLICK:
-            // process this method - have clicked a flic 2 button
-            flic2listener
-                .onButtonClicked(_createFlic2ClickFromData(methodData));
-            break;
-          case METHOD_FLIC2_SCANNING:
-            // process this method - scanning for buttons
-            flic2listener.onScanStarted();
-            break;
-          case METHOD_FLIC2_SCAN_COMPLETE:
-            // process this method - scanning for buttons completed
-            flic2listener.onScanCompleted();
-            break;
-          case METHOD_FLIC2_ERROR:
-            // process this method - scanning for buttons completed
-            flic2listener.onFlic2Error(methodData);
-            break;
-          case METHOD_FLIC2_BUTTON_UP_DOWN:
-            // process this method - a button was pushed, or released
-            flic2listener.onButtonUpOrDown(
-              _createFlic2UpOrDownFromData(methodData),
-            );
-            break;
-          default:
-            log.severe('unrecognised method callback encountered $methodId');
-            break;
+        _dispatchCallback(call.arguments);
+        break;
+      case _methodNameCallbackBatch:
+        // a batch of callbacks sent together, call each in the order they happened
+        for (final callback in call.arguments as List) {
+          _dispatchCallback(callback);
         }
         break;
       default:
@@ -497,4 +1394,101 @@ class FlicButtonPlugin {
         break;
     }
   }
+
+  /// handles an event from the native stream, acknowledging them as we go so
+  /// native will send us more
+  void _streamHandler(dynamic arguments) {
+    _dispatchCallback(arguments);
+    // acknowledge at half the window so native always has room to send more
+    final ackEvery = options.streamWindow > 1 ? options.streamWindow ~/ 2 : 1;
+    if (++_eventsToAcknowledge >= ackEvery) {
+      _channel.invokeMethod<bool>(_methodNameAckEvents, [_eventsToAcknowledge]);
+      _eventsToAcknowledge = 0;
+    }
+  }
+
+  /// calls the listener function for the single callback sent from native
+  void _dispatchCallback(dynamic arguments) {
+    final event = _createFlic2EventFromData(arguments);
+    if (_eventController.hasListener) {
+      // someone is listening to the stream of events
+      _eventController.add(event);
+    }
+    // get the callback that's registered with this ID to call it
+    switch (event.methodId) {
+      case METHOD_FLIC2_DISCOVER_PAIRED:
+        // process this method - have discovered a paired flic 2 button
+        flic2listener.onPairedButtonDiscovered(event.button!);
+        break;
+      case METHOD_FLIC2_DISCOVERED:
+        // process this method - have discovered a flic 2 button, but just the address which isn't great
+        flic2listener.onButtonDiscovered(event.buttonAddress!);
+        break;
+      case METHOD_FLIC2_CONNECTED:
+        // process this method - have connected a flic 2 button
+        flic2listener.onButtonConnected();
+        break;
+      case METHOD_FLIC2_FOUND:
+        // process this method - have found a flic 2 button
+        flic2listener.onButtonFound(event.button!);
+        break;
+      case METHOD_FLIC2_CLICK:
+        // process this method - have clicked a flic 2 button
+        flic2listener.onButtonClicked(event.click!);
+        break;
+      case METHOD_FLIC2_SCANNING:
+        // process this method - scanning for buttons
+        flic2listener.onScanStarted();
+        break;
+      case METHOD_FLIC2_SCAN_COMPLETE:
+        // process this method - scanning for buttons completed
+        flic2listener.onScanCompleted();
+        break;
+      case METHOD_FLIC2_ERROR:
+        // process this method - scanning for buttons completed
+        flic2listener.onFlic2Error(event.error!);
+        break;
+      case METHOD_FLIC2_BUTTON_UP_DOWN:
+        // process this method - a button was pushed, or released
+        flic2listener.onButtonUpOrDown(event.upOrDown!);
+        break;
+      case METHOD_FLIC2_BUTTONS_RECONCILED:
+        // process this method - the cached buttons were checked against the real ones
+        flic2listener.onButtonsReconciled(event.fleetChanges!);
+        break;
+      default:
+        log.severe(
+            'unrecognised method callback encountered ${event.methodId}');
+        break;
+    }
+  }
+
+  /// helper to convert the data from native to the event it represents
+  Flic2Event _createFlic2EventFromData(dynamic arguments) {
+    final methodId = arguments['method'] ?? 0;
+    final methodData = arguments['data'] ?? '';
+    switch (methodId) {
+      case METHOD_FLIC2_DISCOVER_PAIRED:
+      case METHOD_FLIC2_FOUND:
+        return Flic2Event(
+            methodId: methodId, button: _createFlic2FromData(methodData));
+      case METHOD_FLIC2_DISCOVERED:
+        return Flic2Event(methodId: methodId, buttonAddress: methodData);
+      case METHOD_FLIC2_CLICK:
+        return Flic2Event(
+            methodId: methodId, click: _createFlic2ClickFromData(methodData));
+      case METHOD_FLIC2_BUTTON_UP_DOWN:
+        return Flic2Event(
+            methodId: methodId,
+            upOrDown: _createFlic2UpOrDownFromData(methodData));
+      case METHOD_FLIC2_ERROR:
+        return Flic2Event(methodId: methodId, error: methodData);
+      case METHOD_FLIC2_BUTTONS_RECONCILED:
+        return Flic2Event(
+            methodId: methodId,
+            fleetChanges: _createFleetChangesFromData(methodData));
+      default:
+        return Flic2Event(methodId: methodId);
+    }
+  }
 }